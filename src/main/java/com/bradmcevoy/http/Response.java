@@ -98,6 +98,7 @@ public interface Response {
         SC_PRECONDITION_FAILED( 412 ),
         SC_REQUEST_TOO_LONG( 413 ),
         SC_UNSUPPORTED_MEDIA_TYPE( 415 ),
+        SC_REQUESTED_RANGE_NOT_SATISFIABLE( ResponseStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE ),
         SC_EXPECTATION_FAILED( ResponseStatus.SC_EXPECTATION_FAILED ), // 417
         SC_UNPROCESSABLE_ENTITY( 418 ),
         SC_INSUFFICIENT_STORAGE( 507 ),
@@ -8,16 +8,17 @@ import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 import com.bradmcevoy.http.exceptions.NotFoundException;
 import com.bradmcevoy.io.StreamUtils;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -30,6 +31,7 @@ import org.slf4j.LoggerFactory;
 public class PartialGetHelper {
 
 	private static final Logger log = LoggerFactory.getLogger(PartialGetHelper.class);
+	private static final Pattern RANGE = Pattern.compile("\\s*(\\d*)-(\\d*)\\s*");
 	private final Http11ResponseHandler responseHandler;
 	private int maxMemorySize = 100000;
 
@@ -38,6 +40,20 @@ public class PartialGetHelper {
 	}
 
 	public List<Range> getRanges(String rangeHeader) {
+		return getRanges(rangeHeader, null);
+	}
+
+	/**
+	 * Parses the byte ranges of a Range header, including open ended
+	 * ("500-") and suffix ("-500") ranges (RFC 7233, section 2.1).
+	 *
+	 * An open ended range is returned with Long.MAX_VALUE as its last byte,
+	 * for coalesce to clamp. A suffix range is resolved against the content
+	 * length, and dropped if that is not known.
+	 *
+	 * @param contentLength - null if not known
+	 */
+	public List<Range> getRanges(String rangeHeader, Long contentLength) {
 		if (rangeHeader == null || rangeHeader.length() == 0) {
 			log.trace("getRanges: no range header");
 			return null;
@@ -47,10 +63,28 @@ public class PartialGetHelper {
 			String[] arr = rangeHeader.split(",");
 			List<Range> list = new ArrayList<Range>();
 			for (String s : arr) {
-				final Matcher matcher = Pattern.compile("\\s*(\\d+)-(\\d+)").matcher(s);
-				if (matcher.matches()) {
-					Range r = new Range(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)));
-					list.add(r);
+				final Matcher matcher = RANGE.matcher(s);
+				if (!matcher.matches()) {
+					continue;
+				}
+				String first = matcher.group(1);
+				String last = matcher.group(2);
+				try {
+					if (first.length() > 0) {
+						long start = Long.parseLong(first);
+						long finish = last.length() > 0 ? Long.parseLong(last) : Long.MAX_VALUE;
+						list.add(new Range(start, finish));
+					} else if (last.length() > 0 && contentLength != null) {
+						long suffix = Long.parseLong(last);
+						if (suffix > 0) {
+							list.add(new Range(Math.max(0, contentLength - suffix), contentLength - 1));
+						} else {
+							// "-0" is satisfiable by no representation
+							list.add(new Range(contentLength, Long.MAX_VALUE));
+						}
+					}
+				} catch (NumberFormatException e) {
+					log.trace("getRanges: ignoring range " + s);
 				}
 			}
 			if (log.isTraceEnabled()) {
@@ -65,31 +99,150 @@ public class PartialGetHelper {
 
 	public void sendPartialContent(GetableResource resource, Request request, Response response, List<Range> ranges, Map<String, String> params) throws NotAuthorizedException, BadRequestException, IOException, NotFoundException {
 		log.trace("sendPartialContent");
+		Long contentLength = resource.getContentLength();
+		List<Range> satisfiable = coalesce(ranges, contentLength);
+		if (satisfiable.isEmpty()) {
+			if (contentLength != null && isValid(ranges)) {
+				log.trace("partial get, no satisfiable range");
+				respondNotSatisfiable(resource, response, contentLength);
+			} else {
+				// syntactically invalid, ignore the header
+				responseHandler.respondContent(resource, response, request, params);
+			}
+			return;
+		}
+		ranges = satisfiable;
 		if (ranges.size() == 1) {
 			log.trace("partial get, single range");
 			Range r = ranges.get(0);
 			responseHandler.respondPartialContent(resource, response, request, params, r);
 		} else {
 			log.trace("partial get, multiple ranges");
-			File temp = File.createTempFile("milton_partial_get", null);
-			FileOutputStream fout = null;
-			try {
-				fout = new FileOutputStream(temp);
-				BufferedOutputStream bufOut = new BufferedOutputStream(fout);
-				resource.sendContent(bufOut, null, params, request.getContentTypeHeader());
-				bufOut.flush();
-				fout.flush();
-			} finally {
-				StreamUtils.close(fout);
+			sendMultipleRanges(resource, request, response, ranges, params);
+		}
+	}
+
+	/**
+	 * @return false, if every range ends before it starts
+	 */
+	private static boolean isValid(List<Range> ranges) {
+		for (Range r : ranges) {
+			if (r.getStart() <= r.getFinish()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Responds with 416 and the current length (RFC 7233, section 4.4)
+	 */
+	private void respondNotSatisfiable(GetableResource resource, Response response, long contentLength) {
+		response.setStatus(Response.Status.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		response.setDateHeader(new Date());
+		String etag = responseHandler.generateEtag(resource);
+		if (etag != null) {
+			response.setEtag(etag);
+		}
+		response.setNonStandardHeader("Content-Range", "bytes */" + contentLength);
+		response.setContentLengthHeader(0L);
+	}
+
+	/**
+	 * Sorts the ranges, clamps them to the content length, drops the ones that
+	 * start beyond the end and merges the ones that overlap or are adjacent.
+	 *
+	 * @param contentLength - null if not known, then the ranges are only merged
+	 */
+	public static List<Range> coalesce(List<Range> ranges, Long contentLength) {
+		List<Range> sorted = new ArrayList<Range>(ranges);
+		Collections.sort(sorted, new Comparator<Range>() {
+
+			public int compare(Range o1, Range o2) {
+				return o1.getStart() < o2.getStart() ? -1 : o1.getStart() == o2.getStart() ? 0 : 1;
+			}
+		});
+		List<Range> result = new ArrayList<Range>(sorted.size());
+		long start = -1, finish = -1;
+		for (Range r : sorted) {
+			long s = r.getStart();
+			long f = r.getFinish();
+			if (contentLength != null) {
+				f = Math.min(f, contentLength - 1);
+			}
+			if (f < s) {
+				continue;
 			}
-			OutputStream responseOut = response.getOutputStream();
-			FileInputStream fin = null;
-			try {
-				fin = new FileInputStream(temp);
-				writeRanges(fin, ranges, responseOut);
-			} finally {
-				StreamUtils.close(fin);
-			}			
+			if (start >= 0 && s <= finish + 1) {
+				finish = Math.max(finish, f);
+			} else {
+				if (start >= 0) {
+					result.add(new Range(start, finish));
+				}
+				start = s;
+				finish = f;
+			}
+		}
+		if (start >= 0) {
+			result.add(new Range(start, finish));
+		}
+		return result;
+	}
+
+	/**
+	 * Responds with a multipart/byteranges body, asking the resource for one
+	 * range after the other, so nothing is buffered.
+	 */
+	private void sendMultipleRanges(GetableResource resource, Request request, Response response, List<Range> ranges, Map<String, String> params) throws NotAuthorizedException, BadRequestException, NotFoundException {
+		Long contentLength = resource.getContentLength();
+		String ct = resource.getContentType(request.getAcceptHeader());
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+
+		// the part headers are known up front, and so is the length of the body
+		List<byte[]> heads = new ArrayList<byte[]>(ranges.size());
+		long length = 0;
+		for (Range r : ranges) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("\r\n--").append(boundary).append("\r\n");
+			if (ct != null) {
+				sb.append("Content-Type: ").append(ct).append("\r\n");
+			}
+			sb.append("Content-Range: bytes ").append(r.getStart()).append("-").append(r.getFinish()).append("/").append(contentLength == null ? "*" : contentLength.toString()).append("\r\n\r\n");
+			byte[] head = ascii(sb.toString());
+			heads.add(head);
+			length += head.length + r.getFinish() - r.getStart() + 1;
+		}
+		byte[] tail = ascii("\r\n--" + boundary + "--\r\n");
+		length += tail.length;
+
+		response.setStatus(Response.Status.SC_PARTIAL_CONTENT);
+		response.setDateHeader(new Date());
+		String etag = responseHandler.generateEtag(resource);
+		if (etag != null) {
+			response.setEtag(etag);
+		}
+		response.setContentTypeHeader("multipart/byteranges; boundary=" + boundary);
+		if (contentLength != null) {
+			response.setContentLengthHeader(length);
+		}
+		OutputStream out = response.getOutputStream();
+		try {
+			for (int i = 0; i < ranges.size(); i++) {
+				out.write(heads.get(i));
+				resource.sendContent(out, ranges.get(i), params, ct);
+			}
+			out.write(tail);
+			out.flush();
+		} catch (IOException ex) {
+			log.warn("IOException writing to output, probably client terminated connection", ex);
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
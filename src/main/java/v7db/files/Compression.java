@@ -20,17 +20,20 @@ package v7db.files;
 import static java.util.zip.Deflater.BEST_COMPRESSION;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -44,6 +47,34 @@ public class Compression {
 
 	static Logger log = LoggerFactory.getLogger(Compression.class);
 
+	/**
+	 * idle (raw, "nowrap") Inflaters, kept around because each one holds a
+	 * sizable native zlib buffer
+	 */
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(
+			32);
+
+	/**
+	 * @return a raw ("nowrap") Inflater from the pool, or a new one if the
+	 *         pool is empty. Hand it back with {@link #releaseInflater}.
+	 */
+	public static Inflater borrowInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null)
+			return new Inflater(true);
+		return inflater;
+	}
+
+	/**
+	 * resets the Inflater and returns it to the pool (or frees it, if the pool
+	 * is full). The Inflater must not be used afterwards.
+	 */
+	public static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		if (!inflaters.offer(inflater))
+			inflater.end();
+	}
+
 	/**
 	 * @return 0, if the "deflated" data fills the whole output array
 	 */
@@ -62,12 +93,26 @@ public class Compression {
 	 *         has been an exception)
 	 */
 	public static byte[] gzip(byte[] data, int off, int len) {
+		return gzip(data, off, len, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *            the Deflater compression level
+	 * @return null, if the "gzipped" data is larger than the input (or there
+	 *         has been an exception)
+	 */
+	public static byte[] gzip(byte[] data, int off, int len, final int level) {
 
 		if (len < GZIP_STORAGE_OVERHEAD)
 			return null;
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length);
-			GZIPOutputStream gz = new GZIPOutputStream(baos);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			GZIPOutputStream gz = new GZIPOutputStream(baos) {
+				{
+					def.setLevel(level);
+				}
+			};
 			gz.write(data, off, len);
 			gz.close();
 			if (baos.size() >= len)
@@ -86,27 +131,134 @@ public class Compression {
 	 */
 	static void inflate(byte[] data, int off, int len, byte[] out)
 			throws DataFormatException {
-		Inflater inflater = new Inflater(true);
-		inflater.setInput(data, off, len);
-		int size = inflater.inflate(out);
+		Inflater inflater = borrowInflater();
+		int size;
+		try {
+			inflater.setInput(data, off, len);
+			size = inflater.inflate(out);
+		} finally {
+			releaseInflater(inflater);
+		}
 		if (size != out.length)
 			throw new DataFormatException("unexpected size of deflated data: "
 					+ size + " instead of " + out.length);
 	}
 
-	static void gunzip(InputStream in, OutputStream out) throws IOException {
-		IOUtils.copy(new GZIPInputStream(in), out);
-	}
+	private static final int MAX_STORED_BLOCK = 65535;
 
 	/**
-	 * input must be in zip format, i.e. first a local header, and then the data
-	 * segment.
+	 * wraps the data into a gzip member without compressing it (using
+	 * "stored" deflate blocks), so that it can be sent along with other gzip
+	 * members
 	 * 
+	 * @param length
+	 *            the exact length of the data
+	 */
+	public static InputStream gzipStored(InputStream data, long length) {
+		return new StoredGzipStream(data, length);
+	}
+
+	/**
+	 * @return the length of {@link #gzipStored(InputStream, long)}
 	 */
-	static InputStream unzip(InputStream in) throws IOException {
-		ZipInputStream zip = new ZipInputStream(in);
-		zip.getNextEntry();
-		return zip;
+	public static long getGzipStoredLength(long length) {
+		long blocks = Math.max(1, (length + MAX_STORED_BLOCK - 1)
+				/ MAX_STORED_BLOCK);
+		return GZIP_STORAGE_OVERHEAD + 5 * blocks + length;
+	}
+
+	private static final class StoredGzipStream extends InputStream {
+
+		private final InputStream in;
+
+		private final CRC32 crc = new CRC32();
+
+		private final long length;
+
+		private long remaining;
+
+		private byte[] buffer = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0,
+				0, 0, 0, 0, (byte) 0xff };
+
+		private int pos, limit = buffer.length;
+
+		private boolean done;
+
+		StoredGzipStream(InputStream in, long length) {
+			this.in = in;
+			this.length = length;
+			remaining = length;
+		}
+
+		private boolean fill() throws IOException {
+			if (done)
+				return false;
+			int n = (int) Math.min(remaining, MAX_STORED_BLOCK);
+			boolean last = n == remaining;
+			if (buffer.length < MAX_STORED_BLOCK + 13)
+				buffer = new byte[MAX_STORED_BLOCK + 13];
+			buffer[0] = (byte) (last ? 1 : 0);
+			buffer[1] = (byte) n;
+			buffer[2] = (byte) (n >> 8);
+			buffer[3] = (byte) ~n;
+			buffer[4] = (byte) (~n >> 8);
+			int read = 0;
+			while (read < n) {
+				int r = in.read(buffer, 5 + read, n - read);
+				if (r == -1)
+					throw new EOFException("expected " + length
+							+ " bytes of data");
+				read += r;
+			}
+			crc.update(buffer, 5, n);
+			remaining -= n;
+			limit = 5 + n;
+			if (last) {
+				writeInt(buffer, limit, (int) crc.getValue());
+				writeInt(buffer, limit + 4, (int) length);
+				limit += 8;
+				done = true;
+				in.close();
+			}
+			pos = 0;
+			return true;
+		}
+
+		private static void writeInt(byte[] b, int off, int i) {
+			b[off] = (byte) i;
+			b[off + 1] = (byte) (i >> 8);
+			b[off + 2] = (byte) (i >> 16);
+			b[off + 3] = (byte) (i >> 24);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == limit && !fill())
+				return -1;
+			return buffer[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == limit && !fill())
+				return -1;
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buffer, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	static void gunzip(InputStream in, OutputStream out) throws IOException {
+		IOUtils.copy(new GZIPInputStream(in), out);
 	}
 
 	/**
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files;
+
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides (once per upload, by looking at the beginning of the data) whether
+ * it is worth trying to gzip the chunks, and at which Deflater level.
+ * <p>
+ * Compression is skipped for content types that are known to be compressed
+ * already (property <code>content.compression.skip.types</code>), for data
+ * that starts with the magic bytes of a compressed format, and for data whose
+ * byte entropy (measured on the first few KB) is too high. Data that looks
+ * only marginally compressible is compressed with the fastest level.
+ * <p>
+ * Also keeps count of compressed and skipped chunks, and estimates the CPU
+ * time saved by skipping from the time spent on the chunks that were
+ * compressed. The counts are for all policies in the process, and are logged
+ * periodically (property <code>content.compression.log</code>, in minutes).
+ */
+
+public class CompressionPolicy {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(CompressionPolicy.class);
+
+	static final String DEFAULT_SKIP_TYPES = "image/jpeg, image/png, image/gif, image/webp, "
+			+ "video/*, audio/*, application/zip, application/gzip, "
+			+ "application/x-gzip, application/x-bzip2, application/x-xz, "
+			+ "application/x-7z-compressed, application/x-rar-compressed, "
+			+ "application/java-archive, "
+			+ "application/vnd.openxmlformats-officedocument.*, "
+			+ "application/vnd.oasis.opendocument.*";
+
+	private final int level;
+
+	private final int sampleSize;
+
+	private final double maxEntropy;
+
+	private final String[] skipTypes;
+
+	private static final AtomicLong compressedChunks = new AtomicLong();
+
+	private static final AtomicLong incompressibleChunks = new AtomicLong();
+
+	private static final AtomicLong skippedChunks = new AtomicLong();
+
+	private static final AtomicLong skippedBytes = new AtomicLong();
+
+	private static final AtomicLong gzipBytes = new AtomicLong();
+
+	private static final AtomicLong gzipNanos = new AtomicLong();
+
+	/**
+	 * null, until the first policy that wants the statistics logged
+	 */
+	private static ScheduledExecutorService statisticsLog;
+
+	/**
+	 * @param props
+	 *            the configuration, can be null to use the defaults
+	 */
+	public CompressionPolicy(Properties props) {
+		if (props == null)
+			props = new Properties();
+		level = NumberUtils.toInt(props.getProperty("content.compression.level"),
+				Deflater.DEFAULT_COMPRESSION);
+		sampleSize = NumberUtils.toInt(props
+				.getProperty("content.compression.sample"), 4096);
+		maxEntropy = NumberUtils.toDouble(props
+				.getProperty("content.compression.entropy"), 7.5);
+		String types = props.getProperty("content.compression.skip.types",
+				DEFAULT_SKIP_TYPES);
+		skipTypes = StringUtils.stripAll(StringUtils.split(types
+				.toLowerCase(), ','));
+		long logMinutes = NumberUtils.toLong(props
+				.getProperty("content.compression.log"), 60);
+		if (logMinutes > 0)
+			logEvery(logMinutes);
+	}
+
+	/**
+	 * only the first call starts logging, the later ones (from the other
+	 * policies) do nothing
+	 */
+	private static synchronized void logEvery(long minutes) {
+		if (statisticsLog != null)
+			return;
+		statisticsLog = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+						"v7files-compression"));
+		statisticsLog.scheduleWithFixedDelay(new Runnable() {
+			long chunks;
+
+			public void run() {
+				// nothing to say if nothing was stored since last time
+				long c = compressedChunks.get() + incompressibleChunks.get()
+						+ skippedChunks.get();
+				if (c != chunks)
+					logStatistics();
+				chunks = c;
+			}
+		}, minutes, minutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param contentType
+	 *            can be null
+	 * @param data
+	 *            the beginning of the upload
+	 * @return the Deflater level to use, {@link Deflater#NO_COMPRESSION} means
+	 *         "do not try to compress"
+	 */
+	public int getLevel(String contentType, byte[] data, int offset,
+			int length) {
+		if (level == Deflater.NO_COMPRESSION || isSkippedType(contentType)
+				|| isCompressedFormat(data, offset, length))
+			return Deflater.NO_COMPRESSION;
+		double e = entropy(data, offset, Math.min(length, sampleSize));
+		if (e > maxEntropy)
+			return Deflater.NO_COMPRESSION;
+		if (e > maxEntropy - 1)
+			return Deflater.BEST_SPEED;
+		return level;
+	}
+
+	/**
+	 * gzips the data (unless the level is {@link Deflater#NO_COMPRESSION}) and
+	 * records the outcome
+	 * 
+	 * @return null, if compression was skipped or did not make the data
+	 *         smaller
+	 */
+	public byte[] gzip(byte[] data, int offset, int length, int level) {
+		if (level == Deflater.NO_COMPRESSION) {
+			skippedChunks.incrementAndGet();
+			skippedBytes.addAndGet(length);
+			return null;
+		}
+		long start = System.nanoTime();
+		byte[] gzipped = Compression.gzip(data, offset, length, level);
+		gzipNanos.addAndGet(System.nanoTime() - start);
+		gzipBytes.addAndGet(length);
+		if (gzipped == null)
+			incompressibleChunks.incrementAndGet();
+		else
+			compressedChunks.incrementAndGet();
+		return gzipped;
+	}
+
+	private boolean isSkippedType(String contentType) {
+		if (StringUtils.isBlank(contentType))
+			return false;
+		String type = StringUtils.substringBefore(contentType, ";").trim()
+				.toLowerCase();
+		for (String s : skipTypes) {
+			if (s.endsWith("*") ? type.startsWith(s.substring(0,
+					s.length() - 1)) : type.equals(s))
+				return true;
+		}
+		return false;
+	}
+
+	private static final byte[][] MAGIC = {
+			{ (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // JPEG
+			{ (byte) 0x89, 'P', 'N', 'G' }, // PNG
+			{ 'G', 'I', 'F', '8' }, // GIF
+			{ 'P', 'K', 3, 4 }, // zip, also jar and office documents
+			{ 0x1F, (byte) 0x8B }, // gzip
+			{ 'B', 'Z', 'h' }, // bzip2
+			{ (byte) 0xFD, '7', 'z', 'X', 'Z', 0 }, // xz
+			{ '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C }, // 7z
+			{ 'R', 'a', 'r', '!' }, // rar
+			{ 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD }, // zstd
+			{ 'O', 'g', 'g', 'S' }, // ogg
+			{ 'I', 'D', '3' }, // mp3
+			{ 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 }, // matroska, webm
+	};
+
+	static boolean isCompressedFormat(byte[] data, int offset, int length) {
+		for (byte[] m : MAGIC) {
+			if (startsWith(data, offset, length, m, 0))
+				return true;
+		}
+		// mp4, quicktime, heic: a "ftyp" box at the beginning
+		if (startsWith(data, offset, length, new byte[] { 'f', 't', 'y', 'p' },
+				4))
+			return true;
+		// webp
+		return startsWith(data, offset, length, new byte[] { 'R', 'I', 'F',
+				'F' }, 0)
+				&& startsWith(data, offset, length, new byte[] { 'W', 'E', 'B',
+						'P' }, 8);
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length,
+			byte[] magic, int at) {
+		if (length < at + magic.length)
+			return false;
+		for (int i = 0; i < magic.length; i++) {
+			if (data[offset + at + i] != magic[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the Shannon entropy of the byte values, in bits per byte
+	 */
+	static double entropy(byte[] data, int offset, int length) {
+		if (length == 0)
+			return 0;
+		int[] counts = new int[256];
+		for (int i = offset; i < offset + length; i++) {
+			counts[data[i] & 0xFF]++;
+		}
+		double e = 0;
+		for (int c : counts) {
+			if (c > 0) {
+				double p = (double) c / length;
+				e -= p * Math.log(p);
+			}
+		}
+		return e / Math.log(2);
+	}
+
+	public static long getCompressedChunks() {
+		return compressedChunks.get();
+	}
+
+	/**
+	 * @return how many chunks were compressed, but did not get smaller
+	 */
+	public static long getIncompressibleChunks() {
+		return incompressibleChunks.get();
+	}
+
+	/**
+	 * @return how many chunks were not even tried to compress
+	 */
+	public static long getSkippedChunks() {
+		return skippedChunks.get();
+	}
+
+	/**
+	 * @return the time it would have taken to compress the skipped chunks,
+	 *         at the average speed of the chunks that were compressed
+	 */
+	public static long getEstimatedNanosSaved() {
+		long bytes = gzipBytes.get();
+		if (bytes == 0)
+			return 0;
+		return (long) (skippedBytes.get() * ((double) gzipNanos.get() / bytes));
+	}
+
+	/**
+	 * logs the counts now (for example before the process exits)
+	 */
+	public static void logStatistics() {
+		log.info("compression: " + compressedChunks + " chunks compressed, "
+				+ incompressibleChunks + " incompressible, " + skippedChunks
+				+ " skipped (saving about " + getEstimatedNanosSaved()
+				/ 1000000 + " ms)");
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content (using a
+ * "gear" rolling hash, as in FastCDC), rather than on fixed offsets.
+ * <p>
+ * If some bytes are inserted into or removed from a file, only the chunks
+ * around that edit change, and the rest of the file still maps to the same
+ * chunks (and will be de-duplicated against the previous version).
+ * <p>
+ * Chunks are between <code>min</code> and <code>max</code> bytes long, with
+ * an average of about <code>avg</code> bytes. The hash table is generated
+ * from a fixed seed, so that the boundaries do not change between program
+ * runs (which would defeat the purpose).
+ */
+
+public class ContentDefinedChunker {
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random r = new Random(0x7f4a7c15L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = r.nextLong();
+		}
+	}
+
+	private final InputStream in;
+
+	private final int min, avg, max;
+
+	/**
+	 * a stricter mask before the average size is reached, a looser one after
+	 * that, to keep the chunk sizes close to the average
+	 */
+	private final long maskS, maskL;
+
+	private final byte[] buffer;
+
+	private int start = 0, end = 0;
+
+	private boolean eof = false;
+
+	public ContentDefinedChunker(InputStream in, int min, int avg, int max) {
+		if (min <= 0 || min > avg || avg > max)
+			throw new IllegalArgumentException("invalid chunk sizes: min "
+					+ min + ", avg " + avg + ", max " + max);
+		this.in = in;
+		this.min = min;
+		this.avg = avg;
+		this.max = max;
+		int bits = 31 - Integer.numberOfLeadingZeros(avg);
+		maskS = topBits(bits + 1);
+		maskL = topBits(Math.max(1, bits - 1));
+		buffer = new byte[max];
+	}
+
+	/**
+	 * the high bits of the gear hash depend on the most bytes
+	 */
+	private static long topBits(int n) {
+		return -1L << (64 - n);
+	}
+
+	/**
+	 * copies the next chunk into the given array, which must have room for
+	 * <code>max</code> bytes.
+	 * 
+	 * @return the length of the chunk, 0 (not -1) at the end of the stream
+	 */
+	public int next(byte[] chunk) throws IOException {
+		fill();
+		int cut = cutPoint(buffer, start, end - start);
+		System.arraycopy(buffer, start, chunk, 0, cut);
+		start += cut;
+		return cut;
+	}
+
+	/**
+	 * make sure that the buffer contains at least <code>max</code> bytes (or
+	 * the rest of the stream)
+	 */
+	private void fill() throws IOException {
+		if (eof || end - start == max)
+			return;
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		while (end < buffer.length) {
+			int read = in.read(buffer, end, buffer.length - end);
+			if (read == -1) {
+				eof = true;
+				return;
+			}
+			end += read;
+		}
+	}
+
+	private int cutPoint(byte[] b, int off, int len) {
+		if (len <= min)
+			return len;
+		int normal = Math.min(avg, len);
+		int limit = Math.min(max, len);
+		long fp = 0;
+		int i = min;
+		for (; i < normal; i++) {
+			fp = (fp << 1) + GEAR[b[off + i] & 0xFF];
+			if ((fp & maskS) == 0)
+				return i + 1;
+		}
+		for (; i < limit; i++) {
+			fp = (fp << 1) + GEAR[b[off + i] & 0xFF];
+			if ((fp & maskL) == 0)
+				return i + 1;
+		}
+		return limit;
+	}
+
+	public int getMaxChunkSize() {
+		return max;
+	}
+
+}
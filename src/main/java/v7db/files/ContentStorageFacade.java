@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
@@ -31,7 +32,9 @@ import org.bson.types.ObjectId;
 
 import v7db.files.mongodb.BSONUtils;
 import v7db.files.spi.Content;
+import v7db.files.spi.ContentDelta;
 import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
 import v7db.files.spi.ContentStorage;
 import v7db.files.spi.InlineContent;
 import v7db.files.spi.ReferenceTracking;
@@ -58,7 +61,10 @@ public class ContentStorageFacade {
 	public ContentPointer getContentPointer(BSONObject metaData) {
 		byte[] inline = (byte[]) metaData.get("in");
 		if (inline != null) {
-			return new InlineContent(inline);
+			Long length = BSONUtils.getLong(metaData, "length");
+			if (length == null)
+				return new InlineContent(inline);
+			return new InlineContent(inline, 0, length);
 		}
 		byte[] sha = (byte[]) metaData.get("sha");
 		if (sha == null)
@@ -107,7 +113,7 @@ public class ContentStorageFacade {
 		}
 
 		ContentPointer p = storage.storeContent(new ByteArrayInputStream(data,
-				offset, len));
+				offset, len), contentType);
 
 		refTracking.updateReferences(fileId, p);
 
@@ -126,7 +132,7 @@ public class ContentStorageFacade {
 			return insertContentsAndBackRefs(null, 0, 0, fileId, filename,
 					contentType);
 
-		ContentPointer p = storage.storeContent(data);
+		ContentPointer p = storage.storeContent(data, contentType);
 
 		refTracking.updateReferences(fileId, p);
 
@@ -178,6 +184,38 @@ public class ContentStorageFacade {
 
 	}
 
+	/**
+	 * stores the data as a delta against the base content (typically the
+	 * previous version of the same file).
+	 * 
+	 * @return null, if no (small enough) delta could be made, and the data
+	 *         should be stored in the normal way instead
+	 */
+	public BSONObject insertDeltaAndBackRefs(ContentPointer base,
+			byte[] data, int offset, int len, Object fileId, String filename,
+			String contentType) throws IOException {
+		if (base == null || base instanceof InlineContent)
+			return null;
+		// unchanged, no need to load the base (the data is already stored)
+		if (ContentSHA.calculate(data, offset, len).contentEquals(base))
+			return null;
+		Content baseContent = storage.getContent(base);
+		if (baseContent == null
+				|| ContentDelta.getDepth(baseContent) >= ContentDelta.MAX_DEPTH)
+			return null;
+		byte[] baseData = IOUtils.toByteArray(baseContent.getInputStream());
+		Map<String, Object> delta = ContentDelta.diff(base, baseContent,
+				baseData, data, offset, len);
+		if (delta == null)
+			return null;
+
+		ContentPointer p = storage.storeContent(delta);
+
+		refTracking.updateReferences(fileId, p);
+
+		return makeMetaData(filename, contentType, p);
+	}
+
 	public BSONObject updateBackRefs(ContentPointer content, Object fileId,
 			String filename, String contentType) throws IOException {
 		refTracking.updateReferences(fileId, content);
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for background work (so that they do not keep
+ * the JVM alive).
+ */
+
+public class DaemonThreadFactory implements ThreadFactory {
+
+	private final String name;
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	public DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files;
+
+import java.io.IOException;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+import v7db.files.mongodb.ContentCollector;
+
+import com.mongodb.MongoException;
+
+class GcCommand {
+
+	public static void main(String[] args) throws MongoException,
+			IOException, InterruptedException {
+
+		boolean dryRun = ArrayUtils.contains(args, "-n");
+		if (args.length != (dryRun ? 2 : 1)) {
+			System.err.println("Delete content that is no longer referenced:");
+			System.err.println("   gc [-n]");
+			System.err.println("      -n    dry run, only count");
+			System.exit(1);
+		}
+
+		ContentCollector gc = new ContentCollector(Configuration.getMongo()
+				.getDB(Configuration.getProperty("mongo.db")), Configuration
+				.getProperties());
+		gc.collect(dryRun);
+		System.out.println(gc);
+		if (dryRun)
+			System.out.println((gc.getGarbage() - gc.getPending())
+					+ " documents would be deleted");
+
+	}
+}
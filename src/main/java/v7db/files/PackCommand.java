@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files;
+
+import java.io.IOException;
+
+import v7db.files.mongodb.ContentPacker;
+import v7db.files.mongodb.MongoContentStorage;
+
+import com.mongodb.DB;
+import com.mongodb.MongoException;
+
+class PackCommand {
+
+	public static void main(String[] args) throws MongoException,
+			IOException, InterruptedException {
+
+		if (args.length != 1) {
+			System.err
+					.println("Pack small content together, and re-pack sparse packs:");
+			System.err.println("   pack");
+			System.exit(1);
+		}
+
+		DB db = Configuration.getMongo().getDB(
+				Configuration.getProperty("mongo.db"));
+		ContentPacker packer = new ContentPacker(new MongoContentStorage(db),
+				Configuration.getProperties());
+		packer.pack();
+		System.out.println(packer);
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files;
+
+import java.io.IOException;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+import v7db.files.mongodb.ContentScrubber;
+import v7db.files.mongodb.MongoContentStorage;
+
+import com.mongodb.DB;
+import com.mongodb.MongoException;
+
+class ScrubCommand {
+
+	public static void main(String[] args) throws MongoException,
+			IOException, InterruptedException {
+
+		boolean restart = ArrayUtils.contains(args, "-r");
+		if (args.length != (restart ? 2 : 1)) {
+			System.err
+					.println("Check that all stored content is intact (resumes an interrupted run):");
+			System.err.println("   scrub [-r]");
+			System.err.println("      -r    start from the beginning");
+			System.exit(1);
+		}
+
+		DB db = Configuration.getMongo().getDB(
+				Configuration.getProperty("mongo.db"));
+		// no cache, the data must come from the database
+		ContentScrubber scrubber = new ContentScrubber(new MongoContentStorage(
+				db), Configuration.getProperties());
+		if (restart)
+			scrubber.resetCheckpoint();
+		scrubber.scrub();
+		System.out.println(scrubber);
+		if (scrubber.getCorrupt() + scrubber.getDangling()
+				+ scrubber.getUnreadable() > 0)
+			System.exit(2);
+	}
+}
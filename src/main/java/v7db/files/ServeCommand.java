@@ -19,12 +19,15 @@ package v7db.files;
 
 import java.io.IOException;
 
+import org.apache.commons.lang3.math.NumberUtils;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 
 import v7db.files.buckets.BucketsServlet;
 import v7db.files.milton.MiltonServlet;
+import v7db.files.mongodb.ContentScrubber;
+import v7db.files.mongodb.MongoContentStorage;
 
 class ServeCommand {
 
@@ -74,6 +77,16 @@ class ServeCommand {
 
 		}
 
+		// background scrub of the default database
+		long scrubInterval = NumberUtils.toLong(Configuration
+				.getProperty("content.scrub.interval"));
+		if (scrubInterval > 0
+				&& !"local".equals(Configuration.getProperty("content.storage"))) {
+			new ContentScrubber(new MongoContentStorage(Configuration
+					.getMongo().getDB(Configuration.getProperty("mongo.db"))),
+					Configuration.getProperties()).schedule(scrubInterval);
+		}
+
 		int port = Integer.parseInt(Configuration.getProperty("http.port"));
 		final Server server = new Server(port);
 		server.setHandler(handler);
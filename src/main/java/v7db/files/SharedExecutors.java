@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide thread pools, shared by everyone who asks for a pool with the
+ * same name and number of threads (such as the content storages of all the
+ * tenants). The threads are daemons, and the pools live as long as the
+ * process, so they must not be shut down by their users.
+ */
+
+public class SharedExecutors {
+
+	private static final Map<String, ExecutorService> pools = new HashMap<String, ExecutorService>();
+
+	/**
+	 * @return the fixed-size pool with that name and size, created on first
+	 *         use
+	 */
+	public static synchronized ExecutorService getFixedThreadPool(String name,
+			int threads) {
+		String key = name + "/" + threads;
+		ExecutorService pool = pools.get(key);
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads,
+					new DaemonThreadFactory(name));
+			pools.put(key, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the pool with that name that grows as needed (and shrinks when
+	 *         idle), created on first use. The users must limit how many
+	 *         tasks they have running at the same time.
+	 */
+	public static synchronized ExecutorService getCachedThreadPool(String name) {
+		String key = name + "/cached";
+		ExecutorService pool = pools.get(key);
+		if (pool == null) {
+			pool = Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+			pools.put(key, pool);
+		}
+		return pool;
+	}
+
+}
@@ -23,7 +23,6 @@ import java.io.IOException;
 
 import v7db.files.mongodb.MongoContentStorage;
 import v7db.files.spi.ContentSHA;
-import v7db.files.spi.ContentStorage;
 
 import com.mongodb.MongoException;
 
@@ -38,24 +37,29 @@ class UploadCommand {
 			System.exit(1);
 		}
 
-		ContentStorage storage = new MongoContentStorage(Configuration
-				.getMongo().getDB(Configuration.getProperty("mongo.db")));
+		MongoContentStorage storage = new MongoContentStorage(Configuration
+				.getMongo().getDB(Configuration.getProperty("mongo.db")),
+				Configuration.getProperties());
 
 		for (int i = 1; i < args.length; i++) {
 			File f = new File(args[i]);
 			if (f.isFile() && f.canRead()) {
 				try {
+					long start = System.nanoTime();
 					ContentSHA up = storage
 							.storeContent(new FileInputStream(f));
+					long taken = Math.max(1, System.nanoTime() - start);
 
 					// TODO: display if chunked or not
-					System.out.format("-      %10d %80s %40s\n", f.length(), f
-							.getName(), up.getDigest());
+					System.out.format("-      %10d %80s %40s %10.2f MB/s\n", f
+							.length(), f.getName(), up.getDigest(), f.length()
+							* 1000d / taken);
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
 			}
 		}
+		CompressionPolicy.logStatistics();
 
 	}
 }
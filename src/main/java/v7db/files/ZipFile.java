@@ -17,29 +17,28 @@
 
 package v7db.files;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-import net.lingala.zip4j.core.HeaderReader;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.FileHeader;
-import net.lingala.zip4j.model.LocalFileHeader;
-import net.lingala.zip4j.model.ZipModel;
-import net.lingala.zip4j.unzip.UnzipEngine;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
 
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
 import v7db.files.spi.ContentStorage;
-import v7db.files.spi.InlineContent;
+import v7db.files.spi.OffsetAndLength;
 import v7db.files.spi.StorageScheme;
 
 /**
@@ -50,22 +49,45 @@ import v7db.files.spi.StorageScheme;
  * those is uploaded later separately, it will not take up extra storage).
  * <p>
  * Cannot be used for files protected by password or otherwise encrypted.
+ * <p>
+ * The archive is never copied as a whole: The end-of-central-directory
+ * record (and its ZIP64 variant) is found in the last 64 KB, the central
+ * directory is read from where that points to, and then only the local
+ * headers of the entries that are stored.
  * 
  * 
  */
 
 public class ZipFile {
 
+	/**
+	 * An entry in a zip archive that is stored as a whole (base), from its
+	 * local header (off) to the end of its data (end). Stored entries are a
+	 * range of the archive, deflated ones are inflated while being streamed.
+	 */
 	public static final class ContentFromZipFile implements StorageScheme {
 
 		public Content getContent(ContentStorage storage,
 				Map<String, Object> data) throws IOException {
 			byte[] base = MapUtils.getRequiredBytes(data, "base.sha");
 			long offset = MapUtils.getRequiredLong(data, "off");
-			long length = MapUtils.getRequiredLong(data, "end") - offset;
-			byte[] unzipped = IOUtils.toByteArray(Compression.unzip(storage
-					.getContent(base).getInputStream(offset, length)));
-			return new InlineContent(unzipped);
+			long end = MapUtils.getRequiredLong(data, "end");
+			long length = MapUtils.getRequiredLong(data, "length");
+			Content zip = storage.getContent(base);
+			if (zip == null)
+				throw new IllegalArgumentException("base content not found: "
+						+ data.get("base"));
+			byte[] lh = readFully(zip, offset, LOCAL_HEADER_SIZE);
+			if (getInt(lh, 0) != LOCAL_HEADER)
+				throw new ZipException("invalid local header at " + offset);
+			long dataStart = offset + LOCAL_HEADER_SIZE + getShort(lh, 26)
+					+ getShort(lh, 28);
+			int method = getShort(lh, 8);
+			if (method == STORED)
+				return new OffsetAndLength(zip, dataStart, length);
+			if (method == DEFLATED)
+				return new Deflated(zip, dataStart, end - dataStart, length);
+			throw new ZipException("unsupported compression method " + method);
 		}
 
 		public String getId() {
@@ -74,6 +96,152 @@ public class ZipFile {
 
 	}
 
+	private static final class Deflated implements Content {
+
+		private final Content zip;
+
+		private final long dataStart, compressedLength, length;
+
+		Deflated(Content zip, long dataStart, long compressedLength,
+				long length) {
+			this.zip = zip;
+			this.dataStart = dataStart;
+			this.compressedLength = compressedLength;
+			this.length = length;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return getInputStream(0, length);
+		}
+
+		public InputStream getInputStream(long offset, long length)
+				throws IOException {
+			if (offset < 0 || offset > this.length)
+				throw new IndexOutOfBoundsException("offset " + offset
+						+ " is out of bounds");
+			if (length < 0 || offset + length > this.length)
+				throw new IndexOutOfBoundsException("length " + length
+						+ " is out of bounds (offset: " + offset + ")");
+			if (length == 0)
+				return new ByteArrayInputStream(ArrayUtils.EMPTY_BYTE_ARRAY);
+			return new InflatingStream(offset, length);
+		}
+
+		/**
+		 * Inflates from the compressed range of the archive. Everything
+		 * before the requested offset is discarded, and nothing is read
+		 * after the requested length has been produced.
+		 */
+		private final class InflatingStream extends InputStream {
+
+			private InputStream in;
+
+			private Inflater inflater;
+
+			private final byte[] buffer = new byte[8192];
+
+			private long toSkip;
+
+			private long remaining;
+
+			InflatingStream(long offset, long length) {
+				toSkip = offset;
+				remaining = length;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				if (read(b, 0, 1) == -1)
+					return -1;
+				return b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (remaining <= 0) {
+					close();
+					return -1;
+				}
+				if (in == null) {
+					in = zip.getInputStream(dataStart, compressedLength);
+					inflater = Compression.borrowInflater();
+				}
+				if (toSkip > 0) {
+					byte[] discard = new byte[(int) Math.min(toSkip, 8192)];
+					while (toSkip > 0)
+						toSkip -= inflate(discard, 0, (int) Math.min(toSkip,
+								discard.length));
+				}
+				int n = inflate(b, off, (int) Math.min(len, remaining));
+				remaining -= n;
+				if (remaining == 0)
+					close();
+				return n;
+			}
+
+			private int inflate(byte[] b, int off, int len) throws IOException {
+				try {
+					int n;
+					while ((n = inflater.inflate(b, off, len)) == 0) {
+						if (inflater.finished() || inflater.needsDictionary())
+							throw new EOFException(
+									"unexpected end of deflated data");
+						if (inflater.needsInput()) {
+							int read = in.read(buffer);
+							if (read == -1)
+								throw new EOFException(
+										"unexpected end of deflated data");
+							inflater.setInput(buffer, 0, read);
+						}
+					}
+					return n;
+				} catch (DataFormatException e) {
+					throw new ZipException(e.getMessage());
+				}
+			}
+
+			/**
+			 * skipping is deferred until the next read, so that skipping to
+			 * the end never inflates anything
+			 */
+			@Override
+			public long skip(long n) {
+				if (n <= 0)
+					return 0;
+				n = Math.min(n, remaining);
+				toSkip += n;
+				remaining -= n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(remaining, Integer.MAX_VALUE);
+			}
+
+			@Override
+			public void close() throws IOException {
+				remaining = 0;
+				if (inflater != null) {
+					Compression.releaseInflater(inflater);
+					inflater = null;
+				}
+				if (in != null) {
+					in.close();
+					in = null;
+				}
+			}
+		}
+
+	}
+
 	/**
 	 * index all individual files found in a zip archive already in storage
 	 * 
@@ -85,36 +253,15 @@ public class ZipFile {
 		if (zip == null)
 			throw new IllegalArgumentException("invalid ContentPointer "
 					+ zipFile);
-
-		File tmp = File.createTempFile("v7files_zipfile_extractfile_", ".zip");
 		try {
-			OutputStream f = new FileOutputStream(tmp);
-			IOUtils.copy(zip.getInputStream(), f);
-			f.close();
-
-			// open up the zip file
-			HeaderReader r = new HeaderReader(new RandomAccessFile(tmp, "r"));
-			ZipModel model = r.readAllHeaders();
-			model.setZipFile(tmp.getAbsolutePath());
 			Map<String, Object> map = zipFile.serialize();
-			List<?> fhs = model.getCentralDirectory().getFileHeaders();
-			for (Object _fh : fhs) {
-				FileHeader fh = (FileHeader) _fh;
-				UnzipEngine en = new UnzipEngine(model, fh);
-				// this will read the local file header
-				en.getInputStream();
-				LocalFileHeader lh = en.getLocalFileHeader();
-
-				store(storage, map, fh, lh);
-
+			for (Entry e : readCentralDirectory(zip)) {
+				store(storage, map, zip, e);
 			}
-
 		} catch (ZipException e) {
 			throw new IllegalArgumentException(
 					"ContentPointer does not refer to a zip file: " + zipFile,
 					e);
-		} finally {
-			tmp.delete();
 		}
 
 	}
@@ -136,52 +283,237 @@ public class ZipFile {
 		if (zip == null)
 			throw new IllegalArgumentException("invalid ContentPointer "
 					+ zipFile);
-
-		File tmp = File.createTempFile("v7files_zipfile_extractfile_", ".zip");
 		try {
-			OutputStream f = new FileOutputStream(tmp);
-			IOUtils.copy(zip.getInputStream(), f);
-			f.close();
-
-			// open up the zip file
-			HeaderReader r = new HeaderReader(new RandomAccessFile(tmp, "r"));
-			ZipModel model = r.readAllHeaders();
-			model.setZipFile(tmp.getAbsolutePath());
-
-			List<?> fhs = model.getCentralDirectory().getFileHeaders();
-			for (Object _fh : fhs) {
-				FileHeader fh = (FileHeader) _fh;
-				if (fileName.equals(fh.getFileName())) {
-					UnzipEngine en = new UnzipEngine(model, fh);
-					// this will read the local file header
-					en.getInputStream();
-					LocalFileHeader lh = en.getLocalFileHeader();
-					return store(storage, zipFile.serialize(), fh, lh);
-				}
-
+			for (Entry e : readCentralDirectory(zip)) {
+				if (fileName.equals(e.name))
+					return store(storage, zipFile.serialize(), zip, e);
 			}
-
 		} catch (ZipException e) {
 			throw new IllegalArgumentException(
 					"ContentPointer does not refer to a zip file: " + zipFile,
 					e);
-		} finally {
-			tmp.delete();
 		}
 		throw new FileNotFoundException("ContentPointer does not contain "
 				+ fileName + ": " + zipFile);
 	}
 
 	private static ContentPointer store(ContentStorage storage,
-			Map<String, Object> zipFile, FileHeader fh, LocalFileHeader lh)
+			Map<String, Object> zipFile, Content zip, Entry e)
 			throws IOException {
+		// the local header can have a different "extra" field
+		byte[] lh = readFully(zip, e.localHeaderOffset, LOCAL_HEADER_SIZE);
+		if (getInt(lh, 0) != LOCAL_HEADER)
+			throw new ZipException("invalid local header for " + e.name);
+		long dataStart = e.localHeaderOffset + LOCAL_HEADER_SIZE
+				+ getShort(lh, 26) + getShort(lh, 28);
+		long end = dataStart + e.compressedSize;
+		if ((e.flags & DATA_DESCRIPTOR_FLAG) != 0) {
+			// the sizes follow the data, they are part of the entry
+			int size = e.zip64 ? 20 : 12;
+			if (end + 4 <= zip.getLength()
+					&& getInt(readFully(zip, end, 4), 0) == DATA_DESCRIPTOR)
+				size += 4;
+			end = Math.min(end + size, zip.getLength());
+		}
+
 		Map<String, Object> cat = new HashMap<String, Object>();
 		cat.put("store", "zip");
 		cat.put("base", zipFile);
-		cat.put("off", fh.getOffsetLocalHeader());
-		cat.put("length", fh.getUncompressedSize());
-		cat.put("end", lh.getOffsetStartOfData() + lh.getCompressedSize());
+		cat.put("off", e.localHeaderOffset);
+		cat.put("length", e.uncompressedSize);
+		cat.put("end", end);
 		return storage.storeContent(cat);
 	}
 
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+
+	private static final int CENTRAL_HEADER = 0x02014b50;
+
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+	private static final int ZIP64_EXTRA = 0x0001;
+
+	private static final int STORED = 0;
+
+	private static final int DEFLATED = 8;
+
+	private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+
+	private static final int UTF8_FLAG = 1 << 11;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Charset CP437 = Charset.forName("IBM437");
+
+	/**
+	 * what the central directory says about an entry
+	 */
+	private static final class Entry {
+
+		String name;
+
+		int flags;
+
+		long compressedSize;
+
+		long uncompressedSize;
+
+		long localHeaderOffset;
+
+		/**
+		 * has a ZIP64 extra field (and 64-bit sizes in the data descriptor)
+		 */
+		boolean zip64;
+
+	}
+
+	private static List<Entry> readCentralDirectory(Content zip)
+			throws IOException {
+		long length = zip.getLength();
+		if (length < END_OF_CENTRAL_DIRECTORY_SIZE)
+			throw new ZipException("too short for a zip file");
+
+		// the EOCD is followed by a comment of up to 64 KB
+		int tailLength = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE
+				+ ZIP64_LOCATOR_SIZE + 0xFFFF);
+		long tailStart = length - tailLength;
+		byte[] tail = readFully(zip, tailStart, tailLength);
+		int eocd = -1;
+		for (int i = tail.length - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+			if (getInt(tail, i) == END_OF_CENTRAL_DIRECTORY
+					&& i + END_OF_CENTRAL_DIRECTORY_SIZE
+							+ getShort(tail, i + 20) == tail.length) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1)
+			throw new ZipException("end of central directory not found");
+
+		long entries = getShort(tail, eocd + 10);
+		long directorySize = getUnsignedInt(tail, eocd + 12);
+		long directoryOffset = getUnsignedInt(tail, eocd + 16);
+		if (entries == 0xFFFF || directorySize == 0xFFFFFFFFL
+				|| directoryOffset == 0xFFFFFFFFL) {
+			int locator = eocd - ZIP64_LOCATOR_SIZE;
+			if (locator < 0 || getInt(tail, locator) != ZIP64_LOCATOR)
+				throw new ZipException("ZIP64 locator not found");
+			long zip64Offset = getLong(tail, locator + 8);
+			byte[] zip64 = readFully(zip, zip64Offset,
+					ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+			if (getInt(zip64, 0) != ZIP64_END_OF_CENTRAL_DIRECTORY)
+				throw new ZipException(
+						"ZIP64 end of central directory not found");
+			entries = getLong(zip64, 32);
+			directorySize = getLong(zip64, 40);
+			directoryOffset = getLong(zip64, 48);
+		}
+		if (directoryOffset < 0 || directorySize < 0
+				|| directoryOffset + directorySize > length)
+			throw new ZipException("invalid central directory location");
+
+		List<Entry> result = new ArrayList<Entry>((int) Math.min(entries,
+				10000));
+		DataInputStream in = new DataInputStream(zip.getInputStream(
+				directoryOffset, directorySize));
+		try {
+			byte[] header = new byte[CENTRAL_HEADER_SIZE];
+			for (long i = 0; i < entries; i++) {
+				in.readFully(header);
+				if (getInt(header, 0) != CENTRAL_HEADER)
+					throw new ZipException("invalid central directory header");
+				byte[] name = new byte[getShort(header, 28)];
+				in.readFully(name);
+				byte[] extra = new byte[getShort(header, 30)];
+				in.readFully(extra);
+				IOUtils.skipFully(in, getShort(header, 32)); // comment
+
+				Entry e = new Entry();
+				e.flags = getShort(header, 8);
+				e.name = new String(name, (e.flags & UTF8_FLAG) != 0 ? UTF8
+						: CP437);
+				e.compressedSize = getUnsignedInt(header, 20);
+				e.uncompressedSize = getUnsignedInt(header, 24);
+				e.localHeaderOffset = getUnsignedInt(header, 42);
+				readZip64Extra(e, extra);
+				result.add(e);
+			}
+		} catch (EOFException e) {
+			throw new ZipException("truncated central directory");
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	/**
+	 * the ZIP64 extra field has the 64-bit values for those fields that are
+	 * set to 0xFFFFFFFF in the header (and only those, in this order)
+	 */
+	private static void readZip64Extra(Entry e, byte[] extra) {
+		for (int i = 0; i + 4 <= extra.length;) {
+			int id = getShort(extra, i);
+			int size = getShort(extra, i + 2);
+			int pos = i + 4;
+			i = pos + size;
+			if (id != ZIP64_EXTRA || i > extra.length)
+				continue;
+			e.zip64 = true;
+			if (e.uncompressedSize == 0xFFFFFFFFL && pos + 8 <= i) {
+				e.uncompressedSize = getLong(extra, pos);
+				pos += 8;
+			}
+			if (e.compressedSize == 0xFFFFFFFFL && pos + 8 <= i) {
+				e.compressedSize = getLong(extra, pos);
+				pos += 8;
+			}
+			if (e.localHeaderOffset == 0xFFFFFFFFL && pos + 8 <= i)
+				e.localHeaderOffset = getLong(extra, pos);
+		}
+	}
+
+	private static byte[] readFully(Content zip, long offset, int length)
+			throws IOException {
+		if (offset < 0 || offset + length > zip.getLength())
+			throw new ZipException("offset " + offset + " out of bounds");
+		InputStream in = zip.getInputStream(offset, length);
+		try {
+			return IOUtils.toByteArray(in, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int getShort(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return getShort(b, off) | getShort(b, off + 2) << 16;
+	}
+
+	private static long getUnsignedInt(byte[] b, int off) {
+		return getInt(b, off) & 0xFFFFFFFFL;
+	}
+
+	private static long getLong(byte[] b, int off) {
+		return getUnsignedInt(b, off) | (long) getInt(b, off + 4) << 32;
+	}
+
 }
@@ -22,7 +22,7 @@ import java.util.Properties;
 
 import v7db.files.Configuration;
 import v7db.files.ContentStorageFacade;
-import v7db.files.mongodb.MongoContentStorage;
+import v7db.files.mongodb.ContentStorageFactory;
 import v7db.files.mongodb.MongoReferenceTracking;
 import v7db.files.mongodb.Tenants;
 
@@ -55,8 +55,9 @@ public class BucketsServiceConfiguration {
 	}
 
 	public ContentStorageFacade getContentStorage() {
-		return new ContentStorageFacade(new MongoContentStorage(db),
-				new MongoReferenceTracking(db));
+		return new ContentStorageFacade(ContentStorageFactory
+				.getContentStorage(db, properties), new MongoReferenceTracking(
+				db));
 	}
 
 }
@@ -336,7 +336,9 @@ public class BucketsServlet extends HttpServlet {
 			response.setHeader("Content-disposition", "attachment; filename=\""
 					+ name + "\"");
 
-		response.setContentLength((int) content.getLength());
+		// setContentLength only takes an int
+		response.setHeader("Content-Length", String.valueOf(content
+				.getLength()));
 
 		InputStream in = content.getInputStream();
 		try {
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Records appended to segment files in a local directory, and addressed by
+ * their position.
+ * <p>
+ * A record never spans two segments, so a position is simply
+ * <code>segment * segmentSize + offset</code>. Records are never changed or
+ * removed (reclaiming space would mean re-writing segments, which is not
+ * implemented).
+ * <p>
+ * Appended records are durable only after {@link #sync()}.
+ * <p>
+ * Writes go through a RandomAccessFile rather than a FileChannel: Interrupting
+ * a thread that is writing to a channel closes the channel, and the store
+ * would be unusable from then on.
+ * <p>
+ * There can only be one writer for a directory: Within the process, everyone
+ * who {@link #open(File, long)}s it shares the same store. Other processes
+ * cannot open it while the file lock on <code>lock</code> in the directory
+ * is held.
+ */
+
+public class AppendOnlyStore {
+
+	/**
+	 * by the canonical path of the directory
+	 */
+	private static final Map<String, AppendOnlyStore> stores = new HashMap<String, AppendOnlyStore>();
+
+	private final String key;
+
+	private int users;
+
+	private final File dir;
+
+	private final RandomAccessFile lockFile;
+
+	private final FileLock lock;
+
+	private final long segmentSize;
+
+	private int segment = -1;
+
+	private RandomAccessFile out;
+
+	private long offset;
+
+	/**
+	 * @param segmentSize
+	 *            the max size of a segment file (larger records get a segment
+	 *            of their own), only used if the store is not open already
+	 * @return the store for the directory, shared by everyone in the process
+	 *         who opens it. Every one of them has to close it.
+	 * @throws IOException
+	 *             also if another process has the directory open
+	 */
+	public static synchronized AppendOnlyStore open(File dir, long segmentSize)
+			throws IOException {
+		String key = dir.getCanonicalPath();
+		AppendOnlyStore store = stores.get(key);
+		if (store == null) {
+			store = new AppendOnlyStore(key, dir, segmentSize);
+			stores.put(key, store);
+		}
+		store.users++;
+		return store;
+	}
+
+	private AppendOnlyStore(String key, File dir, long segmentSize)
+			throws IOException {
+		this.key = key;
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		FileUtils.forceMkdir(dir);
+		lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+		FileLock l;
+		try {
+			l = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			l = null;
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+		if (l == null) {
+			lockFile.close();
+			throw new IOException(dir + " is in use by another process");
+		}
+		lock = l;
+		// continue after the last existing segment
+		String[] names = dir.list();
+		if (names != null)
+			for (String name : names) {
+				if (name.endsWith(".seg"))
+					segment = Math.max(segment, Integer.parseInt(name
+							.substring(0, name.length() - 4)));
+			}
+	}
+
+	private File getFile(int segment) {
+		return new File(dir, String.format("%08d.seg", segment));
+	}
+
+	/**
+	 * @return the position of the record
+	 */
+	public synchronized long append(byte[] record) throws IOException {
+		if (out == null || offset + record.length > segmentSize) {
+			if (out != null)
+				out.getFD().sync();
+			closeSegment();
+			segment++;
+			out = new RandomAccessFile(getFile(segment), "rw");
+			offset = 0;
+		}
+		long position = segment * segmentSize + offset;
+		out.seek(offset);
+		out.write(record);
+		offset += record.length;
+		return position;
+	}
+
+	/**
+	 * makes the records appended so far durable
+	 */
+	public synchronized void sync() throws IOException {
+		if (out != null)
+			out.getFD().sync();
+	}
+
+	public byte[] read(long position, int length) throws IOException {
+		File file = getFile((int) (position / segmentSize));
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] record = new byte[length];
+			in.seek(position % segmentSize);
+			in.readFully(record);
+			return record;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * releases the store, it is closed when everyone who opened it has
+	 * closed it
+	 */
+	public void close() throws IOException {
+		synchronized (AppendOnlyStore.class) {
+			if (--users > 0)
+				return;
+			stores.remove(key);
+		}
+		synchronized (this) {
+			try {
+				closeSegment();
+			} finally {
+				try {
+					lock.release();
+				} finally {
+					lockFile.close();
+				}
+			}
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+}
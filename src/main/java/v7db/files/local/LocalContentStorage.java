@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.local;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.BSON;
+import org.bson.BasicBSONObject;
+
+import v7db.files.MapUtils;
+import v7db.files.ZipFile;
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentConcatenation;
+import v7db.files.spi.ContentDelta;
+import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.ContentStorage;
+import v7db.files.spi.GzippedContent;
+import v7db.files.spi.InlineContent;
+import v7db.files.spi.OffsetAndLength;
+import v7db.files.spi.StorageScheme;
+import v7db.files.spi.StoredContent;
+
+/**
+ * ContentStorage in a local directory, one file per SHA, in sub-directories by
+ * the first two bytes (<code>ab/cd/abcd...</code>).
+ * <p>
+ * Content is written to a temporary file first (in <code>tmp</code>), and then
+ * moved into place, so that there is never a partial file under a SHA. Reads
+ * are served from memory-mapped files (in windows of
+ * <code>content.local.map.bytes</code>), see {@link MappedContent}.
+ * <p>
+ * Content is stored in one piece and uncompressed (the content type hint is
+ * ignored), so that any range can be mapped directly. "Out-of-band" content
+ * (zip entries, deltas) is stored as its storage scheme document, BSON-encoded
+ * in a file with a <code>.bson</code> suffix.
+ * 
+ */
+
+public class LocalContentStorage implements ContentStorage {
+
+	private final File root;
+
+	private final File tmp;
+
+	private final long mapSize;
+
+	/**
+	 * fsync new files before moving them into place
+	 */
+	private final boolean sync;
+
+	private final Map<String, StorageScheme> storageSchemes = new HashMap<String, StorageScheme>();
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public LocalContentStorage(File root, Properties props) throws IOException {
+		this.root = root;
+		tmp = new File(root, "tmp");
+		FileUtils.forceMkdir(tmp);
+		mapSize = props == null ? 64 * 1024 * 1024 : NumberUtils.toLong(props
+				.getProperty("content.local.map.bytes"), 64 * 1024 * 1024);
+		sync = props == null
+				|| BooleanUtils.toBoolean(props.getProperty(
+						"content.local.sync", "true"));
+		storageSchemes.put("gz", new GzippedContent());
+		storageSchemes.put("cat", new ContentConcatenation());
+		storageSchemes.put("zip", new ZipFile.ContentFromZipFile());
+		storageSchemes.put("delta", new ContentDelta());
+	}
+
+	private File getFile(byte[] sha) {
+		String hex = Hex.encodeHexString(sha);
+		return new File(root, hex.substring(0, 2) + File.separatorChar
+				+ hex.substring(2, 4) + File.separatorChar + hex);
+	}
+
+	private static File getSchemeFile(File file) {
+		return new File(file.getPath() + ".bson");
+	}
+
+	public Content getContent(byte[] sha) throws IOException {
+		File file = getFile(sha);
+		if (file.isFile())
+			return new MappedContent(file, file.length(), mapSize);
+		File scheme = getSchemeFile(file);
+		if (scheme.isFile()) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> data = (Map<String, Object>) BSON.decode(
+					FileUtils.readFileToByteArray(scheme)).toMap();
+			return getContent(data);
+		}
+		return null;
+	}
+
+	public Content getContent(ContentPointer pointer) throws IOException {
+		if (pointer == null)
+			return null;
+		if (pointer instanceof InlineContent)
+			return (Content) pointer;
+
+		byte[] sha;
+		if (pointer instanceof ContentSHA)
+			sha = ((ContentSHA) pointer).getSHA();
+		else if (pointer instanceof StoredContent)
+			sha = ((StoredContent) pointer).getBaseSHA();
+		else
+			throw new IllegalArgumentException(pointer.getClass().toString());
+
+		Content base = getContent(sha);
+		if (base == null)
+			throw new IllegalArgumentException("base SHA not found: "
+					+ Hex.encodeHexString(sha));
+		if (pointer instanceof StoredContent
+				&& pointer.getLength() != base.getLength())
+			return new OffsetAndLength(base, 0, pointer.getLength());
+		return base;
+	}
+
+	/**
+	 * Supported formats are the same as for
+	 * {@link v7db.files.mongodb.MongoContentStorage#getContent(Map)}
+	 */
+	public Content getContent(Map<String, Object> data) throws IOException {
+		if (data == null)
+			return null;
+		String store = MapUtils.getString(data, "store");
+		if (store == null || "raw".equals(store)) {
+			if (data.containsKey("in"))
+				return InlineContent.deserialize(data);
+			if (data.containsKey("sha")) {
+				return new StoredContent((byte[]) data.get("sha"), MapUtils
+						.getRequiredLong(data, "length")).loadOrLazyLoad(this,
+						8 * 1024);
+			}
+			throw new UnsupportedOperationException(data.toString());
+		}
+
+		StorageScheme s = storageSchemes.get(store);
+		if (s == null)
+			throw new UnsupportedOperationException(store);
+
+		return s.getContent(this, data);
+	}
+
+	public ContentSHA storeContent(InputStream data) throws IOException {
+		return storeContent(data, null);
+	}
+
+	public ContentSHA storeContent(InputStream data, String contentType)
+			throws IOException {
+		try {
+			File temp = File.createTempFile("store", null, tmp);
+			try {
+				MessageDigest sha = MessageDigest.getInstance("SHA");
+				long length = 0;
+				FileOutputStream out = new FileOutputStream(temp);
+				try {
+					byte[] buffer = new byte[64 * 1024];
+					int read;
+					while ((read = data.read(buffer)) != -1) {
+						sha.update(buffer, 0, read);
+						out.write(buffer, 0, read);
+						length += read;
+					}
+					if (sync)
+						out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				byte[] digest = sha.digest();
+				moveIntoPlace(temp, getFile(digest));
+				return ContentSHA.forDigestAndLength(digest, length);
+			} finally {
+				// still there if it was not needed (or something failed)
+				temp.delete();
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} finally {
+			IOUtils.closeQuietly(data);
+		}
+	}
+
+	public ContentPointer storeContent(Map<String, Object> storageScheme)
+			throws IOException {
+		StorageScheme s = storageSchemes.get(storageScheme.get("store"));
+		if (s == null)
+			throw new UnsupportedOperationException(storageScheme.toString());
+
+		long length = MapUtils.getRequiredLong(storageScheme, "length");
+		byte[] sha = DigestUtils.sha(s.getContent(this, storageScheme)
+				.getInputStream());
+
+		File file = getFile(sha);
+		if (!file.exists()) {
+			File temp = File.createTempFile("store", null, tmp);
+			try {
+				FileUtils.writeByteArrayToFile(temp, BSON
+						.encode(new BasicBSONObject(storageScheme)));
+				moveIntoPlace(temp, getSchemeFile(file));
+			} finally {
+				temp.delete();
+			}
+		}
+		return new StoredContent(sha, length);
+	}
+
+	/**
+	 * moves the temporary file to the target, unless it is already there
+	 * (which means it has the same content)
+	 */
+	private void moveIntoPlace(File temp, File target) throws IOException {
+		if (target.exists())
+			return;
+		FileUtils.forceMkdir(target.getParentFile());
+		Files.move(temp.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
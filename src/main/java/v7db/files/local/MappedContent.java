@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+import v7db.files.spi.Content;
+
+/**
+ * Content of a local file, read by mapping it into memory.
+ * <p>
+ * Streams map at most <code>mapSize</code> bytes at a time (a mapping cannot
+ * be larger than 2GB anyway), and only the part they are asked for.
+ */
+
+final class MappedContent implements Content {
+
+	private final File file;
+
+	private final long length;
+
+	private final long mapSize;
+
+	MappedContent(File file, long length, long mapSize) {
+		this.file = file;
+		this.length = length;
+		this.mapSize = Math.max(4096, Math.min(mapSize, Integer.MAX_VALUE));
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return getInputStream(0, length);
+	}
+
+	public InputStream getInputStream(long offset, long length)
+			throws IOException {
+		if (offset < 0 || offset > this.length)
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ " is out of bounds");
+		if (length < 0 || offset + length > this.length)
+			throw new IndexOutOfBoundsException("length " + length
+					+ " is out of bounds (offset: " + offset + ")");
+		if (length == 0)
+			return new ByteArrayInputStream(ArrayUtils.EMPTY_BYTE_ARRAY);
+		return new MappedInputStream(offset, length);
+	}
+
+	private MappedByteBuffer map(long position, long size) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid after the file is closed
+			return f.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					position, size);
+		} finally {
+			f.close();
+		}
+	}
+
+	private final class MappedInputStream extends InputStream {
+
+		/**
+		 * the file position of the next byte to read
+		 */
+		private long position;
+
+		private long remaining;
+
+		private MappedByteBuffer buffer;
+
+		MappedInputStream(long offset, long length) {
+			position = offset;
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) == -1)
+				return -1;
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining <= 0)
+				return -1;
+			if (buffer == null || !buffer.hasRemaining())
+				buffer = map(position, Math.min(remaining, mapSize));
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		/**
+		 * skips within the current mapping, or starts a new one on the next
+		 * read
+		 */
+		@Override
+		public long skip(long n) {
+			if (n <= 0)
+				return 0;
+			n = Math.min(n, remaining);
+			if (buffer != null && n < buffer.remaining())
+				buffer.position(buffer.position() + (int) n);
+			else
+				buffer = null;
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			if (buffer == null)
+				return 0;
+			return buffer.remaining();
+		}
+
+		@Override
+		public void close() {
+			buffer = null;
+			remaining = 0;
+		}
+
+	}
+
+}
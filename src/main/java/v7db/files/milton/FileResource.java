@@ -30,24 +30,25 @@ import v7db.files.mongodb.V7File;
 
 import com.bradmcevoy.http.Auth;
 import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.CompressedResource;
 import com.bradmcevoy.http.CopyableResource;
 import com.bradmcevoy.http.DeletableResource;
 import com.bradmcevoy.http.GetableResource;
-import com.bradmcevoy.http.HttpManager;
 import com.bradmcevoy.http.MoveableResource;
 import com.bradmcevoy.http.PropFindableResource;
 import com.bradmcevoy.http.Range;
 import com.bradmcevoy.http.Request;
 import com.bradmcevoy.http.Resource;
-import com.bradmcevoy.http.Response;
 import com.bradmcevoy.http.Request.Method;
 import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.ConflictException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 import com.bradmcevoy.http.exceptions.NotFoundException;
+import com.bradmcevoy.io.StreamUtils;
 
 class FileResource implements GetableResource, PropFindableResource,
-		MoveableResource, DeletableResource, CopyableResource {
+		MoveableResource, DeletableResource, CopyableResource,
+		CompressedResource {
 
 	final V7File file;
 
@@ -58,6 +59,11 @@ class FileResource implements GetableResource, PropFindableResource,
 	// to match the URL part
 	final String name;
 
+	// a resource only lives for a single request
+	private Long gzipLength;
+
+	private boolean gzipLengthKnown;
+
 	FileResource(String name, V7File file, ResourceFactory factory) {
 		this.file = file;
 		this.name = name;
@@ -83,27 +89,66 @@ class FileResource implements GetableResource, PropFindableResource,
 	public void sendContent(OutputStream out, Range range,
 			Map<String, String> params, String contentType) throws IOException,
 			NotAuthorizedException, BadRequestException, NotFoundException {
-
-		Request request = HttpManager.request();
-		if (StringUtils.contains(request.getAcceptEncodingHeader(), "gzip")) {
-			Long len = file.getGZipLength();
-			if (len != null) {
-				InputStream content = file.getInputStreamWithGzipContents();
-				Response response = HttpManager.response();
-				response
-						.setContentEncodingHeader(Response.ContentEncoding.GZIP);
-				response.setVaryHeader("Accept-Encoding");
-				response.setContentLengthHeader(len);
-				MiltonServlet.response().setContentLength(len.intValue());
-				IOUtils.copy(content, out);
+		InputStream content;
+		if (range == null) {
+			content = file.getInputStream();
+		} else {
+			// the finish is inclusive, and can be beyond the end
+			Long length = file.getLength();
+			long finish = length == null ? range.getFinish() : Math.min(range
+					.getFinish(), length - 1);
+			if (finish < range.getStart())
 				return;
-			}
+			content = file.getInputStream(range.getStart(), finish
+					- range.getStart() + 1);
+		}
+		if (content == null)
+			throw new BadRequestException("file has no contents");
+		try {
+			IOUtils.copy(content, out);
+		} finally {
+			content.close();
+		}
+	}
+
+	/**
+	 * @see V7File#getGZipLength()
+	 */
+	private Long getGZipLength() {
+		if (!gzipLengthKnown) {
+			gzipLength = file.getGZipLength();
+			gzipLengthKnown = true;
 		}
+		return gzipLength;
+	}
+
+	public String getSupportedEncoding(String acceptableEncodings) {
+		if (StringUtils.containsIgnoreCase(acceptableEncodings, "gzip")
+				&& getGZipLength() != null)
+			return "gzip";
+		return null;
+	}
 
-		InputStream content = file.getInputStream();
+	public Long getCompressedContentLength(String contentEncoding) {
+		Long len = getGZipLength();
+		if (len == null || len < 0)
+			return null;
+		return len;
+	}
+
+	public void sendCompressedContent(String contentEncoding, OutputStream out,
+			Range range, Map<String, String> params, String contentType)
+			throws IOException, NotAuthorizedException, BadRequestException,
+			NotFoundException {
+		InputStream content = file.getInputStreamWithGzipContents();
 		if (content == null)
 			throw new BadRequestException("file has no contents");
-		IOUtils.copy(content, out);
+		try {
+			// tells reading and writing problems apart
+			StreamUtils.readTo(content, out);
+		} finally {
+			content.close();
+		}
 	}
 
 	public Object authenticate(String user, String password) {
@@ -96,9 +96,10 @@ public class MiltonServlet extends com.bradmcevoy.http.MiltonServlet {
 				for (Handler h : x.getHandlers()) {
 					if (h instanceof com.bradmcevoy.http.http11.GetHandler) {
 						httpManager.addFilter(0, new GetHandler(
-								new DefaultWebDavResponseHandler(
-										new AuthenticationService()), p
-										.getHandlerHelper()));
+								new StoredGzipResponseHandler(
+										new DefaultWebDavResponseHandler(
+												new AuthenticationService())),
+								p.getHandlerHelper()));
 						break handlers;
 					}
 				}
@@ -45,7 +45,8 @@ public class ResourceFactoryFactory implements
 	}
 
 	public WebDavResponseHandler createResponseHandler() {
-		return new DefaultWebDavResponseHandler(new AuthenticationService());
+		return new StoredGzipResponseHandler(new DefaultWebDavResponseHandler(
+				new AuthenticationService()));
 	}
 
 	public void init() {
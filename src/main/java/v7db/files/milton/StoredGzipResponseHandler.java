@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.milton;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bradmcevoy.http.AbstractWrappingResponseHandler;
+import com.bradmcevoy.http.Auth;
+import com.bradmcevoy.http.CompressedResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.Response;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.bradmcevoy.http.exceptions.NotFoundException;
+import com.bradmcevoy.http.http11.CacheControlHelper;
+import com.bradmcevoy.http.http11.DefaultCacheControlHelper;
+import com.bradmcevoy.http.http11.DefaultHttp11ResponseHandler;
+import com.bradmcevoy.http.webdav.WebDavResponseHandler;
+import com.bradmcevoy.io.WritingException;
+
+/**
+ * Sends content that is stored gzip-compressed as it is (with
+ * <code>Content-Encoding: gzip</code>) to clients that accept that. Everything
+ * else goes to the wrapped handler.
+ * <p>
+ * Unlike milton's CompressingResponseHandler, this never compresses anything
+ * on the fly (which would have to buffer the whole response to find its
+ * length).
+ */
+
+class StoredGzipResponseHandler extends AbstractWrappingResponseHandler {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(StoredGzipResponseHandler.class);
+
+	private final CacheControlHelper cacheControlHelper = new DefaultCacheControlHelper();
+
+	StoredGzipResponseHandler(WebDavResponseHandler wrapped) {
+		super(wrapped);
+	}
+
+	@Override
+	public void respondContent(Resource resource, Response response,
+			Request request, Map<String, String> params)
+			throws NotAuthorizedException, BadRequestException,
+			NotFoundException {
+		String encoding = null;
+		if (resource instanceof CompressedResource
+				&& resource instanceof GetableResource)
+			encoding = ((CompressedResource) resource)
+					.getSupportedEncoding(request.getAcceptEncodingHeader());
+		if (encoding == null) {
+			wrapped.respondContent(resource, response, request, params);
+			return;
+		}
+
+		CompressedResource r = (CompressedResource) resource;
+		GetableResource gr = (GetableResource) resource;
+		Auth auth = request.getAuthorization();
+		response.setStatus(Response.Status.SC_OK);
+		response.setDateHeader(new Date());
+		String etag = wrapped.generateEtag(resource);
+		if (etag != null)
+			response.setEtag(etag);
+		DefaultHttp11ResponseHandler.setModifiedDate(response, resource, auth);
+		String contentType = gr.getContentType(request.getAcceptHeader());
+		if (contentType != null)
+			response.setContentTypeHeader(contentType);
+		cacheControlHelper.setCacheControl(gr, response, auth);
+		Long length = r.getCompressedContentLength(encoding);
+		if (length != null)
+			response.setContentLengthHeader(length);
+		response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+		response.setVaryHeader("Accept-Encoding");
+		try {
+			r.sendCompressedContent(encoding, response.getOutputStream(), null,
+					params, contentType);
+		} catch (WritingException e) {
+			log.warn("exception writing, client probably closed connection", e);
+		} catch (IOException e) {
+			// do not let a truncated response look complete
+			throw new RuntimeException("exception reading compressed content",
+					e);
+		}
+	}
+
+}
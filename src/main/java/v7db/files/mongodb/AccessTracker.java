@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.WriteConcern;
+
+/**
+ * Counts how often (and when last) stored content is read.
+ * <p>
+ * Reads are counted in memory and added to the access collection (
+ * <code>{ _id: sha, last: date, count: n }</code>) by {@link #flush()}, so
+ * that reading does not cause a database write every time.
+ */
+
+class AccessTracker {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(AccessTracker.class);
+
+	private final DBCollection accessCollection;
+
+	private final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	AccessTracker(DBCollection accessCollection) {
+		this.accessCollection = accessCollection;
+	}
+
+	void accessed(byte[] sha) {
+		String key = Hex.encodeHexString(sha);
+		AtomicInteger c = counts.get(key);
+		if (c == null) {
+			c = new AtomicInteger();
+			AtomicInteger other = counts.putIfAbsent(key, c);
+			if (other != null)
+				c = other;
+		}
+		c.incrementAndGet();
+	}
+
+	/**
+	 * writes the reads counted so far to the database
+	 */
+	void flush() {
+		Date now = new Date();
+		int n = 0;
+		for (Iterator<Map.Entry<String, AtomicInteger>> i = counts.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<String, AtomicInteger> e = i.next();
+			i.remove();
+			int count = e.getValue().getAndSet(0);
+			try {
+				accessCollection.update(new BasicDBObject(_ID, Hex
+						.decodeHex(e.getKey().toCharArray())),
+						new BasicDBObject("$set", new BasicDBObject("last",
+								now)).append("$inc", new BasicDBObject(
+								"count", count)), true, false,
+						WriteConcern.NORMAL);
+				n++;
+			} catch (DecoderException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		if (n > 0)
+			log.debug("recorded reads of " + n + " contents");
+	}
+
+}
@@ -145,7 +145,7 @@ public class BSONUtils {
 				+ "` into a Boolean");
 	}
 
-	static Long getLong(BSONObject b, String fieldName) {
+	public static Long getLong(BSONObject b, String fieldName) {
 		return toLong(get(b, fieldName));
 	}
 
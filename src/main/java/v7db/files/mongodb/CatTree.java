@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.ChunkPipeline.get;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.TreeHash;
+
+/**
+ * Builds the "cat" document(s) for the chunks of a single upload, while they
+ * are being stored.
+ * <p>
+ * One "cat" document has at most <code>fanOut</code> entries. When there are
+ * more chunks than that, the documents are concatenated by "cat" documents of
+ * their own, and so on. Only the one incomplete document of every level is
+ * kept in memory.
+ * <p>
+ * Every document is stored under the SHA of its content, so the bytes of all
+ * documents except for the first one on every level have to be hashed
+ * separately (the first one is covered by the SHA of the whole upload).
+ * <p>
+ * Optionally, the root of the {@link TreeHash} is calculated as well, and
+ * stored with the top document. Chunks of exactly one leaf (that start at a
+ * leaf boundary) are leaves already, their SHA comes from the pipeline. Only
+ * the other bytes (all of them, with content-defined chunking) need to be
+ * hashed again.
+ */
+
+class CatTree {
+
+	private final MongoContentStorage storage;
+
+	private final ChunkPipeline pipeline;
+
+	private final int fanOut;
+
+	private final MessageDigest completeSHA = newDigest();
+
+	private long completeLength;
+
+	private int chunkCount;
+
+	/**
+	 * the leaves so far (Future&lt;ContentSHA&gt; from the pipeline, or
+	 * byte[]), null if there is no tree hash
+	 */
+	private final List<Object> leaves;
+
+	/**
+	 * for the leaf that is not a single chunk
+	 */
+	private final MessageDigest leaf;
+
+	private int leafLength;
+
+	/**
+	 * the root of the tree hash, once known
+	 */
+	private byte[] tree;
+
+	/**
+	 * the incomplete document on every level, starting with the one for the
+	 * chunks
+	 */
+	private final List<Level> levels = new ArrayList<Level>();
+
+	private static final class Level {
+
+		final List<Future<ContentSHA>> entries = new ArrayList<Future<ContentSHA>>();
+
+		long length;
+
+		/**
+		 * null for the first document on this level
+		 */
+		MessageDigest digest;
+
+	}
+
+	/**
+	 * @param treeHash
+	 *            also calculate the root of the {@link TreeHash}
+	 */
+	CatTree(MongoContentStorage storage, ChunkPipeline pipeline, int fanOut,
+			boolean treeHash) {
+		this.storage = storage;
+		this.pipeline = pipeline;
+		this.fanOut = Math.max(2, fanOut);
+		leaves = treeHash ? new ArrayList<Object>() : null;
+		leaf = treeHash ? newDigest() : null;
+	}
+
+	/**
+	 * the buffer is handed over to the pipeline, and must not be touched by
+	 * the caller after this
+	 */
+	void add(byte[] buffer, int length) throws IOException {
+		closeFull();
+		completeSHA.update(buffer, 0, length);
+		for (Level l : levels) {
+			if (l.digest != null)
+				l.digest.update(buffer, 0, length);
+		}
+		completeLength += length;
+		chunkCount++;
+		boolean isLeaf = leafLength == 0 && length == TreeHash.LEAF_SIZE;
+		if (leaves != null && !isLeaf)
+			addToLeaves(buffer, length);
+		Future<ContentSHA> sha = pipeline.add(buffer, length);
+		if (leaves != null && isLeaf)
+			leaves.add(sha);
+		append(0, sha, length);
+	}
+
+	private void addToLeaves(byte[] buffer, int length) {
+		int pos = 0;
+		while (pos < length) {
+			int n = Math.min(TreeHash.LEAF_SIZE - leafLength, length - pos);
+			leaf.update(buffer, pos, n);
+			leafLength += n;
+			pos += n;
+			if (leafLength == TreeHash.LEAF_SIZE) {
+				leaves.add(leaf.digest());
+				leafLength = 0;
+			}
+		}
+	}
+
+	private void append(int level, Future<ContentSHA> entry, long length)
+			throws IOException {
+		if (level == levels.size())
+			levels.add(new Level());
+		Level l = levels.get(level);
+		l.entries.add(entry);
+		l.length += length;
+	}
+
+	/**
+	 * closes the levels that are full. This is deferred until more is added,
+	 * because a full level can also turn out to be the top (which gets the
+	 * tree hash).
+	 */
+	private void closeFull() throws IOException {
+		// closing a level can fill the one above
+		for (int i = 0; i < levels.size(); i++) {
+			if (levels.get(i).entries.size() == fanOut)
+				close(i);
+		}
+	}
+
+	/**
+	 * stores the document for the completed (or final) entries of the level,
+	 * and adds it to the level above
+	 */
+	private void close(int level) throws IOException {
+		close(level, null);
+	}
+
+	private void close(int level, byte[] tree) throws IOException {
+		Level l = levels.get(level);
+		byte[] sha = l.digest == null ? copy(completeSHA).digest() : l.digest
+				.digest();
+		final ContentSHA node = ContentSHA.forDigestAndLength(sha, l.length);
+		List<Map<String, Object>> bases = new ArrayList<Map<String, Object>>(
+				l.entries.size());
+		for (Future<ContentSHA> e : l.entries) {
+			bases.add(get(e).serialize());
+		}
+		// a document must not be stored before what it refers to
+		pipeline.sync();
+		storage.storeCat(sha, bases, tree);
+
+		long length = l.length;
+		l.entries.clear();
+		l.length = 0;
+		l.digest = newDigest();
+
+		FutureTask<ContentSHA> stored = new FutureTask<ContentSHA>(
+				new Callable<ContentSHA>() {
+					public ContentSHA call() {
+						return node;
+					}
+				});
+		stored.run();
+		append(level + 1, stored, length);
+	}
+
+	/**
+	 * waits until all chunks are stored, and stores the remaining documents
+	 * 
+	 * @return the ContentPointer for the whole upload (with the tree hash, if
+	 *         requested), null if there were no chunks at all
+	 */
+	ContentSHA finish() throws IOException {
+		pipeline.sync();
+		if (chunkCount == 0)
+			return null;
+		if (leaves != null) {
+			if (leafLength > 0)
+				leaves.add(leaf.digest());
+			List<byte[]> hashes = new ArrayList<byte[]>(leaves.size());
+			for (Object o : leaves) {
+				if (o instanceof byte[])
+					hashes.add((byte[]) o);
+				else {
+					@SuppressWarnings("unchecked")
+					Future<ContentSHA> f = (Future<ContentSHA>) o;
+					hashes.add(get(f).getSHA());
+				}
+			}
+			tree = TreeHash.root(hashes);
+		}
+		for (int i = 0; i < levels.size() - 1; i++) {
+			Level l = levels.get(i);
+			if (l.entries.isEmpty())
+				continue;
+			if (l.entries.size() == 1) {
+				// no need for a document with just one entry
+				append(i + 1, l.entries.remove(0), l.length);
+				l.length = 0;
+				continue;
+			}
+			close(i);
+		}
+		Level top = levels.get(levels.size() - 1);
+		if (top.entries.size() > 1)
+			close(levels.size() - 1, tree);
+		ContentSHA result = get(levels.get(levels.size() - 1).entries.get(0));
+		return tree == null ? result : result.withTree(tree);
+	}
+
+	long getLength() {
+		return completeLength;
+	}
+
+	int getChunkCount() {
+		return chunkCount;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static MessageDigest copy(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,434 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.bson.BSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import v7db.files.DaemonThreadFactory;
+import v7db.files.spi.CompressedContent;
+import v7db.files.spi.Content;
+import v7db.files.spi.GzippedContent;
+
+import com.mongodb.DBCollection;
+
+/**
+ * In-memory cache for chunk documents, keyed by their SHA.
+ * <p>
+ * Chunks are kept in one of two forms, each with its own byte budget:
+ * <ul>
+ * <li>gzipped chunks enter the cache in their compressed form
+ * (<code>zin</code>), which is small but needs to be inflated on every read.
+ * <li>When a compressed chunk is requested again, it is inflated once and
+ * moves to the inflated form (keeping the compressed bytes as well, so that
+ * it can still be sent gzipped). Uncompressed chunks (<code>in</code>) enter
+ * there directly.
+ * </ul>
+ * Both forms are segmented LRU caches: new entries are on probation, and are
+ * only protected from eviction after they have been hit again. One-off reads
+ * of large files thus cannot flush out the popular chunks.
+ * <p>
+ * Content documents are immutable, so there is no need for invalidation.
+ * <p>
+ * There is only one cache per budget in the process (see
+ * {@link #getShared(long, long, long)}), shared by all storages, so the
+ * budget is not multiplied by the number of tenants. Entries are kept apart by
+ * the content collection they were read from. The statistics are logged
+ * periodically.
+ */
+
+public class ChunkCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ChunkCache.class);
+
+	/**
+	 * by the two budgets
+	 */
+	private static final Map<String, ChunkCache> caches = new HashMap<String, ChunkCache>();
+
+	private final Slru compressed;
+
+	private final Slru inflated;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private static final GzippedContent gz = new GzippedContent();
+
+	/**
+	 * @param logMinutes
+	 *            how often the statistics are logged (only used when the
+	 *            cache is created), 0 for never
+	 * @return the shared cache with these budgets
+	 */
+	static synchronized ChunkCache getShared(long compressedBytes,
+			long inflatedBytes, long logMinutes) {
+		String key = compressedBytes + "/" + inflatedBytes;
+		ChunkCache cache = caches.get(key);
+		if (cache == null) {
+			cache = new ChunkCache(compressedBytes, inflatedBytes);
+			if (logMinutes > 0)
+				cache.logEvery(logMinutes);
+			caches.put(key, cache);
+		}
+		return cache;
+	}
+
+	ChunkCache(long compressedBytes, long inflatedBytes) {
+		compressed = new Slru(compressedBytes);
+		inflated = new Slru(inflatedBytes);
+	}
+
+	private void logEvery(long minutes) {
+		ScheduledExecutorService scheduler = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+						"v7files-chunk-cache"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			long requests;
+
+			public void run() {
+				// nothing to say if it has not been used since last time
+				long r = getHits() + getMisses();
+				if (r != requests)
+					log.info(ChunkCache.this.toString());
+				requests = r;
+			}
+		}, minutes, minutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param collection
+	 *            the content collection the chunk is read from
+	 * @return the cached chunk, or null
+	 */
+	Content get(DBCollection collection, byte[] sha) throws IOException {
+		Key key = new Key(collection, sha);
+		Entry e = inflated.get(key);
+		if (e != null) {
+			hits.incrementAndGet();
+			return e.getContent();
+		}
+		e = compressed.get(key);
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		Content c = inflate(e.zin);
+		if (inflated.budget == 0)
+			return c;
+		// keep the zin, for those who want to send it gzipped
+		e = new Entry(IOUtils.toByteArray(c.getInputStream()), e.zin);
+		if (!inflated.put(new Key(collection, sha.clone()), e))
+			return c;
+		compressed.remove(key);
+		return e.getContent();
+	}
+
+	/**
+	 * admits the chunk document (if it is a chunk, i.e. not a reference to
+	 * other content)
+	 */
+	void put(DBCollection collection, byte[] sha, BSONObject chunk) {
+		Object store = chunk.get("store");
+		if (store == null || "raw".equals(store)) {
+			Object in = chunk.get("in");
+			if (in instanceof byte[] && !chunk.containsField("length")
+					&& !chunk.containsField("offset"))
+				inflated.put(new Key(collection, sha.clone()), new Entry(
+						(byte[]) in, null));
+		} else if ("gz".equals(store)) {
+			Object zin = chunk.get("zin");
+			if (zin instanceof byte[])
+				compressed.put(new Key(collection, sha.clone()), new Entry(
+						null, (byte[]) zin));
+		}
+	}
+
+	private static Content inflate(byte[] zin) throws IOException {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("zin", zin);
+		return gz.getContent(null, data);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return compressed.getEvictions() + inflated.getEvictions();
+	}
+
+	/**
+	 * @return the number of bytes currently cached
+	 */
+	public long getSize() {
+		return compressed.getSize() + inflated.getSize();
+	}
+
+	@Override
+	public String toString() {
+		return "chunk cache: " + getSize() + " bytes, " + hits + " hits, "
+				+ misses + " misses, " + getEvictions() + " evictions";
+	}
+
+	/**
+	 * segmented LRU: entries start out in the probation segment, and move to
+	 * the protected segment (at most 80% of the budget) when they are hit.
+	 * Entries dropping out of the protected segment get another chance on
+	 * probation.
+	 */
+	private static final class Slru {
+
+		private final long budget;
+
+		private final long protectedBudget;
+
+		private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<Key, Entry>(
+				16, 0.75f, true);
+
+		private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<Key, Entry>(
+				16, 0.75f, true);
+
+		private long probationSize, protectedSize;
+
+		private long evictions;
+
+		Slru(long budget) {
+			this.budget = Math.max(0, budget);
+			protectedBudget = this.budget / 5 * 4;
+		}
+
+		/**
+		 * the bytes, plus a rough estimate of the bookkeeping overhead
+		 */
+		private static long weight(Entry value) {
+			return (value.data == null ? 0 : value.data.length)
+					+ (value.zin == null ? 0 : value.zin.length) + 128;
+		}
+
+		synchronized Entry get(Key key) {
+			Entry value = protectedSegment.get(key);
+			if (value != null)
+				return value;
+			value = probation.remove(key);
+			if (value == null)
+				return null;
+			probationSize -= weight(value);
+			protectedSegment.put(key, value);
+			protectedSize += weight(value);
+			Iterator<Map.Entry<Key, Entry>> eldest = protectedSegment
+					.entrySet().iterator();
+			while (protectedSize > protectedBudget && eldest.hasNext()) {
+				Map.Entry<Key, Entry> e = eldest.next();
+				eldest.remove();
+				protectedSize -= weight(e.getValue());
+				probation.put(e.getKey(), e.getValue());
+				probationSize += weight(e.getValue());
+			}
+			trim();
+			return value;
+		}
+
+		/**
+		 * @return false, if the value is too big to be cached
+		 */
+		synchronized boolean put(Key key, Entry value) {
+			if (weight(value) > budget / 4)
+				return false;
+			if (probation.containsKey(key)
+					|| protectedSegment.containsKey(key))
+				return true;
+			probation.put(key, value);
+			probationSize += weight(value);
+			trim();
+			return true;
+		}
+
+		synchronized Entry remove(Key key) {
+			Entry value = probation.remove(key);
+			if (value != null) {
+				probationSize -= weight(value);
+				return value;
+			}
+			value = protectedSegment.remove(key);
+			if (value != null)
+				protectedSize -= weight(value);
+			return value;
+		}
+
+		private void trim() {
+			Iterator<Entry> eldest = probation.values().iterator();
+			while (probationSize + protectedSize > budget && eldest.hasNext()) {
+				probationSize -= weight(eldest.next());
+				eldest.remove();
+				evictions++;
+			}
+		}
+
+		synchronized long getEvictions() {
+			return evictions;
+		}
+
+		synchronized long getSize() {
+			return probationSize + protectedSize;
+		}
+	}
+
+	/**
+	 * the SHA of a chunk, in the content collection it was read from
+	 */
+	private static final class Key {
+
+		/**
+		 * by identity, the driver hands out one instance per collection
+		 */
+		private final DBCollection collection;
+
+		private final byte[] sha;
+
+		private final int hash;
+
+		Key(DBCollection collection, byte[] sha) {
+			this.collection = collection;
+			this.sha = sha;
+			hash = Arrays.hashCode(sha);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key) obj;
+			return collection == k.collection && Arrays.equals(sha, k.sha);
+		}
+	}
+
+	/**
+	 * a cached chunk: the inflated data, the gzipped data, or both
+	 */
+	private static final class Entry {
+
+		/**
+		 * null, if not inflated yet
+		 */
+		final byte[] data;
+
+		/**
+		 * null, if stored uncompressed
+		 */
+		final byte[] zin;
+
+		Entry(byte[] data, byte[] zin) {
+			this.data = data;
+			this.zin = zin;
+		}
+
+		/**
+		 * only for inflated entries
+		 */
+		Content getContent() {
+			return zin == null ? new CachedContent(data)
+					: new CachedGzippedContent(data, zin);
+		}
+	}
+
+	/**
+	 * an inflated chunk, streamed straight from the cached array
+	 */
+	private static class CachedContent implements Content {
+
+		private final byte[] data;
+
+		CachedContent(byte[] data) {
+			this.data = data;
+		}
+
+		public long getLength() {
+			return data.length;
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(data);
+		}
+
+		public InputStream getInputStream(long offset, long length) {
+			if (offset < 0 || offset > data.length)
+				throw new IndexOutOfBoundsException("offset " + offset
+						+ " is out of bounds");
+			if (length < 0 || offset + length > data.length)
+				throw new IndexOutOfBoundsException("length " + length
+						+ " is out of bounds (offset: " + offset + ")");
+			return new ByteArrayInputStream(data, (int) offset, (int) length);
+		}
+
+	}
+
+	/**
+	 * an inflated chunk that was stored gzipped, and can still be sent that
+	 * way
+	 */
+	private static final class CachedGzippedContent extends CachedContent
+			implements CompressedContent {
+
+		private final byte[] zin;
+
+		CachedGzippedContent(byte[] data, byte[] zin) {
+			super(data);
+			this.zin = zin;
+		}
+
+		public boolean isCompressed() {
+			return true;
+		}
+
+		public InputStream getCompressedInputStream() {
+			return new ByteArrayInputStream(zin);
+		}
+
+		public long getCompressedLength() {
+			return zin.length;
+		}
+
+	}
+
+}
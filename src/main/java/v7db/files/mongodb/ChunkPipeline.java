@@ -0,0 +1,420 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.apache.commons.codec.binary.Hex;
+
+import v7db.files.CompressionPolicy;
+import v7db.files.spi.ContentSHA;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Stores the chunks of a single upload.
+ * <p>
+ * Chunks are hashed and compressed on the "cpu" Executor, and written in
+ * batches on the "io" Executor, at most <code>writers</code> batches at the
+ * same time. At most <code>window</code> chunks are in flight (read from the
+ * input, but not yet stored), their buffers are re-used after that.
+ * <p>
+ * With the {@link #DIRECT} Executor, everything happens on the calling thread.
+ * <p>
+ * Chunks are normally inserted with an acknowledged write each. Without
+ * acknowledgement, they are just sent, and the next {@link #sync()} (or every
+ * <code>maxUnacknowledged</code> chunks) is a barrier: A single count on the
+ * same connection makes sure that all of them have been stored, and fails
+ * with an IOException if not. This needs the "io" Executor to be
+ * {@link #DIRECT}, and the calling thread to be in a request (
+ * {@link com.mongodb.DB#requestStart()}).
+ */
+
+class ChunkPipeline {
+
+	static final Executor DIRECT = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final DBCollection contentCollection;
+
+	/**
+	 * can be null
+	 */
+	private final ShaFilter filter;
+
+	private final PackIndex packs;
+
+	private final Executor cpu, io;
+
+	private final int writers;
+
+	private final CompressionPolicy compression;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private final int batchSize;
+
+	private final int chunkSize;
+
+	private final int window;
+
+	private int allocatedBuffers = 0;
+
+	private final BlockingQueue<byte[]> freeBuffers;
+
+	private final List<Future<?>> writes = new ArrayList<Future<?>>();
+
+	private List<Chunk> batch;
+
+	private volatile Throwable failure;
+
+	private final AtomicInteger newChunks = new AtomicInteger();
+
+	/**
+	 * 0, if every insert is acknowledged
+	 */
+	private final int maxUnacknowledged;
+
+	/**
+	 * inserted, but not confirmed by a barrier yet
+	 */
+	private final List<byte[]> unacknowledged = new ArrayList<byte[]>();
+
+	/**
+	 * just send the inserts, and keep going if some of the chunks are there
+	 * already
+	 */
+	private static final WriteConcern UNACKNOWLEDGED = new WriteConcern(0, 0,
+			false, false, true);
+
+	private static final class Chunk {
+
+		final byte[] buffer;
+
+		final int length;
+
+		final Future<ContentSHA> sha;
+
+		final int level;
+
+		Chunk(byte[] buffer, int length, Future<ContentSHA> sha, int level) {
+			this.buffer = buffer;
+			this.length = length;
+			this.sha = sha;
+			this.level = level;
+		}
+
+	}
+
+	ChunkPipeline(DBCollection contentCollection, ShaFilter filter,
+			PackIndex packs, CompressionPolicy compression, Executor cpu,
+			Executor io, int writers, int chunkSize, int batchSize, int window,
+			int maxUnacknowledged) {
+		this.contentCollection = contentCollection;
+		this.filter = filter;
+		this.packs = packs;
+		this.compression = compression;
+		this.cpu = cpu;
+		this.io = io;
+		this.writers = Math.max(1, writers);
+		this.chunkSize = chunkSize;
+		this.batchSize = batchSize;
+		// need to be able to fill at least one batch
+		this.window = Math.max(window, batchSize);
+		if (maxUnacknowledged > 0 && io != DIRECT)
+			throw new IllegalArgumentException(
+					"unacknowledged inserts need to be done on the calling thread");
+		this.maxUnacknowledged = maxUnacknowledged;
+		freeBuffers = new ArrayBlockingQueue<byte[]>(this.window);
+		batch = new ArrayList<Chunk>(batchSize);
+	}
+
+	/**
+	 * @return an empty buffer to read the next chunk into, blocks if too many
+	 *         chunks are in flight
+	 */
+	byte[] nextBuffer() throws IOException {
+		checkFailure();
+		byte[] buffer = freeBuffers.poll();
+		if (buffer != null)
+			return buffer;
+		if (allocatedBuffers < window) {
+			allocatedBuffers++;
+			return new byte[chunkSize];
+		}
+		try {
+			buffer = freeBuffers.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		checkFailure();
+		return buffer;
+	}
+
+	/**
+	 * for the chunks added from now on
+	 */
+	void setCompressionLevel(int level) {
+		compressionLevel = level;
+	}
+
+	/**
+	 * hands back a buffer obtained from {@link #nextBuffer()} that was not
+	 * used
+	 */
+	void release(byte[] buffer) {
+		freeBuffers.offer(buffer);
+	}
+
+	/**
+	 * the buffer must not be touched by the caller after this
+	 * 
+	 * @return the ContentPointer for the chunk, once it has been hashed
+	 */
+	Future<ContentSHA> add(final byte[] buffer, final int length)
+			throws IOException {
+		Future<ContentSHA> sha = submit(cpu, new Callable<ContentSHA>() {
+			public ContentSHA call() {
+				return ContentSHA.calculate(buffer, 0, length);
+			}
+		});
+		batch.add(new Chunk(buffer, length, sha, compressionLevel));
+		if (batch.size() == batchSize)
+			flush();
+		return sha;
+	}
+
+	private void flush() throws IOException {
+		// forget about the batches that have been written already
+		for (Iterator<Future<?>> i = writes.iterator(); i.hasNext();) {
+			Future<?> w = i.next();
+			if (w.isDone()) {
+				get(w);
+				i.remove();
+			}
+		}
+		if (batch.isEmpty())
+			return;
+		// the io Executor does not limit how many run at the same time
+		while (writes.size() >= writers)
+			get(writes.remove(0));
+		final List<Chunk> b = batch;
+		batch = new ArrayList<Chunk>(batchSize);
+		writes.add(submit(io, new Callable<Void>() {
+			public Void call() throws Exception {
+				try {
+					write(b);
+					return null;
+				} catch (Exception e) {
+					failure = e;
+					throw e;
+				} finally {
+					for (Chunk c : b) {
+						release(c.buffer);
+					}
+				}
+			}
+		}));
+	}
+
+	/**
+	 * waits until all chunks added so far have been stored (more can be added
+	 * afterwards)
+	 */
+	void sync() throws IOException {
+		flush();
+		for (Future<?> w : writes) {
+			get(w);
+		}
+		writes.clear();
+		barrier();
+	}
+
+	/**
+	 * makes sure that the unacknowledged inserts so far have been stored
+	 */
+	private void barrier() throws IOException {
+		if (unacknowledged.isEmpty())
+			return;
+		int expected = unacknowledged.size();
+		long stored = contentCollection.count(new BasicDBObject(_ID,
+				new BasicDBObject("$in", unacknowledged)));
+		unacknowledged.clear();
+		if (stored != expected) {
+			IOException e = new IOException((expected - stored) + " of "
+					+ expected + " chunks have not been stored");
+			failure = e;
+			throw e;
+		}
+	}
+
+	private void write(List<Chunk> b) throws IOException {
+		List<ContentSHA> shas = new ArrayList<ContentSHA>(b.size());
+		List<byte[]> ids = new ArrayList<byte[]>(b.size());
+		for (Chunk c : b) {
+			ContentSHA sha = get(c.sha);
+			shas.add(sha);
+			ids.add(sha.getSHA());
+		}
+
+		// no need to ask about the chunks that are definitely new
+		List<byte[]> unknown = ids;
+		if (filter != null) {
+			unknown = new ArrayList<byte[]>(ids.size());
+			for (byte[] id : ids) {
+				if (!filter.isDefinitelyNew(id))
+					unknown.add(id);
+			}
+		}
+
+		Set<String> existing = new HashSet<String>();
+		if (!unknown.isEmpty())
+			for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+					new BasicDBObject("$in", unknown)), new BasicDBObject(
+					_ID, 1))) {
+				existing.add(Hex.encodeHexString((byte[]) o.get(_ID)));
+			}
+		if (existing.size() < unknown.size()) {
+			// or packed
+			List<byte[]> missing = new ArrayList<byte[]>();
+			for (byte[] id : unknown)
+				if (!existing.contains(Hex.encodeHexString(id)))
+					missing.add(id);
+			existing.addAll(packs.locate(packs.mayBePacked(missing)).keySet());
+		}
+		if (!existing.isEmpty()) {
+			// about to be referenced again
+			List<byte[]> hits = new ArrayList<byte[]>(existing.size());
+			for (byte[] id : unknown)
+				if (existing.contains(Hex.encodeHexString(id)))
+					hits.add(id);
+			ContentCollector.touch(contentCollection, hits);
+		}
+
+		List<Future<DBObject>> docs = new ArrayList<Future<DBObject>>();
+		for (int i = 0; i < b.size(); i++) {
+			final ContentSHA sha = shas.get(i);
+			final Chunk c = b.get(i);
+			// also skips duplicate chunks within the batch
+			if (existing.add(sha.getDigest()))
+				docs.add(submit(cpu, new Callable<DBObject>() {
+					public DBObject call() {
+						return MongoContentStorage.chunkDocument(sha.getSHA(),
+								c.buffer, 0, c.length, compression, c.level);
+					}
+				}));
+		}
+		if (!docs.isEmpty())
+			insert(docs);
+		if (filter != null)
+			for (byte[] id : ids) {
+				filter.add(id);
+			}
+	}
+
+	private void insert(List<Future<DBObject>> docs) throws IOException {
+		List<DBObject> inserts = new ArrayList<DBObject>(docs.size());
+		for (Future<DBObject> d : docs) {
+			inserts.add(get(d));
+		}
+		newChunks.addAndGet(inserts.size());
+		if (maxUnacknowledged > 0) {
+			contentCollection.insert(inserts, UNACKNOWLEDGED);
+			for (DBObject chunk : inserts)
+				unacknowledged.add((byte[]) chunk.get(_ID));
+			if (unacknowledged.size() >= maxUnacknowledged)
+				barrier();
+			return;
+		}
+		try {
+			contentCollection.insert(inserts, WriteConcern.SAFE);
+		} catch (MongoException.DuplicateKey e) {
+			// someone else stored some of the same chunks in the meantime
+			List<byte[]> hits = new ArrayList<byte[]>();
+			for (DBObject chunk : inserts) {
+				try {
+					contentCollection.insert(chunk, WriteConcern.SAFE);
+				} catch (MongoException.DuplicateKey ignored) {
+					hits.add((byte[]) chunk.get(_ID));
+				}
+			}
+			ContentCollector.touch(contentCollection, hits);
+		}
+	}
+
+	/**
+	 * @return how many chunks were not stored before (so far)
+	 */
+	int getNewChunkCount() {
+		return newChunks.get();
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable f = failure;
+		if (f instanceof IOException)
+			throw (IOException) f;
+		if (f != null)
+			throw new IOException(f);
+	}
+
+	private static <T> Future<T> submit(Executor executor, Callable<T> task) {
+		FutureTask<T> f = new FutureTask<T>(task);
+		executor.execute(f);
+		return f;
+	}
+
+	static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+}
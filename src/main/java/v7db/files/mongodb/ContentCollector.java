@@ -0,0 +1,468 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Removes content that is no longer referenced.
+ * <p>
+ * Mark: All content referenced by owners in <code>v7files.refs</code> that
+ * have not been purged (<code>refHistory</code>, so that older versions stay
+ * readable) is live, and so is everything that live content refers to (the
+ * <code>base</code> of "cat", "zip" and "delta" documents, transitively). The
+ * live set is kept in a Bloom filter: A false positive only means that a
+ * piece of garbage survives this run.
+ * <p>
+ * Sweep: The content collection is scanned in <code>_id</code> order, in
+ * batches (property <code>content.gc.batch</code>), with at most
+ * <code>content.gc.rate</code> documents deleted per second. Unreferenced
+ * content is not deleted when first seen, but recorded in the
+ * <code>v7files.content.gc</code> collection. Only if it is still
+ * unreferenced when seen again after <code>content.gc.grace</code> minutes,
+ * it is deleted. This protects uploads that have stored their content, but
+ * not yet their references.
+ * <p>
+ * Content that is stored again (deduplicated) after it has been recorded is
+ * touched (see {@link #touch(DBCollection, Collection)}), together with everything it
+ * refers to: Their records get a <code>seen</code> time, and they have the
+ * full grace period again from then on. The records are read again right before deleting, so an upload that
+ * deduplicates against a candidate while the (throttled) sweep is running
+ * keeps it. Only a dedup hit in the short moment between that second look
+ * and the delete itself can still lose the content. For content that has
+ * been moved to the cold tier, only the stub is deleted (the space in the
+ * cold tier is not reclaimed).
+ * <p>
+ * Packs (see {@link PackedContent}) are not garbage themselves, but their
+ * members can be: Those are only removed from the {@link PackIndex}, the
+ * {@link ContentPacker} re-packs the pack when enough of them are gone.
+ */
+
+public class ContentCollector {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ContentCollector.class);
+
+	public final static String CANDIDATES_COLLECTION_NAME = "v7files.content.gc";
+
+	/**
+	 * storage schemes that do not refer to other content
+	 */
+	static final List<String> LEAVES = Arrays.asList("raw", "gz",
+			"tier", "pack");
+
+	private final DBCollection contentCollection;
+
+	private final DBCollection refCollection;
+
+	private final DBCollection candidates;
+
+	private final DBCollection accessCollection;
+
+	private final PackIndex packs;
+
+	private final long grace;
+
+	private final int batchSize;
+
+	private final long deletesPerSecond;
+
+	private final AtomicLong owners = new AtomicLong(), marked = new AtomicLong(),
+			scanned = new AtomicLong(), garbage = new AtomicLong(),
+			pending = new AtomicLong(), deleted = new AtomicLong();
+
+	private volatile String phase = "idle";
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public ContentCollector(DB db, Properties props) {
+		if (props == null)
+			props = new Properties();
+		contentCollection = db
+				.getCollection(MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME);
+		refCollection = db
+				.getCollection(MongoReferenceTracking.DEFAULT_REFERENCE_COLLECTION_NAME);
+		candidates = db.getCollection(CANDIDATES_COLLECTION_NAME);
+		accessCollection = db
+				.getCollection(TieredContentStorage.ACCESS_COLLECTION_NAME);
+		packs = new PackIndex(db);
+		grace = NumberUtils.toLong(props.getProperty("content.gc.grace"),
+				24 * 60) * 60 * 1000;
+		batchSize = Math.max(1, NumberUtils.toInt(props
+				.getProperty("content.gc.batch"), 100));
+		deletesPerSecond = Math.max(1, NumberUtils.toLong(props
+				.getProperty("content.gc.rate"), 1000));
+	}
+
+	/**
+	 * runs a full mark and sweep on the calling thread
+	 * 
+	 * @param dryRun
+	 *            only count the garbage, do not record or delete anything
+	 */
+	public synchronized void collect(boolean dryRun)
+			throws InterruptedException {
+		long start = System.currentTimeMillis();
+		for (AtomicLong a : new AtomicLong[] { owners, marked, scanned,
+				garbage, pending, deleted })
+			a.set(0);
+		try {
+			phase = "mark";
+			ShaFilter.Bloom live = mark();
+			phase = "sweep";
+			sweep(live, start, dryRun);
+		} finally {
+			phase = "idle";
+		}
+		log.info((dryRun ? "dry run: " : "") + this + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private ShaFilter.Bloom mark() {
+		ShaFilter.Bloom live = new ShaFilter.Bloom(Math.max(2 * (contentCollection
+				.count() + packs.estimateCount()), 1 << 20));
+		// depth-first, so that only a few levels of a big tree are pending
+		LinkedList<byte[]> pending = new LinkedList<byte[]>();
+		Set<String> expanded = new HashSet<String>();
+		DBCursor refs = refCollection.find(new BasicDBObject("purge",
+				new BasicDBObject("$exists", false)), new BasicDBObject(
+				"refs", 1).append("refHistory", 1));
+		try {
+			for (DBObject owner : refs) {
+				owners.incrementAndGet();
+				Object shas = owner.get("refHistory");
+				if (shas == null)
+					shas = owner.get("refs");
+				if (shas instanceof List<?>)
+					for (Object sha : (List<?>) shas)
+						if (sha instanceof byte[])
+							pending.push((byte[]) sha);
+				while (pending.size() >= batchSize)
+					expand(pending, expanded, live);
+			}
+		} finally {
+			refs.close();
+		}
+		while (!pending.isEmpty())
+			expand(pending, expanded, live);
+		return live;
+	}
+
+	/**
+	 * marks a batch of pending content, and adds everything that it refers to
+	 */
+	private void expand(LinkedList<byte[]> pending, Set<String> expanded,
+			ShaFilter.Bloom live) {
+		List<byte[]> batch = new ArrayList<byte[]>(batchSize);
+		while (batch.size() < batchSize && !pending.isEmpty()) {
+			byte[] sha = pending.pop();
+			live.add(sha);
+			marked.incrementAndGet();
+			batch.add(sha);
+		}
+		for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+				new BasicDBObject("$in", batch)).append("store",
+				new BasicDBObject("$exists", true).append("$nin", LEAVES)),
+				new BasicDBObject("in", 0).append("zin", 0).append("delta", 0))) {
+			if (expanded.add(Hex.encodeHexString((byte[]) o.get(_ID))))
+				findReferences(o.get("base"), pending);
+		}
+	}
+
+	/**
+	 * collects all <code>sha</code> fields, however deeply nested
+	 */
+	static void findReferences(Object o, List<byte[]> result) {
+		if (o instanceof List<?>) {
+			for (Object x : (List<?>) o)
+				findReferences(x, result);
+		} else if (o instanceof DBObject) {
+			DBObject d = (DBObject) o;
+			for (String key : d.keySet()) {
+				Object x = d.get(key);
+				if ("sha".equals(key) && x instanceof byte[])
+					result.add(0, (byte[]) x);
+				else
+					findReferences(x, result);
+			}
+		}
+	}
+
+	/**
+	 * @param markStart
+	 *            when the mark started: Content stored or touched after that
+	 *            may be referenced without being in the live set
+	 */
+	private void sweep(ShaFilter.Bloom live, long markStart, boolean dryRun)
+			throws InterruptedException {
+		long start = System.currentTimeMillis();
+		Date now = new Date(start);
+		Date cutoff = new Date(markStart - grace);
+		byte[] last = null;
+		while (true) {
+			DBObject query = last == null ? new BasicDBObject()
+					: new BasicDBObject(_ID, new BasicDBObject("$gt", last));
+			List<DBObject> batch = contentCollection.find(query,
+					new BasicDBObject(_ID, 1).append("store", 1)).sort(
+					new BasicDBObject(_ID, 1)).limit(batchSize).toArray();
+			if (batch.isEmpty())
+				break;
+			last = (byte[]) batch.get(batch.size() - 1).get(_ID);
+			scanned.addAndGet(batch.size());
+
+			List<byte[]> ids = new ArrayList<byte[]>(batch.size());
+			Map<String, byte[]> packed = new HashMap<String, byte[]>();
+			for (DBObject o : batch) {
+				if ("pack".equals(o.get("store")))
+					addMembers((byte[]) o.get(_ID), ids, packed);
+				else
+					ids.add((byte[]) o.get(_ID));
+			}
+			Map<String, DBObject> recorded = findCandidates(ids);
+
+			List<byte[]> revived = new ArrayList<byte[]>();
+			List<byte[]> expired = new ArrayList<byte[]>();
+			for (byte[] id : ids) {
+				DBObject r = recorded.get(Hex.encodeHexString(id));
+				if (live.mightContain(id)) {
+					if (r != null)
+						revived.add(id);
+					continue;
+				}
+				garbage.incrementAndGet();
+				if (isExpired(r, cutoff)) {
+					expired.add(id);
+					continue;
+				}
+				pending.incrementAndGet();
+				if (r == null && !dryRun)
+					candidates.insert(new BasicDBObject(_ID, id).append(
+							"since", now), WriteConcern.NORMAL);
+			}
+			if (!dryRun) {
+				if (!revived.isEmpty())
+					candidates.remove(new BasicDBObject(_ID,
+							new BasicDBObject("$in", revived)),
+							WriteConcern.NORMAL);
+				if (!expired.isEmpty()) {
+					// stored again while we were looking?
+					recorded = findCandidates(expired);
+					for (Iterator<byte[]> i = expired.iterator(); i.hasNext();) {
+						if (!isExpired(recorded.get(Hex.encodeHexString(i
+								.next())), cutoff)) {
+							i.remove();
+							pending.incrementAndGet();
+						}
+					}
+				}
+				if (!expired.isEmpty()) {
+					List<byte[]> records = new ArrayList<byte[]>();
+					for (byte[] id : expired) {
+						byte[] r = packed.get(Hex.encodeHexString(id));
+						if (r != null)
+							records.add(r);
+					}
+					DBObject in = new BasicDBObject(_ID, new BasicDBObject(
+							"$in", expired));
+					if (records.size() < expired.size())
+						contentCollection.remove(in, WriteConcern.SAFE);
+					if (!records.isEmpty())
+						packs.remove(records);
+					candidates.remove(in, WriteConcern.NORMAL);
+					accessCollection.remove(in, WriteConcern.NORMAL);
+					deleted.addAndGet(expired.size());
+
+					// throttle
+					long due = start + deleted.get() * 1000
+							/ deletesPerSecond;
+					long t = System.currentTimeMillis();
+					if (due > t)
+						Thread.sleep(due - t);
+				}
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * @return the candidate records, by the hex-encoded SHA
+	 */
+	private Map<String, DBObject> findCandidates(List<byte[]> ids) {
+		Map<String, DBObject> result = new HashMap<String, DBObject>();
+		for (DBObject o : candidates.find(new BasicDBObject(_ID,
+				new BasicDBObject("$in", ids)))) {
+			result.put(Hex.encodeHexString((byte[]) o.get(_ID)), o);
+		}
+		return result;
+	}
+
+	/**
+	 * @return if the candidate has been unreferenced since before the cutoff,
+	 *         and has not been touched after it
+	 */
+	private static boolean isExpired(DBObject record, Date cutoff) {
+		if (record == null)
+			return false;
+		Date since = (Date) record.get("since");
+		Date seen = (Date) record.get("seen");
+		return since != null && since.before(cutoff)
+				&& (seen == null || seen.before(cutoff));
+	}
+
+	/**
+	 * To be called when content is found to be stored already (and will be
+	 * referenced again): If it has been recorded as a candidate for deletion,
+	 * it gets the full grace period again. So does all content that it refers
+	 * to (transitively), which is not necessarily live itself.
+	 * <p>
+	 * This is an acknowledged write, so that it is in place before any
+	 * reference to the content is written.
+	 */
+	static void touch(DBCollection contentCollection, Collection<byte[]> shas) {
+		if (shas.isEmpty())
+			return;
+		List<byte[]> all = new ArrayList<byte[]>(shas);
+		Set<String> seen = new HashSet<String>();
+		for (byte[] sha : all)
+			seen.add(Hex.encodeHexString(sha));
+		List<byte[]> level = all;
+		while (!level.isEmpty()) {
+			List<byte[]> bases = new ArrayList<byte[]>();
+			for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+					new BasicDBObject("$in", level)).append("store",
+					new BasicDBObject("$exists", true).append("$nin", LEAVES)),
+					new BasicDBObject("in", 0).append("zin", 0).append(
+							"delta", 0)))
+				findReferences(o.get("base"), bases);
+			level = new ArrayList<byte[]>();
+			for (byte[] sha : bases)
+				if (seen.add(Hex.encodeHexString(sha)))
+					level.add(sha);
+			all.addAll(level);
+		}
+		DBCollection records = contentCollection.getDB().getCollection(
+				CANDIDATES_COLLECTION_NAME);
+		records.update(new BasicDBObject(_ID, new BasicDBObject("$in", all)),
+				new BasicDBObject("$set", new BasicDBObject("seen", new Date())),
+				false, true, WriteConcern.SAFE);
+	}
+
+	/**
+	 * adds the members of the pack that are still in the index (with their
+	 * index records)
+	 */
+	private void addMembers(byte[] packId, List<byte[]> ids,
+			Map<String, byte[]> packed) {
+		DBObject pack = contentCollection.findOne(new BasicDBObject(_ID,
+				packId), new BasicDBObject("m.sha", 1));
+		if (pack == null)
+			return;
+		List<byte[]> shas = new ArrayList<byte[]>();
+		for (Object m : (List<?>) pack.get("m"))
+			shas.add((byte[]) ((DBObject) m).get("sha"));
+		for (Map.Entry<String, byte[]> e : packs.locate(shas).entrySet()) {
+			byte[] r = e.getValue();
+			if (Arrays.equals(packId, PackIndex.getPack(r))) {
+				ids.add(PackIndex.getSHA(r));
+				packed.put(e.getKey(), r);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of (not purged) owners of the current or last run
+	 */
+	public long getOwners() {
+		return owners.get();
+	}
+
+	/**
+	 * @return the number of live references followed so far (content that is
+	 *         referenced several times is counted several times)
+	 */
+	public long getMarked() {
+		return marked.get();
+	}
+
+	/**
+	 * @return the number of content documents looked at by the sweep so far
+	 */
+	public long getScanned() {
+		return scanned.get();
+	}
+
+	/**
+	 * @return the number of unreferenced content documents found so far
+	 */
+	public long getGarbage() {
+		return garbage.get();
+	}
+
+	/**
+	 * @return the number of unreferenced content documents that are still
+	 *         within the grace period
+	 */
+	public long getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * @return the number of content documents deleted so far
+	 */
+	public long getDeleted() {
+		return deleted.get();
+	}
+
+	@Override
+	public String toString() {
+		return "content gc (" + phase + "): " + owners + " owners, " + marked
+				+ " references marked, " + scanned + " documents scanned, "
+				+ garbage + " unreferenced, " + pending
+				+ " within grace period, " + deleted + " deleted";
+	}
+
+}
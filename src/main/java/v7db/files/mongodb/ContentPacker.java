@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.BSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Packs small content together, see {@link PackedContent}.
+ * <p>
+ * Every run goes once through the content collection, in <code>_id</code>
+ * order and in batches (property <code>content.pack.batch</code>):
+ * <ul>
+ * <li>Chunks of up to <code>content.pack.member</code> bytes are collected
+ * into packs of up to <code>content.pack.bytes</code>.
+ * <li>Packs where less than <code>content.pack.sparse</code> of the members
+ * are still in the {@link PackIndex} (the garbage collector removes the
+ * members that are no longer referenced) are re-packed: their remaining
+ * members go into the next new pack. Packs without any members left are
+ * deleted.
+ * <li>Chunks that have been stored again after they were packed are deleted.
+ * </ul>
+ * The new pack and its index records are written before the original
+ * documents (or the old pack) are deleted, so a run can be interrupted at any
+ * time. No more than <code>content.pack.rate</code> bytes per second are
+ * written. There should not be more than one run at a time (in all
+ * processes), and none while the garbage collector is running.
+ */
+
+public class ContentPacker {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ContentPacker.class);
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contentCollection;
+
+	private final PackIndex packs;
+
+	private final int maxMember;
+
+	private final int maxPack;
+
+	private final double sparse;
+
+	private final int batchSize;
+
+	private final long bytesPerSecond;
+
+	private final AtomicLong scanned = new AtomicLong(),
+			packed = new AtomicLong(), written = new AtomicLong(),
+			repacked = new AtomicLong(), removed = new AtomicLong(),
+			duplicates = new AtomicLong(), bytes = new AtomicLong();
+
+	/**
+	 * the next pack to be written
+	 */
+	private final List<DBObject> members = new ArrayList<DBObject>();
+
+	private final List<byte[]> memberSHAs = new ArrayList<byte[]>();
+
+	private int memberBytes;
+
+	/**
+	 * what the next pack replaces: chunks, and sparse packs (and their
+	 * records)
+	 */
+	private final List<byte[]> looseIds = new ArrayList<byte[]>(),
+			oldPacks = new ArrayList<byte[]>(),
+			oldRecords = new ArrayList<byte[]>();
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public ContentPacker(MongoContentStorage storage, Properties props) {
+		if (props == null)
+			props = new Properties();
+		this.storage = storage;
+		contentCollection = storage.getContentCollection();
+		packs = storage.getPackIndex();
+		maxMember = NumberUtils.toInt(props.getProperty("content.pack.member"),
+				65536);
+		maxPack = Math.max(maxMember, NumberUtils.toInt(props
+				.getProperty("content.pack.bytes"), 1024 * 1024));
+		sparse = NumberUtils.toDouble(props.getProperty("content.pack.sparse"),
+				0.5);
+		batchSize = Math.max(1, NumberUtils.toInt(props
+				.getProperty("content.pack.batch"), 100));
+		bytesPerSecond = Math.max(1, NumberUtils.toLong(props
+				.getProperty("content.pack.rate"), 4 * 1024 * 1024));
+	}
+
+	/**
+	 * runs once through the content collection on the calling thread
+	 */
+	public synchronized void pack() throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		for (AtomicLong a : new AtomicLong[] { scanned, packed, written,
+				repacked, removed, duplicates, bytes })
+			a.set(0);
+		byte[] last = null;
+		while (true) {
+			DBObject query = last == null ? new BasicDBObject()
+					: new BasicDBObject(_ID, new BasicDBObject("$gt", last));
+			List<DBObject> batch = contentCollection.find(query,
+					new BasicDBObject(_ID, 1).append("store", 1)).sort(
+					new BasicDBObject(_ID, 1)).limit(batchSize).toArray();
+			if (batch.isEmpty())
+				break;
+			last = (byte[]) batch.get(batch.size() - 1).get(_ID);
+			scanned.addAndGet(batch.size());
+
+			List<byte[]> chunkIds = new ArrayList<byte[]>(batch.size());
+			for (DBObject o : batch) {
+				Object store = o.get("store");
+				if (store == null || "raw".equals(store) || "gz".equals(store))
+					chunkIds.add((byte[]) o.get(_ID));
+				else if ("pack".equals(store))
+					checkPack((byte[]) o.get(_ID));
+			}
+			addChunks(chunkIds);
+
+			// throttle
+			long due = start + bytes.get() * 1000 / bytesPerSecond;
+			long now = System.currentTimeMillis();
+			if (due > now)
+				Thread.sleep(due - now);
+			else if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		// a single chunk is not worth a pack
+		if (members.size() > 1 || !oldPacks.isEmpty())
+			flush();
+		clear();
+		log.info(this + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void addChunks(List<byte[]> chunkIds) throws IOException {
+		if (chunkIds.isEmpty())
+			return;
+		Map<String, byte[]> alreadyPacked = packs.locate(chunkIds);
+		List<byte[]> stored = new ArrayList<byte[]>();
+		for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+				new BasicDBObject("$in", chunkIds)))) {
+			byte[] id = (byte[]) o.get(_ID);
+			if (alreadyPacked.containsKey(Hex.encodeHexString(id))) {
+				stored.add(id);
+				continue;
+			}
+			int size = BSON.encode(o).length;
+			if (size > maxMember)
+				continue;
+			if (memberBytes + size > maxPack)
+				flush();
+			add(PackedContent.member(o), size);
+			looseIds.add(id);
+		}
+		if (!stored.isEmpty()) {
+			contentCollection.remove(new BasicDBObject(_ID, new BasicDBObject(
+					"$in", stored)), WriteConcern.SAFE);
+			duplicates.addAndGet(stored.size());
+		}
+	}
+
+	/**
+	 * deletes the pack if it is empty, or re-packs it if it is sparse
+	 */
+	private void checkPack(byte[] packId) throws IOException {
+		DBObject pack = contentCollection.findOne(new BasicDBObject(_ID,
+				packId), new BasicDBObject("m.sha", 1));
+		if (pack == null)
+			return;
+		List<?> m = (List<?>) pack.get("m");
+		List<byte[]> shas = new ArrayList<byte[]>(m.size());
+		for (Object member : m)
+			shas.add((byte[]) ((DBObject) member).get("sha"));
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (byte[] r : packs.locate(shas).values())
+			if (Arrays.equals(packId, PackIndex.getPack(r)))
+				records.add(r);
+
+		if (records.isEmpty()) {
+			contentCollection.remove(new BasicDBObject(_ID, packId),
+					WriteConcern.SAFE);
+			removed.incrementAndGet();
+			return;
+		}
+		if (records.size() >= shas.size() * sparse)
+			return;
+
+		List<DBObject> live = new ArrayList<DBObject>(records.size());
+		int size = 0;
+		for (byte[] r : records) {
+			DBObject member = PackedContent.getMember(contentCollection, r);
+			if (member == null)
+				// re-packed by someone else
+				return;
+			member.put(_ID, PackIndex.getSHA(r));
+			live.add(member);
+			size += BSON.encode(member).length;
+		}
+		if (memberBytes + size > maxPack)
+			flush();
+		for (DBObject member : live)
+			add(PackedContent.member(member), BSON.encode(member).length);
+		oldPacks.add(packId);
+		oldRecords.addAll(records);
+	}
+
+	private void add(DBObject member, int size) {
+		members.add(member);
+		memberSHAs.add((byte[]) member.get("sha"));
+		memberBytes += size;
+	}
+
+	/**
+	 * writes the next pack and its index records, and then deletes what it
+	 * replaces
+	 */
+	private void flush() throws IOException {
+		if (members.isEmpty())
+			return;
+		byte[] packId = PackedContent.packId(memberSHAs);
+		try {
+			contentCollection.insert(new BasicDBObject(_ID, packId).append(
+					"store", "pack").append("m", members), WriteConcern.SAFE);
+		} catch (MongoException.DuplicateKey e) {
+			// the same members in the same order, written before
+		}
+		List<byte[]> records = new ArrayList<byte[]>(members.size());
+		for (int i = 0; i < members.size(); i++) {
+			long length = storage.getContent(
+					PackedContent.withoutSHA(members.get(i))).getLength();
+			records.add(PackIndex.record(memberSHAs.get(i), packId, i,
+					(int) length));
+		}
+		packs.add(records);
+
+		if (!looseIds.isEmpty())
+			contentCollection.remove(new BasicDBObject(_ID, new BasicDBObject(
+					"$in", looseIds)), WriteConcern.SAFE);
+		if (!oldPacks.isEmpty()) {
+			packs.remove(oldRecords);
+			contentCollection.remove(new BasicDBObject(_ID, new BasicDBObject(
+					"$in", oldPacks)), WriteConcern.SAFE);
+		}
+		written.incrementAndGet();
+		packed.addAndGet(looseIds.size());
+		repacked.addAndGet(oldPacks.size());
+		bytes.addAndGet(memberBytes);
+		clear();
+	}
+
+	private void clear() {
+		members.clear();
+		memberSHAs.clear();
+		memberBytes = 0;
+		looseIds.clear();
+		oldPacks.clear();
+		oldRecords.clear();
+	}
+
+	/**
+	 * @return the number of content documents looked at so far
+	 */
+	public long getScanned() {
+		return scanned.get();
+	}
+
+	/**
+	 * @return the number of chunks that have been packed so far
+	 */
+	public long getPacked() {
+		return packed.get();
+	}
+
+	/**
+	 * @return the number of packs written so far
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return the number of sparse packs that have been re-packed so far
+	 */
+	public long getRepacked() {
+		return repacked.get();
+	}
+
+	/**
+	 * @return the number of empty packs that have been deleted so far
+	 */
+	public long getRemoved() {
+		return removed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "content packer: " + scanned + " documents scanned, " + packed
+				+ " chunks packed, " + repacked + " sparse packs re-packed, "
+				+ written + " packs written (" + bytes + " bytes), " + removed
+				+ " empty packs and " + duplicates
+				+ " already packed chunks deleted";
+	}
+
+}
@@ -0,0 +1,459 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import v7db.files.DaemonThreadFactory;
+import v7db.files.spi.Content;
+import v7db.files.spi.TreeHash;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Checks that the stored content is still intact.
+ * <p>
+ * The content collection is read in <code>_id</code> order, in batches
+ * (property <code>content.scrub.batch</code>) that are verified on
+ * <code>content.scrub.threads</code> threads:
+ * <ul>
+ * <li>Chunks (and other content that does not refer to other content) must
+ * still hash to their <code>_id</code>. For packs, every member must still
+ * hash to its <code>sha</code>.
+ * <li>All content referred to by "cat", "zip" and "delta" documents must
+ * exist (as a document, or in a pack). A "cat" document with a
+ * {@link TreeHash} whose chunks are exactly its leaves must have chunk SHAs
+ * that add up to it (and as the chunks are verified as well, that covers the
+ * whole content without reading it again). With <code>content.scrub.deep</code>, these documents are also
+ * hashed as a whole (which reads all their chunks again).
+ * </ul>
+ * No more than <code>content.scrub.rate</code> bytes per second are read, to
+ * leave room for the live traffic.
+ * <p>
+ * Problems are logged and recorded in the <code>v7files.content.scrub</code>
+ * collection (<code>{ _id: sha, problem: "corrupt" | "dangling" |
+ * "unreadable", message: ..., found: date }</code>), until a later run finds
+ * the content intact. After every batch, the position is saved in the same
+ * collection (<code>_id: "checkpoint"</code>), and an interrupted run resumes
+ * from there.
+ */
+
+public class ContentScrubber {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ContentScrubber.class);
+
+	public final static String SCRUB_COLLECTION_NAME = "v7files.content.scrub";
+
+	private static final String CHECKPOINT = "checkpoint";
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contentCollection;
+
+	private final DBCollection scrubCollection;
+
+	private final int threads;
+
+	private final int batchSize;
+
+	private final long bytesPerSecond;
+
+	private final boolean deep;
+
+	private final AtomicLong scanned = new AtomicLong(),
+			verifiedBytes = new AtomicLong(), corrupt = new AtomicLong(),
+			dangling = new AtomicLong(), unreadable = new AtomicLong(),
+			skipped = new AtomicLong();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * held while a scrub is running (there can be only one at a time)
+	 */
+	private final Object running = new Object();
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public ContentScrubber(MongoContentStorage storage, Properties props) {
+		if (props == null)
+			props = new Properties();
+		this.storage = storage;
+		contentCollection = storage.getContentCollection();
+		scrubCollection = contentCollection.getDB().getCollection(
+				SCRUB_COLLECTION_NAME);
+		int t = NumberUtils.toInt(props.getProperty("content.scrub.threads"),
+				0);
+		threads = t > 0 ? t : Runtime.getRuntime().availableProcessors();
+		batchSize = Math.max(1, NumberUtils.toInt(props
+				.getProperty("content.scrub.batch"), 100));
+		bytesPerSecond = Math.max(1, NumberUtils.toLong(props
+				.getProperty("content.scrub.rate"), 8 * 1024 * 1024));
+		deep = BooleanUtils.toBoolean(props.getProperty("content.scrub.deep"));
+	}
+
+	/**
+	 * runs the scrub every this many minutes in the background, until
+	 * {@link #close()}
+	 */
+	public synchronized void schedule(long minutes) {
+		if (scheduler != null)
+			throw new IllegalStateException("already scheduled");
+		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+				"v7files-scrub-scheduler"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					scrub();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					log.warn("content scrub failed", e);
+				}
+			}
+		}, minutes, minutes, TimeUnit.MINUTES);
+	}
+
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * forgets where the last (interrupted) run stopped, so that the next one
+	 * starts from the beginning
+	 */
+	public void resetCheckpoint() {
+		scrubCollection.remove(new BasicDBObject(_ID, CHECKPOINT),
+				WriteConcern.SAFE);
+	}
+
+	/**
+	 * runs (or resumes) a scrub of all content on the calling thread (and the
+	 * worker threads)
+	 */
+	public void scrub() throws InterruptedException {
+		synchronized (running) {
+			scrubAll();
+		}
+	}
+
+	private void scrubAll() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		for (AtomicLong a : new AtomicLong[] { scanned, verifiedBytes,
+				corrupt, dangling, unreadable, skipped })
+			a.set(0);
+		DBObject checkpoint = scrubCollection.findOne(new BasicDBObject(_ID,
+				CHECKPOINT));
+		byte[] last = checkpoint == null ? null : (byte[]) checkpoint
+				.get("last");
+		if (last != null)
+			log.info("resuming content scrub after "
+					+ Hex.encodeHexString(last));
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory("v7files-scrub"));
+		try {
+			while (true) {
+				DBObject query = last == null ? new BasicDBObject()
+						: new BasicDBObject(_ID, new BasicDBObject("$gt", last));
+				List<DBObject> batch = contentCollection.find(query).sort(
+						new BasicDBObject(_ID, 1)).limit(batchSize).toArray();
+				if (batch.isEmpty())
+					break;
+				last = (byte[]) batch.get(batch.size() - 1).get(_ID);
+				long bytes = scrub(batch, workers);
+				scrubCollection.update(new BasicDBObject(_ID, CHECKPOINT),
+						new BasicDBObject("$set", new BasicDBObject("last",
+								last).append("at", new Date())), true, false,
+						WriteConcern.SAFE);
+
+				// throttle
+				long due = start + verifiedBytes.addAndGet(bytes) * 1000
+						/ bytesPerSecond;
+				long now = System.currentTimeMillis();
+				if (due > now)
+					Thread.sleep(due - now);
+				else if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+		resetCheckpoint();
+		log.info(this + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return the number of bytes read
+	 */
+	private long scrub(List<DBObject> batch, ExecutorService workers)
+			throws InterruptedException {
+		scanned.addAndGet(batch.size());
+		Date now = new Date();
+		List<byte[]> intact = new ArrayList<byte[]>(batch.size());
+
+		// all references at once
+		List<byte[]> references = new ArrayList<byte[]>();
+		for (DBObject o : batch) {
+			if (!isLeaf(o))
+				ContentCollector.findReferences(o.get("base"), references);
+		}
+		Set<String> existing = new HashSet<String>();
+		if (!references.isEmpty())
+			for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+					new BasicDBObject("$in", references)), new BasicDBObject(
+					_ID, 1)))
+				existing.add(Hex.encodeHexString((byte[]) o.get(_ID)));
+		if (existing.size() < references.size()) {
+			List<byte[]> missing = new ArrayList<byte[]>();
+			for (byte[] ref : references)
+				if (!existing.contains(Hex.encodeHexString(ref)))
+					missing.add(ref);
+			existing.addAll(storage.getPackIndex().locate(missing).keySet());
+		}
+
+		// verifying removes the _id from the document
+		List<byte[]> ids = new ArrayList<byte[]>(batch.size());
+		List<Future<Object[]>> results = new ArrayList<Future<Object[]>>(batch
+				.size());
+		for (final DBObject o : batch) {
+			final byte[] id = (byte[]) o.get(_ID);
+			ids.add(id);
+			if (!isLeaf(o)) {
+				List<byte[]> refs = new ArrayList<byte[]>();
+				ContentCollector.findReferences(o.get("base"), refs);
+				List<String> missing = new ArrayList<String>();
+				for (byte[] ref : refs) {
+					String hex = Hex.encodeHexString(ref);
+					if (!existing.contains(hex))
+						missing.add(hex);
+				}
+				if (!missing.isEmpty()) {
+					dangling.incrementAndGet();
+					report(id, "dangling", "missing " + missing, now);
+					results.add(null);
+					continue;
+				}
+				if (!matchesTree(o)) {
+					corrupt.incrementAndGet();
+					report(id, "corrupt", "chunks do not match its tree hash",
+							now);
+					results.add(null);
+					continue;
+				}
+				if (!deep) {
+					intact.add(id);
+					results.add(null);
+					continue;
+				}
+			}
+			results.add(workers.submit(new Callable<Object[]>() {
+				public Object[] call() throws Exception {
+					return verify(id, o);
+				}
+			}));
+		}
+
+		long bytes = 0;
+		for (int i = 0; i < results.size(); i++) {
+			Future<Object[]> f = results.get(i);
+			if (f == null)
+				continue;
+			byte[] id = ids.get(i);
+			try {
+				Object[] r = f.get();
+				bytes += (Long) r[1];
+				String problem = (String) r[0];
+				if (problem == null) {
+					intact.add(id);
+				} else if ("corrupt".equals(problem)) {
+					corrupt.incrementAndGet();
+					report(id, problem, "does not hash to its _id", now);
+				} else {
+					skipped.incrementAndGet();
+				}
+			} catch (ExecutionException e) {
+				unreadable.incrementAndGet();
+				report(id, "unreadable", String.valueOf(e.getCause()), now);
+			}
+		}
+		if (!intact.isEmpty())
+			scrubCollection.remove(new BasicDBObject(_ID, new BasicDBObject(
+					"$in", intact)), WriteConcern.NORMAL);
+		return bytes;
+	}
+
+	private static boolean isLeaf(DBObject o) {
+		Object store = o.get("store");
+		return store == null || ContentCollector.LEAVES.contains(store);
+	}
+
+	/**
+	 * @return false if the document has a tree hash, its chunks are the
+	 *         leaves, and their SHAs do not add up to it
+	 */
+	private static boolean matchesTree(DBObject o) {
+		Object tree = o.get("tree");
+		if (!(tree instanceof byte[]) || !(o.get("base") instanceof List<?>))
+			return true;
+		List<?> base = (List<?>) o.get("base");
+		List<byte[]> leaves = new ArrayList<byte[]>(base.size());
+		for (int i = 0; i < base.size(); i++) {
+			if (!(base.get(i) instanceof DBObject))
+				return true;
+			DBObject chunk = (DBObject) base.get(i);
+			Long length = BSONUtils.getLong(chunk, "length");
+			if (!(chunk.get("sha") instanceof byte[]) || length == null
+					|| chunk.containsField("store"))
+				return true;
+			if (i < base.size() - 1 ? length != TreeHash.LEAF_SIZE
+					: length > TreeHash.LEAF_SIZE)
+				return true;
+			leaves.add((byte[]) chunk.get("sha"));
+		}
+		return Arrays.equals((byte[]) tree, TreeHash.root(leaves));
+	}
+
+	/**
+	 * @return the problem (or null) and the number of bytes read
+	 */
+	private Object[] verify(byte[] id, DBObject o) throws Exception {
+		if ("pack".equals(o.get("store"))) {
+			long bytes = 0;
+			for (Object m : (List<?>) o.get("m")) {
+				DBObject member = (DBObject) m;
+				Object[] r = verify((byte[]) member.get("sha"), PackedContent
+						.withoutSHA(member));
+				bytes += (Long) r[1];
+				if (r[0] != null)
+					return r;
+			}
+			return new Object[] { null, bytes };
+		}
+		Content content;
+		try {
+			content = storage.getContent(o);
+		} catch (UnsupportedOperationException e) {
+			// storage scheme not known here
+			return new Object[] { "skipped", 0L };
+		}
+		MessageDigest sha = newSHA();
+		byte[] buffer = new byte[8192];
+		long bytes = 0;
+		InputStream in = content.getInputStream();
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				sha.update(buffer, 0, n);
+				bytes += n;
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return new Object[] {
+				Arrays.equals(id, sha.digest()) ? null : "corrupt", bytes };
+	}
+
+	private static MessageDigest newSHA() {
+		try {
+			return MessageDigest.getInstance("SHA");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void report(byte[] id, String problem, String message, Date now) {
+		log.warn("content " + Hex.encodeHexString(id) + " is " + problem + ": "
+				+ message);
+		scrubCollection.update(new BasicDBObject(_ID, id), new BasicDBObject(
+				"$set", new BasicDBObject("problem", problem).append("message",
+						message).append("found", now)), true, false,
+				WriteConcern.NORMAL);
+	}
+
+	public long getScanned() {
+		return scanned.get();
+	}
+
+	public long getVerifiedBytes() {
+		return verifiedBytes.get();
+	}
+
+	public long getCorrupt() {
+		return corrupt.get();
+	}
+
+	public long getDangling() {
+		return dangling.get();
+	}
+
+	public long getUnreadable() {
+		return unreadable.get();
+	}
+
+	/**
+	 * @return the number of documents with a storage scheme that is not
+	 *         available here (such as cold tier stubs without the tier)
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "content scrub: " + scanned + " documents, " + verifiedBytes
+				+ " bytes verified, " + corrupt + " corrupt, " + dangling
+				+ " dangling, " + unreadable + " unreadable, " + skipped
+				+ " skipped";
+	}
+
+}
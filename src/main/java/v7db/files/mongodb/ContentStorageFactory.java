@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+
+import v7db.files.local.LocalContentStorage;
+import v7db.files.spi.ContentStorage;
+
+import com.mongodb.DB;
+
+/**
+ * Creates the ContentStorage for a database, as configured by the
+ * <code>content.storage</code> property:
+ * <ul>
+ * <li><code>mongo</code> (the default): in the database itself, see
+ * {@link MongoContentStorage}
+ * <li><code>local</code>: in a sub-directory (named after the database) of
+ * <code>content.local.dir</code>, see {@link LocalContentStorage}
+ * <li><code>tiered</code>: in the database, but content that is not read any
+ * more is moved to a sub-directory of <code>content.tier.dir</code>, see
+ * {@link TieredContentStorage}
+ * </ul>
+ * The file metadata and the references stay in the database either way.
+ */
+
+public class ContentStorageFactory {
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public static ContentStorage getContentStorage(DB db, Properties props) {
+		String mode = props == null ? null : props
+				.getProperty("content.storage");
+		if (mode == null || "mongo".equals(mode))
+			return new MongoContentStorage(db, props);
+
+		if ("local".equals(mode)) {
+			String dir = props.getProperty("content.local.dir");
+			if (StringUtils.isBlank(dir))
+				throw new IllegalArgumentException(
+						"content.local.dir is required for local content storage");
+			try {
+				return new LocalContentStorage(new File(dir, db.getName()),
+						props);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(
+						"cannot use content.local.dir " + dir, e);
+			}
+		}
+
+		if ("tiered".equals(mode)) {
+			String dir = props.getProperty("content.tier.dir");
+			if (StringUtils.isBlank(dir))
+				throw new IllegalArgumentException(
+						"content.tier.dir is required for tiered content storage");
+			try {
+				return new TieredContentStorage(new MongoContentStorage(db,
+						props), db, new File(dir, db.getName()), props);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(
+						"cannot use content.tier.dir " + dir, e);
+			}
+		}
+
+		throw new IllegalArgumentException("unsupported content storage: "
+				+ mode);
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import v7db.files.DaemonThreadFactory;
+import v7db.files.spi.AsyncContentStorage;
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
+
+/**
+ * Runs the (blocking) operations of a {@link MongoContentStorage} on a
+ * dedicated I/O thread pool (property <code>content.async.threads</code>),
+ * so that the calling threads are free while waiting for the database.
+ * <p>
+ * {@link #readContentAsync} reads <code>content.async.buffer</code> bytes at
+ * a time on the pool, and hands them to the consumer. The next read is only
+ * started when the consumer is done with the previous one, so that a slow
+ * client does not cause data to pile up in memory. No pool thread waits for
+ * the consumer in the meantime.
+ */
+
+public class MongoAsyncContentStorage implements AsyncContentStorage {
+
+	private final MongoContentStorage storage;
+
+	private final ExecutorService io;
+
+	private final int bufferSize;
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public MongoAsyncContentStorage(MongoContentStorage storage,
+			Properties props) {
+		if (props == null)
+			props = new Properties();
+		this.storage = storage;
+		io = Executors.newFixedThreadPool(Math.max(1, NumberUtils.toInt(props
+				.getProperty("content.async.threads"), 16)),
+				new DaemonThreadFactory("v7files-async-io"));
+		bufferSize = Math.max(1, NumberUtils.toInt(props
+				.getProperty("content.async.buffer"), 64 * 1024));
+	}
+
+	/**
+	 * @return the blocking storage that does the actual work
+	 */
+	public MongoContentStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * stops the I/O threads (after the operations already started)
+	 */
+	public void close() {
+		io.shutdown();
+	}
+
+	public CompletableFuture<ContentSHA> storeContentAsync(
+			final InputStream data, final String contentType) {
+		return submit(new Callable<ContentSHA>() {
+			public ContentSHA call() throws Exception {
+				return storage.storeContent(data, contentType);
+			}
+		});
+	}
+
+	public CompletableFuture<Content> getContentAsync(final byte[] sha) {
+		return submit(new Callable<Content>() {
+			public Content call() throws Exception {
+				return storage.getContent(sha);
+			}
+		});
+	}
+
+	public CompletableFuture<Content> getContentAsync(
+			final ContentPointer pointer) {
+		return submit(new Callable<Content>() {
+			public Content call() throws Exception {
+				return storage.getContent(pointer);
+			}
+		});
+	}
+
+	public CompletableFuture<Long> readContentAsync(
+			final ContentPointer pointer, final long offset,
+			final long length, ChunkConsumer consumer) {
+		final Pump pump = new Pump(consumer);
+		submit(new Callable<InputStream>() {
+			public InputStream call() throws Exception {
+				Content content = storage.getContent(pointer);
+				if (content == null)
+					throw new IllegalArgumentException("content not found: "
+							+ pointer);
+				return content.getInputStream(offset, length);
+			}
+		}).whenComplete(new BiConsumer<InputStream, Throwable>() {
+			public void accept(InputStream in, Throwable e) {
+				if (e != null) {
+					pump.result.completeExceptionally(e);
+				} else {
+					pump.in = in;
+					pump.run();
+				}
+			}
+		});
+		return pump.result;
+	}
+
+	/**
+	 * reads one buffer (on an I/O thread), and schedules the next read for
+	 * when the consumer is done with it
+	 */
+	private final class Pump implements Runnable,
+			BiConsumer<Object, Throwable> {
+
+		private final CompletableFuture<Long> result = new CompletableFuture<Long>();
+
+		private final ChunkConsumer consumer;
+
+		private final byte[] buffer = new byte[bufferSize];
+
+		private InputStream in;
+
+		private long total;
+
+		Pump(ChunkConsumer consumer) {
+			this.consumer = consumer;
+		}
+
+		public void run() {
+			try {
+				if (result.isDone()) {
+					// cancelled by the caller
+					IOUtils.closeQuietly(in);
+					return;
+				}
+				int n = in.read(buffer);
+				if (n == -1) {
+					in.close();
+					result.complete(total);
+					return;
+				}
+				total += n;
+				CompletionStage<?> consumed = consumer.accept(buffer, 0, n);
+				if (consumed == null)
+					io.execute(this);
+				else
+					consumed.whenCompleteAsync(this, io);
+			} catch (Throwable e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * the consumer is done
+		 */
+		public void accept(Object ignored, Throwable e) {
+			if (e != null)
+				fail(e);
+			else
+				run();
+		}
+
+		private void fail(Throwable e) {
+			IOUtils.closeQuietly(in);
+			result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * CompletableFuture.supplyAsync, but for tasks that throw IOExceptions
+	 */
+	private <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			io.execute(new Runnable() {
+				public void run() {
+					try {
+						result.complete(task.call());
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+}
@@ -21,38 +21,50 @@ import static v7db.files.mongodb.QueryUtils._ID;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.bson.BSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import v7db.files.Compression;
+import v7db.files.CompressionPolicy;
+import v7db.files.ContentDefinedChunker;
 import v7db.files.MapUtils;
+import v7db.files.SharedExecutors;
 import v7db.files.ZipFile;
+import v7db.files.spi.BulkContentStorage;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentConcatenation;
+import v7db.files.spi.ContentDelta;
 import v7db.files.spi.ContentPointer;
 import v7db.files.spi.ContentSHA;
 import v7db.files.spi.ContentStorage;
 import v7db.files.spi.GzippedContent;
 import v7db.files.spi.InlineContent;
 import v7db.files.spi.OffsetAndLength;
+import v7db.files.spi.ReadAhead;
 import v7db.files.spi.StorageScheme;
 import v7db.files.spi.StoredContent;
+import v7db.files.spi.TreeHash;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.gridfs.GridFS;
 
@@ -65,7 +77,8 @@ import com.mongodb.gridfs.GridFS;
  * <li>"Small" content (that does not need to be chunked) is stored in the
  * binary field <code>in</code>.
  * <li>If the data can be compressed using gzip, it will be stored in compressed
- * form as <code>zin</code>. This mode is indicated by setting the value
+ * form as <code>zin</code> (data that does not look compressible is not even
+ * tried, see {@link CompressionPolicy}). This mode is indicated by setting the value
  * <code>gz</code> for the <code>store</code> field. The uncompressed length is
  * given in the <code>length</code> field.
  * <li>"Large" content is stored as the concatenation of chunks stored
@@ -75,40 +88,338 @@ import com.mongodb.gridfs.GridFS;
  * provided by extension code.
  * </ul>
  * 
+ * <p>
+ * When storing large content, chunks are processed in batches (property
+ * <code>content.ingest.batch</code>): A single <code>$in</code> query finds
+ * out which of the chunks in the batch are already stored, and the missing
+ * ones are written with a single multi-document insert. Hashing,
+ * compression and writing can run on thread pools (property
+ * <code>content.ingest.threads</code>, the pools are shared by all
+ * instances in the process), see {@link ChunkPipeline}. With
+ * <code>content.ingest.acknowledge = upload</code>, chunks are inserted
+ * without waiting for each write to be acknowledged. A single check before
+ * the "cat" document is written (and every
+ * <code>content.ingest.unacked</code> chunks) makes sure that they have all
+ * been stored. If that fails, the upload fails, and no "cat" document or
+ * SHA is produced for it.
+ * <p>
+ * Chunks are either of fixed size, or (property
+ * <code>content.chunking = cdc</code>) have content-defined boundaries, see
+ * {@link ContentDefinedChunker}. Either way, the result is a "cat" document,
+ * or a tree of them for very large files (property
+ * <code>content.cat.fanout</code>), see {@link CatTree}. With
+ * <code>content.tree.hash</code>, the {@link TreeHash} is calculated as well,
+ * and returned (and stored with the "cat" document) next to the SHA.
+ * <p>
+ * When such a document is streamed, the chunks are fetched ahead of the
+ * stream position, several at a time with one <code>$in</code> query
+ * (properties <code>content.readahead.chunks</code> and
+ * <code>content.readahead.bytes</code>), see {@link ReadAhead}.
+ * <p>
+ * Chunks that have been read can be kept in memory (properties
+ * <code>content.cache.compressed.bytes</code> and
+ * <code>content.cache.inflated.bytes</code>, for the whole process), see
+ * {@link ChunkCache}.
+ * <p>
+ * To skip the existence check for content that is definitely new, a Bloom
+ * filter of all stored SHAs can be kept (property
+ * <code>content.filter.refresh</code>), see {@link ShaFilter}. Likewise,
+ * new content is only looked up in the pack index if a filter of the packed
+ * SHAs says it may be there (property
+ * <code>content.packs.filter.refresh</code>), see {@link PackIndex}.
+ * <p>
+ * Small content can have been packed together with other small content into
+ * a single document (by the {@link ContentPacker}). Such content has no
+ * document of its own, and is found through the {@link PackIndex} instead.
+ * 
  * @see https://github.com/thiloplanz/v7files/wiki/StorageFormat
  * 
  * 
  */
 
-public class MongoContentStorage implements ContentStorage {
+public class MongoContentStorage implements BulkContentStorage {
 
 	private static final int chunkSize = GridFS.DEFAULT_CHUNKSIZE;
 
+	private static final Logger log = LoggerFactory
+			.getLogger(MongoContentStorage.class);
+
 	private final DBCollection contentCollection;
 
 	private final Map<String, StorageScheme> storageSchemes = new HashMap<String, StorageScheme>();
 
+	/**
+	 * how many chunks to look up and insert together
+	 */
+	private final int batchSize;
+
+	/**
+	 * how many chunks of a single upload can be in flight (read from the
+	 * input, but not yet stored)
+	 */
+	private final int window;
+
+	/**
+	 * for hashing and compressing chunks, and for writing them to the
+	 * database, or {@link ChunkPipeline#DIRECT} to do it all on the calling
+	 * thread (shared with the other instances, see {@link SharedExecutors})
+	 */
+	private final Executor cpuPool, ioPool;
+
+	/**
+	 * how many batches of a single upload can be written at the same time
+	 */
+	private final int writers;
+
+	/**
+	 * min/avg/max chunk size for content-defined chunking, or null to use
+	 * fixed-size chunks
+	 */
+	private final int[] cdcSizes;
+
+	/**
+	 * null, if read-ahead is disabled
+	 */
+	private final ReadAhead readAhead;
+
+	/**
+	 * null, if chunks are not cached
+	 */
+	private final ChunkCache cache;
+
+	/**
+	 * null, if every insert is preceded by an existence check
+	 */
+	private final ShaFilter filter;
+
+	private final PackIndex packs;
+
+	private final CompressionPolicy compression;
+
+	/**
+	 * can be null
+	 */
+	private volatile AccessTracker accessTracker;
+
+	/**
+	 * max number of entries in a "cat" document
+	 */
+	private final int fanOut;
+
+	/**
+	 * how many chunks can be inserted before waiting for an acknowledgement,
+	 * 0 to wait for every insert
+	 */
+	private final int maxUnacknowledged;
+
+	/**
+	 * also calculate the {@link TreeHash} of stored content
+	 */
+	private final boolean treeHash;
+
 	public final static String DEFAULT_CONTENT_COLLECTION_NAME = "v7files.content";
 
 	public MongoContentStorage(DB db) {
 		this(db.getCollection(DEFAULT_CONTENT_COLLECTION_NAME));
 	}
 
+	public MongoContentStorage(DB db, Properties props) {
+		this(db.getCollection(DEFAULT_CONTENT_COLLECTION_NAME), props);
+	}
+
 	public MongoContentStorage(DBCollection contentCollection) {
+		this(contentCollection, null);
+	}
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public MongoContentStorage(DBCollection contentCollection, Properties props) {
 		this.contentCollection = contentCollection;
+		packs = new PackIndex(contentCollection.getDB());
+		long packFilterRefresh = getLongProperty(props,
+				"content.packs.filter.refresh", 0);
+		if (packFilterRefresh > 0)
+			packs.useFilter(packFilterRefresh);
+		batchSize = Math.max(1, getIntProperty(props, "content.ingest.batch",
+				1));
+		window = getIntProperty(props, "content.ingest.window", batchSize);
+		String acknowledge = props == null ? null : props
+				.getProperty("content.ingest.acknowledge");
+		if ("upload".equals(acknowledge)) {
+			maxUnacknowledged = Math.max(1, getIntProperty(props,
+					"content.ingest.unacked", 64));
+		} else if (acknowledge == null || "chunk".equals(acknowledge)) {
+			maxUnacknowledged = 0;
+		} else {
+			throw new IllegalArgumentException(
+					"unsupported acknowledgement mode: " + acknowledge);
+		}
+		int threads = getIntProperty(props, "content.ingest.threads", 0);
+		if (threads > 0) {
+			cpuPool = SharedExecutors.getFixedThreadPool("v7files-ingest-cpu",
+					threads);
+			// unacknowledged inserts do not wait, and need the connection of
+			// the uploading thread
+			// the writers mostly wait for the database, so every upload gets
+			// its own, instead of all of them queueing for a few
+			writers = getIntProperty(props, "content.ingest.writers", 0);
+			ioPool = maxUnacknowledged > 0 || writers <= 0 ? ChunkPipeline.DIRECT
+					: SharedExecutors.getCachedThreadPool("v7files-ingest-io");
+		} else {
+			cpuPool = ChunkPipeline.DIRECT;
+			ioPool = ChunkPipeline.DIRECT;
+			writers = 0;
+		}
+		String chunking = props == null ? null : props
+				.getProperty("content.chunking");
+		if ("cdc".equals(chunking)) {
+			cdcSizes = new int[] {
+					getIntProperty(props, "content.chunking.min", 64 * 1024),
+					getIntProperty(props, "content.chunking.avg", chunkSize),
+					getIntProperty(props, "content.chunking.max",
+							4 * chunkSize) };
+			// fail early on bad settings
+			new ContentDefinedChunker(null, cdcSizes[0], cdcSizes[1],
+					cdcSizes[2]);
+		} else if (chunking == null || "fixed".equals(chunking)) {
+			cdcSizes = null;
+		} else {
+			throw new IllegalArgumentException("unsupported chunking mode: "
+					+ chunking);
+		}
+		int readAheadChunks = getIntProperty(props,
+				"content.readahead.chunks", 0);
+		if (readAheadChunks > 0) {
+			readAhead = new ReadAhead(readAheadChunks, getLongProperty(props,
+					"content.readahead.bytes", 8 * 1024 * 1024),
+					SharedExecutors.getFixedThreadPool("v7files-readahead",
+							Math.max(1, getIntProperty(props,
+									"content.readahead.threads", 4))));
+		} else {
+			readAhead = null;
+		}
+		long cacheCompressed = getLongProperty(props,
+				"content.cache.compressed.bytes", 0);
+		long cacheInflated = getLongProperty(props,
+				"content.cache.inflated.bytes", 0);
+		if (cacheCompressed > 0 || cacheInflated > 0) {
+			cache = ChunkCache.getShared(cacheCompressed, cacheInflated,
+					getLongProperty(props, "content.cache.log", 60));
+		} else {
+			cache = null;
+		}
+		long filterRefresh = getLongProperty(props, "content.filter.refresh", 0);
+		filter = filterRefresh > 0 ? ShaFilter.forCollection(
+				contentCollection, packs, filterRefresh) : null;
+		compression = new CompressionPolicy(props);
+		fanOut = getIntProperty(props, "content.cat.fanout", 4096);
+		treeHash = props != null
+				&& BooleanUtils.toBoolean(props.getProperty("content.tree.hash"));
 		storageSchemes.put("gz", new GzippedContent());
 		storageSchemes.put("cat", new ContentConcatenation());
 		storageSchemes.put("zip", new ZipFile.ContentFromZipFile());
+		storageSchemes.put("delta", new ContentDelta());
+		storageSchemes.put("pack", new PackedContent());
+	}
+
+	private static int getIntProperty(Properties props, String key,
+			int defaultValue) {
+		if (props == null)
+			return defaultValue;
+		return NumberUtils.toInt(props.getProperty(key), defaultValue);
+	}
+
+	private static long getLongProperty(Properties props, String key,
+			long defaultValue) {
+		if (props == null)
+			return defaultValue;
+		return NumberUtils.toLong(props.getProperty(key), defaultValue);
+	}
+
+	/**
+	 * @param tracker
+	 *            to be told about every stored content that is read, can be
+	 *            null
+	 */
+	void setAccessTracker(AccessTracker tracker) {
+		accessTracker = tracker;
+	}
+
+	void addStorageScheme(StorageScheme scheme) {
+		storageSchemes.put(scheme.getId(), scheme);
+	}
+
+	DBCollection getContentCollection() {
+		return contentCollection;
+	}
+
+	PackIndex getPackIndex() {
+		return packs;
+	}
+
+	/**
+	 * @return the compression policy
+	 */
+	public CompressionPolicy getCompressionPolicy() {
+		return compression;
+	}
+
+	/**
+	 * @return the chunk cache (to look at its statistics), or null if caching
+	 *         is disabled
+	 */
+	public ChunkCache getChunkCache() {
+		return cache;
 	}
 
 	public Content getContent(byte[] sha) throws IOException {
-		return getContent(contentCollection.findOne(sha));
+		AccessTracker tracker = accessTracker;
+		if (cache != null) {
+			Content c = cache.get(contentCollection, sha);
+			if (c != null) {
+				if (tracker != null)
+					tracker.accessed(sha);
+				return c;
+			}
+		}
+		DBObject data = contentCollection.findOne(sha);
+		if (data == null)
+			data = findPacked(sha);
+		if (data != null) {
+			if (cache != null)
+				cache.put(contentCollection, sha, data);
+			if (tracker != null)
+				tracker.accessed(sha);
+		}
+		return getContent(data);
+	}
+
+	/**
+	 * @return the document that the content had before it was packed, or
+	 *         null if it has not been packed
+	 */
+	private DBObject findPacked(byte[] sha) {
+		// try again if the pack has just been re-packed
+		for (int i = 0; i < 2; i++) {
+			byte[] record = packs.locate(sha);
+			if (record == null)
+				return null;
+			DBObject data = PackedContent.getMember(contentCollection, record);
+			if (data != null)
+				return data;
+		}
+		return null;
 	}
 
 	public ContentSHA findContentPointerByPrefix(byte[] shaPrefix)
 			throws IOException {
 		if (shaPrefix.length == 20) {
 			DBObject file = contentCollection.findOne(shaPrefix);
+			if (file == null)
+				file = findPacked(shaPrefix);
 			if (file == null)
 				return null;
 			Content c = getContent(file);
@@ -126,6 +437,7 @@ public class MongoContentStorage implements ContentStorage {
 		List<DBObject> files = contentCollection.find(
 				QueryUtils.between(_ID, lower, higher), new BasicDBObject())
 				.limit(2).toArray();
+		addPackedByPrefix(shaPrefix, files);
 		if (files.isEmpty())
 			return null;
 		if (files.size() == 1) {
@@ -137,6 +449,28 @@ public class MongoContentStorage implements ContentStorage {
 				+ " is not a unique SHA prefix");
 	}
 
+	/**
+	 * adds the packed content with the SHA prefix (as documents with an
+	 * <code>_id</code>), until there are two
+	 */
+	private void addPackedByPrefix(byte[] shaPrefix, List<DBObject> files) {
+		if (files.size() > 1 || shaPrefix.length < 2)
+			return;
+		for (byte[] record : packs.findByPrefix(shaPrefix, 2)) {
+			byte[] sha = PackIndex.getSHA(record);
+			if (!files.isEmpty()
+					&& Arrays.equals(sha, (byte[]) files.get(0).get(_ID)))
+				continue;
+			DBObject data = PackedContent.getMember(contentCollection, record);
+			if (data == null)
+				continue;
+			data.put(_ID, sha);
+			files.add(data);
+			if (files.size() > 1)
+				return;
+		}
+	}
+
 	public Content findContentByPrefix(byte[] shaPrefix) throws IOException {
 		if (shaPrefix.length == 20)
 			return getContent(shaPrefix);
@@ -152,6 +486,7 @@ public class MongoContentStorage implements ContentStorage {
 		List<DBObject> files = contentCollection.find(
 				QueryUtils.between(_ID, lower, higher), new BasicDBObject())
 				.limit(2).toArray();
+		addPackedByPrefix(shaPrefix, files);
 		if (files.isEmpty())
 			return null;
 		if (files.size() == 1)
@@ -166,41 +501,104 @@ public class MongoContentStorage implements ContentStorage {
 		if (pointer instanceof InlineContent)
 			return (Content) pointer;
 
-		if (pointer instanceof ContentSHA) {
-			ContentSHA p = (ContentSHA) pointer;
-			byte[] sha = p.getSHA();
-
-			Content base = getContent(sha);
-			if (base == null)
-				throw new IllegalArgumentException("base SHA not found: "
-						+ Hex.encodeHexString(sha));
-
-			return base;
+		byte[] sha = getBaseSHA(pointer);
+		Content base = getContent(sha);
+		if (base == null)
+			throw new IllegalArgumentException("base SHA not found: "
+					+ Hex.encodeHexString(sha));
+		return trim(pointer, base);
+	}
 
+	/**
+	 * looks up all the stored contents with a single <code>$in</code> query
+	 */
+	public Content[] getContents(ContentPointer[] pointers) throws IOException {
+		AccessTracker tracker = accessTracker;
+		Content[] result = new Content[pointers.length];
+		List<byte[]> shas = new ArrayList<byte[]>(pointers.length);
+		for (int i = 0; i < pointers.length; i++) {
+			ContentPointer p = pointers[i];
+			if (p instanceof InlineContent) {
+				result[i] = (Content) p;
+			} else if (p != null) {
+				byte[] sha = getBaseSHA(p);
+				Content cached = cache == null ? null : cache.get(contentCollection, sha);
+				if (cached != null) {
+					result[i] = trim(p, cached);
+					if (tracker != null)
+						tracker.accessed(sha);
+				} else
+					shas.add(sha);
+			}
 		}
+		if (shas.isEmpty())
+			return result;
 
-		if (pointer instanceof StoredContent) {
-			StoredContent p = (StoredContent) pointer;
-			byte[] sha = p.getBaseSHA();
-
-			Content base = getContent(sha);
-			if (base == null)
-				throw new IllegalArgumentException("base SHA not found: "
-						+ Hex.encodeHexString(sha));
-
-			if (p.getLength() != base.getLength()) {
-				return new OffsetAndLength(base, 0, p.getLength());
+		Map<String, DBObject> found = new HashMap<String, DBObject>();
+		for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+				new BasicDBObject("$in", shas)))) {
+			byte[] sha = (byte[]) o.get(_ID);
+			if (cache != null)
+				cache.put(contentCollection, sha, o);
+			if (tracker != null)
+				tracker.accessed(sha);
+			found.put(Hex.encodeHexString(sha), o);
+		}
+		if (found.size() < shas.size()) {
+			List<byte[]> missing = new ArrayList<byte[]>();
+			for (byte[] sha : shas)
+				if (!found.containsKey(Hex.encodeHexString(sha)))
+					missing.add(sha);
+			for (byte[] record : packs.locate(missing).values()) {
+				byte[] sha = PackIndex.getSHA(record);
+				DBObject o = PackedContent.getMember(contentCollection, record);
+				if (o == null)
+					o = findPacked(sha);
+				if (o == null)
+					continue;
+				if (cache != null)
+					cache.put(contentCollection, sha, o);
+				if (tracker != null)
+					tracker.accessed(sha);
+				found.put(Hex.encodeHexString(sha), o);
 			}
+		}
+		for (int i = 0; i < pointers.length; i++) {
+			ContentPointer p = pointers[i];
+			if (result[i] != null || p == null)
+				continue;
+			DBObject o = found.get(Hex.encodeHexString(getBaseSHA(p)));
+			if (o != null)
+				result[i] = trim(p, getContent(o));
+		}
+		return result;
+	}
 
-			return base;
+	public ReadAhead getReadAhead() {
+		return readAhead;
+	}
 
-		}
+	private static byte[] getBaseSHA(ContentPointer pointer) {
+		if (pointer instanceof ContentSHA)
+			return ((ContentSHA) pointer).getSHA();
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getBaseSHA();
 		throw new IllegalArgumentException(pointer.getClass().toString());
+	}
 
+	private static Content trim(ContentPointer pointer, Content base) {
+		if (pointer instanceof StoredContent
+				&& pointer.getLength() != base.getLength())
+			return new OffsetAndLength(base, 0, pointer.getLength());
+		return base;
 	}
 
+	/**
+	 * @param data
+	 *            a document from the content collection (its _id is removed)
+	 */
 	@SuppressWarnings("unchecked")
-	private Content getContent(BSONObject data) throws IOException {
+	Content getContent(BSONObject data) throws IOException {
 		if (data == null)
 			return null;
 		data.removeField("_id");
@@ -237,43 +635,52 @@ public class MongoContentStorage implements ContentStorage {
 	}
 
 	public ContentSHA storeContent(InputStream data) throws IOException {
+		return storeContent(data, null);
+	}
+
+	public ContentSHA storeContent(InputStream data, String contentType)
+			throws IOException {
+		DB db = contentCollection.getDB();
+		if (maxUnacknowledged > 0)
+			db.requestStart();
 		try {
-			MessageDigest completeSHA = MessageDigest.getInstance("SHA");
-			long completeLength = 0;
-			byte[] chunk = new byte[chunkSize];
 			int read;
-			List<ContentSHA> chunks = new ArrayList<ContentSHA>();
-
-			while (0 < (read = readFully(data, chunk))) {
-				completeSHA.update(chunk, 0, read);
-				completeLength += read;
-				chunks.add(storeContentChunk(chunk, 0, read));
-			}
-			if (chunks.isEmpty())
-				return storeContentChunk(ArrayUtils.EMPTY_BYTE_ARRAY, 0, 0);
-
-			if (chunks.size() == 1)
-				return chunks.get(0);
-
-			List<Map<String, Object>> bases = new ArrayList<Map<String, Object>>(
-					chunks.size());
-			for (ContentSHA c : chunks) {
-				bases.add(c.serialize());
+			ContentDefinedChunker cdc = cdcSizes == null ? null
+					: new ContentDefinedChunker(data, cdcSizes[0],
+							cdcSizes[1], cdcSizes[2]);
+			ChunkPipeline pipeline = new ChunkPipeline(contentCollection,
+					filter, packs, compression, cpuPool, ioPool, writers,
+					cdc == null ? chunkSize : cdc.getMaxChunkSize(), batchSize,
+					window, maxUnacknowledged);
+			CatTree tree = new CatTree(this, pipeline, fanOut, treeHash);
+
+			while (true) {
+				byte[] chunk = pipeline.nextBuffer();
+				read = cdc == null ? readFully(data, chunk) : cdc.next(chunk);
+				if (read == 0) {
+					pipeline.release(chunk);
+					break;
+				}
+				if (tree.getLength() == 0)
+					pipeline.setCompressionLevel(compression.getLevel(
+							contentType, chunk, 0, read));
+				tree.add(chunk, read);
 			}
-			ContentSHA result = ContentSHA.forDigestAndLength(completeSHA
-					.digest(), completeLength);
-			long existing = contentCollection.count(new BasicDBObject(_ID,
-					result.getSHA()));
-			if (existing == 0) {
-				contentCollection
-						.insert(new BasicDBObject(_ID, result.getSHA()).append(
-								"store", "cat").append("base", bases),
-								WriteConcern.SAFE);
+			ContentSHA result = tree.finish();
+			if (log.isDebugEnabled() && tree.getChunkCount() > 1)
+				log.debug("stored " + tree.getLength() + " bytes in "
+						+ tree.getChunkCount() + " chunks, "
+						+ pipeline.getNewChunkCount() + " of them new");
+
+			if (result == null) {
+				// a tree of one (empty) leaf has the same hash
+				result = storeContentChunk(ArrayUtils.EMPTY_BYTE_ARRAY, 0, 0);
+				return treeHash ? result.withTree(result.getSHA()) : result;
 			}
 			return result;
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
 		} finally {
+			if (maxUnacknowledged > 0)
+				db.requestDone();
 			IOUtils.closeQuietly(data);
 		}
 
@@ -284,28 +691,82 @@ public class MongoContentStorage implements ContentStorage {
 		ContentSHA _sha = ContentSHA.calculate(bytes, offset, length);
 		byte[] sha = _sha.getSHA();
 
-		long existing = contentCollection.count(new BasicDBObject(_ID, sha));
-		if (existing == 0) {
-			byte[] gzipped = Compression.gzip(bytes, offset, length);
-			if (gzipped != null && gzipped.length > chunkSize)
-				gzipped = null;
-			if (gzipped != null) {
-				bytes = null;
-				contentCollection.insert(new BasicDBObject(_ID, sha).append(
-						"zin", gzipped).append("store", "gz"),
-						WriteConcern.SAFE);
-				gzipped = null;
-			} else {
-				if (offset > 0 || bytes.length != length) {
-					bytes = ArrayUtils.subarray(bytes, offset, offset + length);
-				}
-				contentCollection.insert(new BasicDBObject(_ID, sha).append(
-						"in", bytes), WriteConcern.SAFE);
-			}
-		}
+		if (!exists(sha))
+			insert(chunkDocument(sha, bytes, offset, length, compression,
+					compression.getLevel(null, bytes, offset, length)));
 		return _sha;
 	}
 
+	/**
+	 * stores a "cat" document (unless it is already there)
+	 * 
+	 * @param tree
+	 *            the root of the {@link TreeHash}, can be null
+	 */
+	void storeCat(byte[] sha, List<Map<String, Object>> bases, byte[] tree) {
+		if (!exists(sha)) {
+			DBObject cat = new BasicDBObject(_ID, sha).append("store", "cat")
+					.append("base", bases);
+			if (tree != null)
+				cat.put("tree", tree);
+			insert(cat);
+		} else if (tree != null) {
+			// it could have been stored without one
+			contentCollection.update(new BasicDBObject(_ID, sha).append(
+					"tree", new BasicDBObject("$exists", false)),
+					new BasicDBObject("$set", new BasicDBObject("tree", tree)),
+					false, false, WriteConcern.SAFE);
+		}
+	}
+
+	/**
+	 * if the content is there, it is also touched for the
+	 * {@link ContentCollector}, because it is about to be referenced again
+	 */
+	private boolean exists(byte[] sha) {
+		if (filter != null && filter.isDefinitelyNew(sha))
+			return false;
+		if (contentCollection.count(new BasicDBObject(_ID, sha)) > 0
+				|| (packs.mayBePacked(sha) && packs.locate(sha) != null)) {
+			ContentCollector.touch(contentCollection, Collections
+					.singletonList(sha));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * inserts the document, it is no error if the same SHA is already there
+	 */
+	private void insert(DBObject doc) {
+		try {
+			contentCollection.insert(doc, WriteConcern.SAFE);
+		} catch (MongoException.DuplicateKey e) {
+			// stored by someone else in the meantime, same content
+			ContentCollector.touch(contentCollection, Collections
+					.singletonList((byte[]) doc.get(_ID)));
+		}
+		if (filter != null)
+			filter.add((byte[]) doc.get(_ID));
+	}
+
+	/**
+	 * the document for a single chunk, gzipped if that makes it smaller (and
+	 * the compression level is not NO_COMPRESSION)
+	 */
+	static DBObject chunkDocument(byte[] sha, byte[] bytes, int offset,
+			int length, CompressionPolicy compression, int level) {
+		byte[] gzipped = compression.gzip(bytes, offset, length, level);
+		if (gzipped != null) {
+			return new BasicDBObject(_ID, sha).append("zin", gzipped).append(
+					"store", "gz");
+		}
+		if (offset > 0 || bytes.length != length) {
+			bytes = ArrayUtils.subarray(bytes, offset, offset + length);
+		}
+		return new BasicDBObject(_ID, sha).append("in", bytes);
+	}
+
 	public ContentPointer storeContent(Map<String, Object> storageScheme)
 			throws IOException {
 		StorageScheme s = storageSchemes.get(storageScheme.get("store"));
@@ -320,10 +781,9 @@ public class MongoContentStorage implements ContentStorage {
 		byte[] sha = DigestUtils.sha(s.getContent(this, storageScheme)
 				.getInputStream());
 
-		long existing = contentCollection.count(new BasicDBObject(_ID, sha));
-		if (existing == 0) {
+		if (!exists(sha)) {
 			x.put(_ID, sha);
-			contentCollection.insert(x, WriteConcern.SAFE);
+			insert(x);
 		}
 		return new StoredContent(sha, length);
 	}
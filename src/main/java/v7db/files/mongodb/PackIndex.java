@@ -0,0 +1,363 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import v7db.files.DaemonThreadFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Finds the content that has been packed, see {@link PackedContent}.
+ * <p>
+ * The index does not have a document per packed SHA (that would just move
+ * the index size problem to another collection), but one per SHA prefix (the
+ * first two bytes), so it never has more than 65536 documents:
+ * <code>{ _id: prefix, m: [ record, ... ] }</code>. Every record is 48 bytes
+ * of binary data: the SHA (20 bytes), the <code>_id</code> of the pack (20
+ * bytes), the position within the pack and the length of the content (4
+ * bytes each).
+ * <p>
+ * The same SHA can have more than one record for a short time (while it is
+ * being re-packed). Every one of them is good.
+ * <p>
+ * Storing new content only needs to know whether it has been packed, which
+ * it almost never has. To avoid loading a bucket for every new chunk, the
+ * packed SHAs can be kept in an in-process Bloom filter (see
+ * {@link #useFilter(long)}). It learns about the packs made in this process
+ * right away, and about those made by other processes when it is re-built.
+ * Until then, content packed elsewhere can be stored again, unpacked (which
+ * is harmless, the content is the same).
+ */
+
+class PackIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(PackIndex.class);
+
+	final static String PACK_INDEX_COLLECTION_NAME = "v7files.content.packs";
+
+	private static final int PREFIX = 2;
+
+	private static final int RECORD = 48;
+
+	private final DBCollection indexCollection;
+
+	/**
+	 * by the server addresses and the full name of the index collection
+	 */
+	private static final Map<String, Filter> filters = new HashMap<String, Filter>();
+
+	private final String key;
+
+	PackIndex(DB db) {
+		indexCollection = db.getCollection(PACK_INDEX_COLLECTION_NAME);
+		key = db.getMongo().getServerAddressList() + "/"
+				+ indexCollection.getFullName();
+	}
+
+	/**
+	 * filters {@link #mayBePacked(byte[])} through the Bloom filter of the
+	 * packed SHAs, which is shared by all PackIndex instances for the same
+	 * index in the process
+	 * 
+	 * @param refreshMinutes
+	 *            how often the filter is re-built from scratch (only used
+	 *            when the filter for the index is created)
+	 */
+	void useFilter(long refreshMinutes) {
+		synchronized (filters) {
+			if (!filters.containsKey(key))
+				filters.put(key, new Filter(this, refreshMinutes));
+		}
+	}
+
+	private Filter getFilter() {
+		synchronized (filters) {
+			return filters.get(key);
+		}
+	}
+
+	/**
+	 * @return false, if the SHA has certainly not been packed (as far as this
+	 *         process knows, see above), true if it has to be looked up
+	 */
+	boolean mayBePacked(byte[] sha) {
+		Filter f = getFilter();
+		if (f == null)
+			return true;
+		ShaFilter.Bloom b = f.current;
+		return b == null || b.mightContain(sha);
+	}
+
+	/**
+	 * @return the ones that {@link #mayBePacked(byte[])}
+	 */
+	List<byte[]> mayBePacked(Collection<byte[]> shas) {
+		List<byte[]> result = new ArrayList<byte[]>(shas.size());
+		for (byte[] sha : shas)
+			if (mayBePacked(sha))
+				result.add(sha);
+		return result;
+	}
+
+	static byte[] record(byte[] sha, byte[] pack, int slot, int length) {
+		return ByteBuffer.allocate(RECORD).put(sha, 0, 20).put(pack, 0, 20)
+				.putInt(slot).putInt(length).array();
+	}
+
+	static byte[] getSHA(byte[] record) {
+		return Arrays.copyOfRange(record, 0, 20);
+	}
+
+	static byte[] getPack(byte[] record) {
+		return Arrays.copyOfRange(record, 20, 40);
+	}
+
+	static int getSlot(byte[] record) {
+		return ByteBuffer.wrap(record).getInt(40);
+	}
+
+	static int getLength(byte[] record) {
+		return ByteBuffer.wrap(record).getInt(44);
+	}
+
+	private static byte[] bucket(byte[] sha) {
+		return Arrays.copyOf(sha, PREFIX);
+	}
+
+	private static boolean startsWith(byte[] record, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++)
+			if (record[i] != prefix[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the record for the SHA, or null if it has not been packed
+	 */
+	byte[] locate(byte[] sha) {
+		DBObject b = indexCollection.findOne(new BasicDBObject(_ID,
+				bucket(sha)));
+		if (b == null)
+			return null;
+		for (Object r : (List<?>) b.get("m"))
+			if (r instanceof byte[] && startsWith((byte[]) r, sha))
+				return (byte[]) r;
+		return null;
+	}
+
+	/**
+	 * looks up all the SHAs with a single <code>$in</code> query
+	 * 
+	 * @return the records found, by the hex-encoded SHA
+	 */
+	Map<String, byte[]> locate(Collection<byte[]> shas) {
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		if (shas.isEmpty())
+			return result;
+		Map<String, byte[]> wanted = new HashMap<String, byte[]>();
+		for (byte[] sha : shas)
+			wanted.put(Hex.encodeHexString(sha), bucket(sha));
+		for (DBObject b : indexCollection.find(new BasicDBObject(_ID,
+				new BasicDBObject("$in", new ArrayList<byte[]>(wanted
+						.values()))))) {
+			for (Object r : (List<?>) b.get("m")) {
+				if (!(r instanceof byte[]))
+					continue;
+				String hex = Hex.encodeHexString(getSHA((byte[]) r));
+				if (wanted.containsKey(hex) && !result.containsKey(hex))
+					result.put(hex, (byte[]) r);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param prefix
+	 *            at least two bytes
+	 * @return the records of up to <code>limit</code> different SHAs that
+	 *         start with the prefix
+	 */
+	List<byte[]> findByPrefix(byte[] prefix, int limit) {
+		List<byte[]> result = new ArrayList<byte[]>();
+		DBObject b = indexCollection.findOne(new BasicDBObject(_ID,
+				bucket(prefix)));
+		if (b == null)
+			return result;
+		for (Object r : (List<?>) b.get("m")) {
+			if (!(r instanceof byte[]) || !startsWith((byte[]) r, prefix))
+				continue;
+			boolean seen = false;
+			for (byte[] x : result)
+				seen |= startsWith(x, getSHA((byte[]) r));
+			if (!seen) {
+				result.add((byte[]) r);
+				if (result.size() >= limit)
+					break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * adds the records, with one update per bucket
+	 */
+	void add(List<byte[]> records) {
+		Filter f = getFilter();
+		if (f != null)
+			for (byte[] r : records)
+				f.add(getSHA(r));
+		for (Map.Entry<String, List<byte[]>> e : byBucket(records).entrySet()) {
+			List<byte[]> r = e.getValue();
+			indexCollection.update(new BasicDBObject(_ID, bucket(r.get(0))),
+					new BasicDBObject("$addToSet", new BasicDBObject("m",
+							new BasicDBObject("$each", r))), true, false,
+					WriteConcern.SAFE);
+		}
+	}
+
+	/**
+	 * removes the records, with one update per bucket
+	 */
+	void remove(List<byte[]> records) {
+		for (Map.Entry<String, List<byte[]>> e : byBucket(records).entrySet()) {
+			List<byte[]> r = e.getValue();
+			indexCollection.update(new BasicDBObject(_ID, bucket(r.get(0))),
+					new BasicDBObject("$pullAll", new BasicDBObject("m", r)),
+					false, false, WriteConcern.SAFE);
+		}
+	}
+
+	private static Map<String, List<byte[]>> byBucket(List<byte[]> records) {
+		Map<String, List<byte[]>> result = new HashMap<String, List<byte[]>>();
+		for (byte[] r : records) {
+			String key = Hex.encodeHexString(bucket(r));
+			List<byte[]> l = result.get(key);
+			if (l == null) {
+				l = new ArrayList<byte[]>();
+				result.put(key, l);
+			}
+			l.add(r);
+		}
+		return result;
+	}
+
+	/**
+	 * @return about how many SHAs have been packed (the number of buckets
+	 *         times the size of one of them, the SHAs are evenly distributed)
+	 */
+	long estimateCount() {
+		long buckets = indexCollection.count();
+		if (buckets == 0)
+			return 0;
+		DBObject b = indexCollection.findOne();
+		if (b == null || !(b.get("m") instanceof List<?>))
+			return 0;
+		return buckets * ((List<?>) b.get("m")).size();
+	}
+
+	/**
+	 * adds all packed SHAs to the filter
+	 * 
+	 * @return how many there were
+	 */
+	long seed(ShaFilter.Bloom filter) {
+		long count = 0;
+		DBCursor buckets = indexCollection.find();
+		try {
+			for (DBObject b : buckets)
+				for (Object r : (List<?>) b.get("m"))
+					if (r instanceof byte[]) {
+						filter.add(getSHA((byte[]) r));
+						count++;
+					}
+		} finally {
+			buckets.close();
+		}
+		return count;
+	}
+
+	/**
+	 * the packed SHAs. Removed records stay in there until the next re-build,
+	 * which only costs an extra lookup.
+	 */
+	private static final class Filter {
+
+		private volatile ShaFilter.Bloom current;
+
+		private volatile ShaFilter.Bloom building;
+
+		Filter(final PackIndex packs, long refreshMinutes) {
+			ScheduledExecutorService scheduler = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+							"v7files-pack-filter"));
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					seed(packs);
+				}
+			}, 0, refreshMinutes, TimeUnit.MINUTES);
+		}
+
+		void seed(PackIndex packs) {
+			try {
+				long start = System.currentTimeMillis();
+				ShaFilter.Bloom b = new ShaFilter.Bloom(Math.max(
+						2 * packs.estimateCount(), 1 << 16));
+				building = b;
+				long count = packs.seed(b);
+				current = b;
+				log.info("seeded pack filter with " + count + " ids in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			} catch (Exception e) {
+				log.warn("failed to seed pack filter", e);
+			} finally {
+				building = null;
+			}
+		}
+
+		void add(byte[] sha) {
+			ShaFilter.Bloom b = current;
+			if (b != null)
+				b.add(sha);
+			b = building;
+			if (b != null)
+				b.add(sha);
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentConcatenation;
+import v7db.files.spi.ContentStorage;
+import v7db.files.spi.StorageScheme;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * <pre>
+ * store: 'pack'
+ * m:  [ { sha: &lt;sha&gt;, in: &lt;bytes&gt; }, { sha: &lt;sha&gt;, store: 'gz', zin: &lt;bytes&gt; }, ... ]
+ * </pre>
+ * 
+ * Many small contents in a single document of the content collection, so that
+ * they do not need an entry each in the <code>_id</code> index. The members
+ * are the documents that the contents had before they were packed (without
+ * the <code>_id</code>, but with the <code>sha</code>). Their position in
+ * <code>m</code> is their offset in the pack, and the {@link PackIndex} finds
+ * them by SHA. A single member is read with a <code>$slice</code> projection,
+ * not the whole pack.
+ * <p>
+ * The <code>_id</code> of a pack is the SHA-1 of the SHAs of its members (not
+ * of its content). As content, a pack is the concatenation of its members,
+ * which is only good for looking at it.
+ * <p>
+ * Packs are written (and re-written) by the {@link ContentPacker}.
+ */
+
+class PackedContent implements StorageScheme {
+
+	public Content getContent(ContentStorage storage, Map<String, Object> data)
+			throws IOException {
+		List<Object> base = new ArrayList<Object>();
+		for (Object m : (List<?>) data.get("m"))
+			base.add(withoutSHA((DBObject) m).toMap());
+		Map<String, Object> cat = new HashMap<String, Object>();
+		cat.put("store", "cat");
+		cat.put("base", base);
+		return new ContentConcatenation().getContent(storage, cat);
+	}
+
+	public String getId() {
+		return "pack";
+	}
+
+	/**
+	 * @return the SHA-1 of all the SHAs, in order
+	 */
+	static byte[] packId(List<byte[]> shas) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA");
+			for (byte[] sha : shas)
+				md.update(sha);
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the pack member for a document of the content collection
+	 */
+	static DBObject member(DBObject doc) {
+		BasicDBObject m = new BasicDBObject("sha", doc.get(_ID));
+		for (String key : doc.keySet())
+			if (!_ID.equals(key))
+				m.put(key, doc.get(key));
+		return m;
+	}
+
+	/**
+	 * @return the document that the member had before it was packed (without
+	 *         the <code>_id</code>)
+	 */
+	static DBObject withoutSHA(DBObject member) {
+		BasicDBObject doc = new BasicDBObject();
+		for (String key : member.keySet())
+			if (!"sha".equals(key))
+				doc.put(key, member.get(key));
+		return doc;
+	}
+
+	/**
+	 * reads a single member of a pack
+	 * 
+	 * @param record
+	 *            from the {@link PackIndex}
+	 * @return the document that the member had before it was packed (without
+	 *         the <code>_id</code>), or null if the pack is gone (or does not
+	 *         contain the member)
+	 */
+	static DBObject getMember(DBCollection contentCollection, byte[] record) {
+		DBObject pack = contentCollection.findOne(new BasicDBObject(_ID,
+				PackIndex.getPack(record)), new BasicDBObject("m",
+				new BasicDBObject("$slice", Arrays.asList(PackIndex
+						.getSlot(record), 1))));
+		if (pack == null || !(pack.get("m") instanceof List<?>))
+			return null;
+		List<?> m = (List<?>) pack.get("m");
+		if (m.size() != 1)
+			return null;
+		DBObject member = (DBObject) m.get(0);
+		Object sha = member.get("sha");
+		if (!(sha instanceof byte[])
+				|| !Arrays.equals((byte[]) sha, PackIndex.getSHA(record)))
+			return null;
+		return withoutSHA(member);
+	}
+
+}
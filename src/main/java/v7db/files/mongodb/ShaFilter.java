@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import v7db.files.DaemonThreadFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * In-process Bloom filter of the SHAs in the content collection, so that
+ * chunks that are definitely new can be inserted without asking the database
+ * first.
+ * <p>
+ * The filter is (re-)built in the background by streaming all
+ * <code>_id</code>s (and the SHAs in the {@link PackIndex}), and updated whenever content is stored. Until the first
+ * build is complete, nothing is considered definitely new.
+ * <p>
+ * Content stored by other processes (or during a re-build) can be missing
+ * from the filter. Callers must therefore still handle a duplicate key error
+ * on insert (which is harmless, the content is the same). Removed content
+ * stays in the filter until the next re-build, which only costs an extra
+ * query.
+ * <p>
+ * There is only one filter per content collection in the process (see
+ * {@link #forCollection(DBCollection, PackIndex, long)}), no matter how many
+ * storages use it.
+ */
+
+class ShaFilter {
+
+	private static final Logger log = LoggerFactory.getLogger(ShaFilter.class);
+
+	private final DBCollection contentCollection;
+
+	private final PackIndex packs;
+
+	private volatile Bloom current;
+
+	private volatile Bloom building;
+
+	/**
+	 * by the server addresses and the full name of the collection
+	 */
+	private static final Map<String, ShaFilter> filters = new HashMap<String, ShaFilter>();
+
+	/**
+	 * @param refreshMinutes
+	 *            how often the filter is re-built from scratch (only used
+	 *            when the filter for the collection is created)
+	 * @return the shared filter for the content collection
+	 */
+	static synchronized ShaFilter forCollection(
+			DBCollection contentCollection, PackIndex packs,
+			long refreshMinutes) {
+		String key = contentCollection.getDB().getMongo()
+				.getServerAddressList()
+				+ "/" + contentCollection.getFullName();
+		ShaFilter filter = filters.get(key);
+		if (filter == null) {
+			filter = new ShaFilter(contentCollection, packs, refreshMinutes);
+			filters.put(key, filter);
+		}
+		return filter;
+	}
+
+	private ShaFilter(DBCollection contentCollection, PackIndex packs,
+			long refreshMinutes) {
+		this.contentCollection = contentCollection;
+		this.packs = packs;
+		ScheduledExecutorService scheduler = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+						"v7files-sha-filter"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				seed();
+			}
+		}, 0, refreshMinutes, TimeUnit.MINUTES);
+	}
+
+	void seed() {
+		try {
+			long start = System.currentTimeMillis();
+			long count = contentCollection.count();
+			Bloom b = new Bloom(Math.max(2 * (count + packs.estimateCount()),
+					1 << 20));
+			building = b;
+			DBCursor ids = contentCollection.find(new BasicDBObject(),
+					new BasicDBObject(_ID, 1));
+			try {
+				for (DBObject o : ids) {
+					b.add((byte[]) o.get(_ID));
+				}
+			} finally {
+				ids.close();
+			}
+			count += packs.seed(b);
+			current = b;
+			log.info("seeded content SHA filter with " + count + " ids in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (Exception e) {
+			log.warn("failed to seed content SHA filter", e);
+		} finally {
+			building = null;
+		}
+	}
+
+	/**
+	 * @return true, if the content is certainly not stored yet
+	 */
+	boolean isDefinitelyNew(byte[] sha) {
+		Bloom b = current;
+		return b != null && !b.mightContain(sha);
+	}
+
+	/**
+	 * records content that has been stored (or found to exist)
+	 */
+	void add(byte[] sha) {
+		Bloom b = current;
+		if (b != null)
+			b.add(sha);
+		b = building;
+		if (b != null)
+			b.add(sha);
+	}
+
+	/**
+	 * 10 bits and 7 hash functions per entry, for about 1% false positives at
+	 * the expected size. The SHA is already uniformly distributed, so the hash
+	 * functions are derived from its first 16 bytes (double hashing).
+	 */
+	static final class Bloom {
+
+		private static final int HASHES = 7;
+
+		private final AtomicLongArray bits;
+
+		private final long size;
+
+		Bloom(long expectedEntries) {
+			bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE,
+					(expectedEntries * 10 + 63) / 64));
+			size = bits.length() * 64L;
+		}
+
+		void add(byte[] sha) {
+			ByteBuffer b = ByteBuffer.wrap(sha);
+			long h1 = b.getLong(0);
+			long h2 = b.getLong(8) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long old = bits.get(word);
+				while ((old & mask) == 0
+						&& !bits.compareAndSet(word, old, old | mask))
+					old = bits.get(word);
+			}
+		}
+
+		boolean mightContain(byte[] sha) {
+			ByteBuffer b = ByteBuffer.wrap(sha);
+			long h1 = b.getLong(0);
+			long h2 = b.getLong(8) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+				if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+	}
+
+}
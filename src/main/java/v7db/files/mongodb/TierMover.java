@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.bson.BSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import v7db.files.local.AppendOnlyStore;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Moves chunks that have not been read for a while to the cold tier, see
+ * {@link TieredContentStorage}.
+ * <p>
+ * Every run goes once through the content collection, in <code>_id</code>
+ * order and in batches. Chunks that are not in the access collection yet get
+ * an entry, so that they become cold <code>age</code> after that. No more than
+ * <code>bytesPerSecond</code> are moved.
+ * <p>
+ * The original documents are appended to the cold tier and synced before the
+ * stubs replace them, so a run can be interrupted at any time. The worst that
+ * can happen is some unreferenced data in the cold tier.
+ */
+
+class TierMover implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(TierMover.class);
+
+	/**
+	 * documents smaller than this are not worth moving
+	 */
+	private static final int MIN_SIZE = 4096;
+
+	private final DBCollection contentCollection;
+
+	private final DBCollection accessCollection;
+
+	private final AppendOnlyStore cold;
+
+	private final long age;
+
+	private final long bytesPerSecond;
+
+	private final int batchSize;
+
+	private volatile long movedChunks, movedBytes;
+
+	TierMover(DBCollection contentCollection, DBCollection accessCollection,
+			AppendOnlyStore cold, long age, long bytesPerSecond, int batchSize) {
+		this.contentCollection = contentCollection;
+		this.accessCollection = accessCollection;
+		this.cold = cold;
+		this.age = age;
+		this.bytesPerSecond = Math.max(1, bytesPerSecond);
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public void run() {
+		try {
+			moveColdContent();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.warn("failed to move cold content", e);
+		}
+	}
+
+	synchronized void moveColdContent() throws IOException,
+			InterruptedException {
+		long start = System.currentTimeMillis();
+		Date cutoff = new Date(start - age);
+		long bytes = 0;
+		int chunks = 0;
+		byte[] last = null;
+		while (true) {
+			DBObject query = last == null ? new BasicDBObject()
+					: new BasicDBObject(_ID, new BasicDBObject("$gt", last));
+			List<DBObject> batch = contentCollection.find(query,
+					new BasicDBObject(_ID, 1).append("store", 1)).sort(
+					new BasicDBObject(_ID, 1)).limit(batchSize).toArray();
+			if (batch.isEmpty())
+				break;
+			last = (byte[]) batch.get(batch.size() - 1).get(_ID);
+
+			// only chunks (not the documents that refer to them)
+			List<byte[]> chunkIds = new ArrayList<byte[]>(batch.size());
+			for (DBObject o : batch) {
+				Object store = o.get("store");
+				if (store == null || "gz".equals(store))
+					chunkIds.add((byte[]) o.get(_ID));
+			}
+			List<byte[]> coldIds = getCold(chunkIds, cutoff);
+			if (coldIds.isEmpty())
+				continue;
+
+			List<DBObject> stubs = new ArrayList<DBObject>(coldIds.size());
+			List<Object> stores = new ArrayList<Object>(coldIds.size());
+			for (DBObject o : contentCollection.find(new BasicDBObject(_ID,
+					new BasicDBObject("$in", coldIds)))) {
+				byte[] record = BSON.encode(o);
+				if (record.length < MIN_SIZE || "tier".equals(o.get("store")))
+					continue;
+				long pos = cold.append(record);
+				stubs.add(new BasicDBObject(_ID, o.get(_ID)).append("store",
+						"tier").append("pos", pos).append("len", record.length));
+				stores.add(o.get("store"));
+				bytes += record.length;
+			}
+			// the stubs must not point to data that could still get lost
+			cold.sync();
+			for (int i = 0; i < stubs.size(); i++) {
+				DBObject stub = stubs.get(i);
+				Object store = stores.get(i);
+				contentCollection.update(new BasicDBObject(_ID, stub.get(_ID))
+						.append("store", store == null ? new BasicDBObject(
+								"$exists", false) : store), stub, false, false,
+						WriteConcern.SAFE);
+			}
+			chunks += stubs.size();
+			movedChunks += stubs.size();
+			movedBytes += bytes;
+
+			// throttle
+			long due = start + bytes * 1000 / bytesPerSecond;
+			long now = System.currentTimeMillis();
+			if (due > now)
+				Thread.sleep(due - now);
+			else if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		if (chunks > 0)
+			log.info("moved " + chunks + " chunks (" + bytes
+					+ " bytes) to the cold tier in "
+					+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return the chunks that have not been read since the cutoff (chunks that
+	 *         have no access record yet get one)
+	 */
+	private List<byte[]> getCold(List<byte[]> chunkIds, Date cutoff) {
+		List<byte[]> result = new ArrayList<byte[]>();
+		if (chunkIds.isEmpty())
+			return result;
+		Map<String, Date> lastRead = new HashMap<String, Date>();
+		for (DBObject o : accessCollection.find(new BasicDBObject(_ID,
+				new BasicDBObject("$in", chunkIds)), new BasicDBObject("last",
+				1))) {
+			lastRead.put(Hex.encodeHexString((byte[]) o.get(_ID)), (Date) o
+					.get("last"));
+		}
+		Date now = new Date();
+		for (byte[] id : chunkIds) {
+			Date last = lastRead.get(Hex.encodeHexString(id));
+			if (last == null)
+				// the clock starts now (no error if someone was faster)
+				accessCollection.insert(new BasicDBObject(_ID, id).append(
+						"last", now).append("count", 0), WriteConcern.NORMAL);
+			else if (last.before(cutoff))
+				result.add(id);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "cold tier: " + movedChunks + " chunks, " + movedBytes
+				+ " bytes moved";
+	}
+
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.BSON;
+import org.bson.BSONObject;
+
+import v7db.files.DaemonThreadFactory;
+import v7db.files.MapUtils;
+import v7db.files.local.AppendOnlyStore;
+import v7db.files.spi.BulkContentStorage;
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.ContentStorage;
+import v7db.files.spi.ReadAhead;
+import v7db.files.spi.StorageScheme;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.WriteConcern;
+
+/**
+ * Keeps the content that has not been read for a while in a cheaper "cold"
+ * tier (an {@link AppendOnlyStore} in a local directory) instead of the
+ * database.
+ * <p>
+ * Reads are counted in the <code>v7files.content.access</code> collection,
+ * see {@link AccessTracker}. Chunks that have not been read for
+ * <code>content.tier.age</code> minutes are moved by a background job, see
+ * {@link TierMover}. In the database, they are replaced by a stub
+ * <code>{ store: "tier", pos: ..., len: ... }</code> that points to the
+ * original (BSON-encoded) document in the cold tier.
+ * <p>
+ * Reading a stub returns the original content, and (property
+ * <code>content.tier.promote</code>) puts the original document back into
+ * the database in the background.
+ * <p>
+ * All instances for the same directory (every endpoint of the same database
+ * gets one) share the cold tier and its background jobs, with the settings
+ * of the first one.
+ */
+
+public class TieredContentStorage implements BulkContentStorage {
+
+	public final static String ACCESS_COLLECTION_NAME = "v7files.content.access";
+
+	/**
+	 * the cold tier of a directory, with its background jobs
+	 */
+	private static final class ColdTier {
+
+		final String key;
+
+		final AppendOnlyStore store;
+
+		final AccessTracker tracker;
+
+		final TierMover mover;
+
+		final ScheduledExecutorService scheduler;
+
+		/**
+		 * null, if promotion is disabled
+		 */
+		final ThreadPoolExecutor promoter;
+
+		final AtomicLong promoted = new AtomicLong();
+
+		int users;
+
+		ColdTier(String key, DBCollection contentCollection, DB db,
+				File dir, Properties props) throws IOException {
+			this.key = key;
+			store = AppendOnlyStore.open(dir, NumberUtils.toLong(props
+					.getProperty("content.tier.segment.bytes"), 1L << 30));
+			DBCollection accessCollection = db
+					.getCollection(ACCESS_COLLECTION_NAME);
+			tracker = new AccessTracker(accessCollection);
+			mover = new TierMover(contentCollection, accessCollection, store,
+					NumberUtils.toLong(props.getProperty("content.tier.age"),
+							7 * 24 * 60) * 60 * 1000, NumberUtils.toLong(props
+							.getProperty("content.tier.rate"),
+							4 * 1024 * 1024), NumberUtils.toInt(props
+							.getProperty("content.tier.batch"), 100));
+
+			if (BooleanUtils.toBoolean(props.getProperty(
+					"content.tier.promote", "true"))) {
+				// promotion is best-effort, it is skipped when too far behind
+				promoter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(1000),
+						new DaemonThreadFactory("v7files-tier-promote"),
+						new ThreadPoolExecutor.DiscardPolicy());
+			} else {
+				promoter = null;
+			}
+
+			scheduler = Executors.newScheduledThreadPool(2,
+					new DaemonThreadFactory("v7files-tier"));
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					tracker.flush();
+				}
+			}, 1, 1, TimeUnit.MINUTES);
+			long interval = NumberUtils.toLong(props
+					.getProperty("content.tier.interval"), 60);
+			if (interval > 0)
+				scheduler.scheduleWithFixedDelay(mover, interval, interval,
+						TimeUnit.MINUTES);
+		}
+
+		void close() throws IOException {
+			scheduler.shutdownNow();
+			if (promoter != null)
+				promoter.shutdown();
+			tracker.flush();
+			store.close();
+		}
+
+	}
+
+	/**
+	 * by the canonical path of the directory
+	 */
+	private static final Map<String, ColdTier> tiers = new HashMap<String, ColdTier>();
+
+	private static synchronized ColdTier openTier(
+			DBCollection contentCollection, DB db, File dir, Properties props)
+			throws IOException {
+		String key = dir.getCanonicalPath();
+		ColdTier tier = tiers.get(key);
+		if (tier == null) {
+			tier = new ColdTier(key, contentCollection, db, dir, props);
+			tiers.put(key, tier);
+		}
+		tier.users++;
+		return tier;
+	}
+
+	private static void closeTier(ColdTier tier) throws IOException {
+		synchronized (TieredContentStorage.class) {
+			if (--tier.users > 0)
+				return;
+			tiers.remove(tier.key);
+		}
+		tier.close();
+	}
+
+	private final MongoContentStorage hot;
+
+	private final ColdTier tier;
+
+	private boolean closed;
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public TieredContentStorage(MongoContentStorage hot, DB db, File coldDir,
+			Properties props) throws IOException {
+		if (props == null)
+			props = new Properties();
+		this.hot = hot;
+		tier = openTier(hot.getContentCollection(), db, coldDir, props);
+		hot.addStorageScheme(new Stub());
+		hot.setAccessTracker(tier.tracker);
+	}
+
+	/**
+	 * the stub for content that has been moved to the cold tier
+	 */
+	private final class Stub implements StorageScheme {
+
+		public String getId() {
+			return "tier";
+		}
+
+		public Content getContent(ContentStorage storage,
+				Map<String, Object> data) throws IOException {
+			final long pos = MapUtils.getRequiredLong(data, "pos");
+			int len = (int) MapUtils.getRequiredLong(data, "len");
+			final BSONObject original = BSON.decode(tier.store.read(pos, len));
+			if (tier.promoter != null)
+				tier.promoter.execute(new Runnable() {
+					public void run() {
+						promote(original, pos);
+					}
+				});
+			Map<String, Object> map = new BasicDBObject(original.toMap());
+			map.remove(_ID);
+			return storage.getContent(map);
+		}
+
+	}
+
+	private void promote(BSONObject original, long pos) {
+		hot.getContentCollection().update(
+				new BasicDBObject(_ID, original.get(_ID)).append("store",
+						"tier").append("pos", pos),
+				new BasicDBObject(original.toMap()), false, false,
+				WriteConcern.NORMAL);
+		tier.promoted.incrementAndGet();
+	}
+
+	/**
+	 * runs the background job that moves cold content right now (on the
+	 * calling thread)
+	 */
+	public void moveColdContent() throws IOException, InterruptedException {
+		tier.tracker.flush();
+		tier.mover.moveColdContent();
+	}
+
+	/**
+	 * stops the background jobs, once all instances for the directory are
+	 * closed (a move that is interrupted leaves everything in a consistent
+	 * state)
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		closeTier(tier);
+	}
+
+	public ContentSHA storeContent(InputStream data) throws IOException {
+		return hot.storeContent(data);
+	}
+
+	public ContentSHA storeContent(InputStream data, String contentType)
+			throws IOException {
+		return hot.storeContent(data, contentType);
+	}
+
+	public ContentPointer storeContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return hot.storeContent(storageScheme);
+	}
+
+	public Content getContent(byte[] sha) throws IOException {
+		return hot.getContent(sha);
+	}
+
+	public Content getContent(ContentPointer pointer) throws IOException {
+		return hot.getContent(pointer);
+	}
+
+	public Content getContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return hot.getContent(storageScheme);
+	}
+
+	public Content[] getContents(ContentPointer[] pointers) throws IOException {
+		return hot.getContents(pointers);
+	}
+
+	public ReadAhead getReadAhead() {
+		return hot.getReadAhead();
+	}
+
+	@Override
+	public String toString() {
+		return tier.mover + ", " + tier.promoted.get() + " promoted";
+	}
+
+}
@@ -22,15 +22,18 @@ import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.bson.BSONObject;
 import org.bson.types.ObjectId;
 
+import v7db.files.spi.CompressedContent;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
 import v7db.files.spi.ContentSHA;
 import v7db.files.spi.InlineContent;
+import v7db.files.spi.TreeHash;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
@@ -95,7 +98,8 @@ public class V7File {
 
 	/**
 	 * useful to send gzipped contents directly to a client that supports it,
-	 * without having to uncompress it first.
+	 * without having to uncompress it first. Chunked files are sent as one gzip
+	 * member per chunk.
 	 * 
 	 * @return the _compressed_ data (using gzip), if present, null if not (no
 	 *         on-the-fly compression is done)
@@ -103,22 +107,35 @@ public class V7File {
 	 */
 
 	public InputStream getInputStreamWithGzipContents() throws IOException {
-		// loadGridFile();
-		// String store = (String) gridFile.get("store");
-		// if ("gz".equals(store))
-		// return gridFile.getInputStream();
-		return null;
+		CompressedContent c = getCompressedContent();
+		if (c == null)
+			return null;
+		return c.getCompressedInputStream();
 	}
 
 	/**
 	 * 
-	 * @return null, if the file is not stored using gzip
+	 * @return null, if the file is not stored using gzip, -1 if the length of
+	 *         the compressed data is not known in advance
 	 */
 	public Long getGZipLength() {
-		// loadGridFile();
-		// String store = (String) gridFile.get("store");
-		// if ("gz".equals(store))
-		// return gridFile.getLength();
+		try {
+			CompressedContent c = getCompressedContent();
+			if (c == null)
+				return null;
+			return c.getCompressedLength();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private CompressedContent getCompressedContent() throws IOException {
+		loadGridFile();
+		if (gridFile instanceof CompressedContent) {
+			CompressedContent c = (CompressedContent) gridFile;
+			if (c.isCompressed())
+				return c;
+		}
 		return null;
 	}
 
@@ -141,6 +158,26 @@ public class V7File {
 
 	}
 
+	/**
+	 * reads only the part of the contents that is requested (which for
+	 * contents stored in chunks means that only the chunks covering that
+	 * range are fetched)
+	 * 
+	 * @return an InputStream to _uncompressed_ data
+	 */
+	public InputStream getInputStream(long offset, long length)
+			throws IOException {
+		loadGridFile();
+
+		if (gridFile == null)
+			return null;
+		try {
+			return gridFile.getInputStream(offset, length);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage() + " on file " + getName());
+		}
+	}
+
 	public ContentPointer getContentPointer() {
 		return gridFS.getContentPointer(metaData);
 	}
@@ -178,6 +215,17 @@ public class V7File {
 		return null;
 	}
 
+	/**
+	 * @return the hex-encoded root of the {@link TreeHash} of the contents, or
+	 *         null if it has not been calculated
+	 */
+	public String getTreeHash() {
+		Object tree = metaData.get("tree");
+		if (tree instanceof byte[])
+			return Hex.encodeHexString((byte[]) tree);
+		return null;
+	}
+
 	public List<V7File> getChildren() {
 		return gridFS.getChildren(this);
 	}
@@ -23,14 +23,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.bson.BSONObject;
 import org.bson.types.ObjectId;
 
 import v7db.files.ContentStorageFacade;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
+import v7db.files.spi.InlineContent;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
@@ -45,12 +48,30 @@ public class V7GridFS {
 
 	private final ContentStorageFacade storage;
 
+	/**
+	 * when a file is updated with new contents of up to this size, try to
+	 * store them as a delta against the previous version (0 to disable)
+	 */
+	private final long deltaMaxSize;
+
 	public static final String COLLECTION_NAME_FILES = "v7files.files";
 
 	public V7GridFS(DB db) {
+		this(db, null);
+	}
+
+	/**
+	 * @param props
+	 *            the (endpoint) configuration, can be null to use the
+	 *            defaults
+	 */
+	public V7GridFS(DB db, Properties props) {
 		files = db.getCollection(COLLECTION_NAME_FILES);
-		storage = new ContentStorageFacade(new MongoContentStorage(db),
+		storage = new ContentStorageFacade(ContentStorageFactory
+				.getContentStorage(db, props),
 				new MongoReferenceTracking(db));
+		deltaMaxSize = props == null ? 0 : NumberUtils.toLong(props
+				.getProperty("content.delta.max"), 0);
 	}
 
 	public V7File getFile(String... path) {
@@ -228,6 +249,7 @@ public class V7GridFS {
 		metaData.removeField("sha");
 		metaData.removeField("length");
 		metaData.removeField("in");
+		metaData.removeField("tree");
 
 		metaData.putAll(newContent);
 
@@ -248,6 +270,7 @@ public class V7GridFS {
 			metaData.removeField("sha");
 			metaData.removeField("length");
 			metaData.removeField("in");
+			metaData.removeField("tree");
 
 			metaData.putAll(newContent);
 		}
@@ -287,6 +310,11 @@ public class V7GridFS {
 				updateContents(metaData, IOUtils.toByteArray(contents, size));
 				return;
 			}
+			// need the data in memory to make a delta
+			if (size <= deltaMaxSize && canBeDeltaBase(metaData)) {
+				updateContents(metaData, IOUtils.toByteArray(contents, size));
+				return;
+			}
 		}
 
 		updateContents(metaData, contents);
@@ -311,6 +339,7 @@ public class V7GridFS {
 		metaData.removeField("sha");
 		metaData.removeField("length");
 		metaData.removeField("in");
+		metaData.removeField("tree");
 
 		metaData.putAll(newContent);
 
@@ -325,12 +354,19 @@ public class V7GridFS {
 		String filename = (String) metaData.get("filename");
 		String contentType = (String) metaData.get("contentType");
 
+		BSONObject newContent = null;
+		if (contents != null && len > 55 && len <= deltaMaxSize
+				&& canBeDeltaBase(metaData))
+			newContent = storage.insertDeltaAndBackRefs(oldContents,
+					contents, offset, len, fileId, filename, contentType);
+
 		// for up to 55 bytes, storing the complete file inline
 		// takes less space than just storing the SHA-1 and length
 		// 20 (SHA-1) + 1 (sha - in) + 6 (length) + 4 (int32) + 2*12
 		// (ObjectId back-references)
-		BSONObject newContent = storage.inlineOrInsertContentsAndBackRefs(55,
-				contents, offset, len, fileId, filename, contentType);
+		if (newContent == null)
+			newContent = storage.inlineOrInsertContentsAndBackRefs(55,
+					contents, offset, len, fileId, filename, contentType);
 
 		// check if it has changed
 		ContentPointer newContents = getContentPointer(newContent);
@@ -340,12 +376,23 @@ public class V7GridFS {
 		metaData.removeField("sha");
 		metaData.removeField("length");
 		metaData.removeField("in");
+		metaData.removeField("tree");
 
 		metaData.putAll(newContent);
 
 		updateMetaData(metaData);
 	}
 
+	/**
+	 * @return true, if the file currently has stored (not inline) contents
+	 *         that are small enough to make a delta against
+	 */
+	private boolean canBeDeltaBase(BSONObject metaData) {
+		ContentPointer p = getContentPointer(metaData);
+		return p != null && !(p instanceof InlineContent)
+				&& p.getLength() <= deltaMaxSize;
+	}
+
 	public V7File getChild(V7File parentFile, String childName) {
 		DBObject child = files.findOne(new BasicDBObject("parent", parentFile
 				.getId()).append("filename", childName));
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking counterpart of {@link ContentStorage}: Every operation returns
+ * at once, and completes the future when the storage I/O is done (failing it
+ * with the IOException or RuntimeException that the blocking version would
+ * have thrown).
+ * 
+ * <p>
+ * Content can either be obtained as a whole (and then read with its blocking
+ * InputStreams), or be pushed to a {@link ChunkConsumer} piece by piece, so
+ * that the caller does not need a thread while waiting for the storage.
+ */
+
+public interface AsyncContentStorage {
+
+	/**
+	 * Receives the data of {@link AsyncContentStorage#readContentAsync}.
+	 */
+	interface ChunkConsumer {
+
+		/**
+		 * Must not block. The buffer is re-used for the next piece of data,
+		 * which is not produced before the returned stage completes.
+		 * 
+		 * @return when the data has been consumed, or null if it already
+		 *         has been
+		 */
+		CompletionStage<?> accept(byte[] buffer, int offset, int length);
+
+	}
+
+	/**
+	 * will close the InputStream when done
+	 * 
+	 * @param contentType
+	 *            a hint about how to store the data, can be null
+	 */
+	CompletableFuture<ContentSHA> storeContentAsync(InputStream data,
+			String contentType);
+
+	/**
+	 * completes with null, if no such content was stored
+	 */
+	CompletableFuture<Content> getContentAsync(byte[] sha);
+
+	/**
+	 * completes with null, if no such content was stored (or the pointer is
+	 * null)
+	 */
+	CompletableFuture<Content> getContentAsync(ContentPointer pointer);
+
+	/**
+	 * pushes the given range of the content to the consumer
+	 * 
+	 * @return the number of bytes pushed, or fails with
+	 *         IllegalArgumentException if no such content was stored
+	 */
+	CompletableFuture<Long> readContentAsync(ContentPointer pointer,
+			long offset, long length, ChunkConsumer consumer);
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.IOException;
+
+/**
+ * A ContentStorage that can retrieve several contents in one round-trip, and
+ * that wants large chunked contents to be read ahead.
+ * 
+ */
+
+public interface BulkContentStorage extends ContentStorage {
+
+	/**
+	 * @return the contents in the same order as the pointers, with null for
+	 *         contents that could not be found
+	 */
+	Content[] getContents(ContentPointer[] pointers) throws IOException;
+
+	/**
+	 * @return how to read ahead in chunked content, or null to fetch every
+	 *         chunk only when it is needed
+	 */
+	ReadAhead getReadAhead();
+
+}
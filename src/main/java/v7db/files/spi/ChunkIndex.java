@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.util.Arrays;
+
+/**
+ * The list of chunks of a {@link ChunkedContent}, kept in primitive arrays:
+ * chunks that are plain references to stored content are just a SHA (packed
+ * into one byte array), all other chunks are kept as Content objects in a
+ * sparse side array. A long array of cumulative offsets allows to find the
+ * chunk for a given position by binary search.
+ * 
+ */
+
+final class ChunkIndex {
+
+	private static final int SHA_LENGTH = 20;
+
+	private byte[] shas;
+
+	/**
+	 * offsets[i] is where chunk i starts, offsets[count] is the total length
+	 */
+	private long[] offsets;
+
+	private int count;
+
+	/**
+	 * the chunks that are not SHA references, sorted by chunk number
+	 */
+	private int[] otherIndex = new int[4];
+
+	private Content[] others = new Content[4];
+
+	private int otherCount;
+
+	ChunkIndex(int expectedSize) {
+		expectedSize = Math.max(expectedSize, 1);
+		shas = new byte[expectedSize * SHA_LENGTH];
+		offsets = new long[expectedSize + 1];
+	}
+
+	private void grow() {
+		if (count + 1 == offsets.length) {
+			int newLength = offsets.length * 2;
+			offsets = Arrays.copyOf(offsets, newLength);
+			// one more offset than chunks
+			shas = Arrays.copyOf(shas, (newLength - 1) * SHA_LENGTH);
+		}
+	}
+
+	void add(byte[] sha, long length) {
+		if (sha.length != SHA_LENGTH)
+			throw new IllegalArgumentException("invalid SHA length "
+					+ sha.length);
+		grow();
+		System.arraycopy(sha, 0, shas, count * SHA_LENGTH, SHA_LENGTH);
+		offsets[count + 1] = offsets[count] + length;
+		count++;
+	}
+
+	void add(Content chunk) {
+		grow();
+		if (otherCount == others.length) {
+			others = Arrays.copyOf(others, otherCount * 2);
+			otherIndex = Arrays.copyOf(otherIndex, otherCount * 2);
+		}
+		others[otherCount] = chunk;
+		otherIndex[otherCount] = count;
+		otherCount++;
+		offsets[count + 1] = offsets[count] + chunk.getLength();
+		count++;
+	}
+
+	int size() {
+		return count;
+	}
+
+	long getLength() {
+		return offsets[count];
+	}
+
+	long getOffset(int chunk) {
+		return offsets[chunk];
+	}
+
+	long getLength(int chunk) {
+		return offsets[chunk + 1] - offsets[chunk];
+	}
+
+	/**
+	 * @return the chunk that contains the byte at this position (skipping
+	 *         over empty chunks)
+	 */
+	int find(long position) {
+		int lo = 0, hi = count - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (offsets[mid] <= position)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the chunk Content, if it is not a SHA reference, null otherwise
+	 */
+	Content getContent(int chunk) {
+		int i = Arrays.binarySearch(otherIndex, 0, otherCount, chunk);
+		if (i < 0)
+			return null;
+		return others[i];
+	}
+
+	/**
+	 * @return the SHA, if the chunk is a SHA reference, null otherwise
+	 */
+	byte[] getSHA(int chunk) {
+		if (getContent(chunk) != null)
+			return null;
+		int from = chunk * SHA_LENGTH;
+		return Arrays.copyOfRange(shas, from, from + SHA_LENGTH);
+	}
+
+}
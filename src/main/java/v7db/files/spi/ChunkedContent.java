@@ -16,17 +16,54 @@
  */
 package v7db.files.spi;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
-import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.io.IOUtils;
 
-public final class ChunkedContent implements Content {
+import v7db.files.Compression;
 
-	private final Content[] chunks;
+/**
+ * The concatenation of chunks. Chunks that are stored by SHA are only turned
+ * into Content objects when a stream actually reaches them, see
+ * {@link ChunkIndex}.
+ * <p>
+ * In gzip format, this is one gzip member per chunk: the stored one for
+ * compressed chunks, and one with uncompressed ("stored") deflate blocks for
+ * the others.
+ */
+
+public final class ChunkedContent implements CompressedContent {
+
+	private final ChunkIndex index;
+
+	private final ContentStorage storage;
+
+	private final BulkContentStorage bulkStorage;
 
-	ChunkedContent(Content... chunks) {
-		this.chunks = ArrayUtils.clone(chunks);
+	private final ReadAhead readAhead;
+
+	/**
+	 * @param storage
+	 *            where the chunks referenced by SHA are stored. If it is a
+	 *            BulkContentStorage (configured to read ahead), those chunks
+	 *            are fetched in batches, ahead of the stream position
+	 */
+	ChunkedContent(ContentStorage storage, ChunkIndex index) {
+		this.index = index;
+		this.storage = storage;
+		if (storage instanceof BulkContentStorage) {
+			bulkStorage = (BulkContentStorage) storage;
+			readAhead = bulkStorage.getReadAhead();
+		} else {
+			bulkStorage = null;
+			readAhead = null;
+		}
 	}
 
 	public InputStream getInputStream() throws IOException {
@@ -39,76 +76,256 @@ public final class ChunkedContent implements Content {
 	}
 
 	public long getLength() {
-		int length = 0;
-		for (Content c : chunks) {
-			length += c.getLength();
+		return index.getLength();
+	}
+
+	/**
+	 * @return true, if the first (non-empty) chunk is stored compressed (all
+	 *         chunks of an upload are compressed or not compressed alike,
+	 *         unless they turned out to be incompressible)
+	 */
+	public boolean isCompressed() throws IOException {
+		for (int i = 0; i < index.size(); i++) {
+			if (index.getLength(i) > 0) {
+				Content c = getChunk(i);
+				return c instanceof CompressedContent
+						&& ((CompressedContent) c).isCompressed();
+			}
+		}
+		return false;
+	}
+
+	public InputStream getCompressedInputStream() {
+		return new GzipStream();
+	}
+
+	/**
+	 * @return -1 (would need to look at all the chunks)
+	 */
+	public long getCompressedLength() {
+		return -1;
+	}
+
+	private Content getChunk(int i) throws IOException {
+		Content chunk = index.getContent(i);
+		if (chunk != null)
+			return chunk;
+		return storage.getContent(new StoredContent(index.getSHA(i), index
+				.getLength(i)));
+	}
+
+	/**
+	 * gets the chunks for a stream, reading ahead if so configured
+	 */
+	private class ChunkFetcher {
+
+		/**
+		 * the last chunk the stream needs (no need to read ahead past it)
+		 */
+		private final int lastChunk;
+
+		/**
+		 * the read-ahead batch that is being streamed now
+		 */
+		private Content[] fetched;
+
+		private int fetchedStart;
+
+		/**
+		 * the read-ahead batch that is being fetched in the background
+		 */
+		private FutureTask<Content[]> ahead;
+
+		private int aheadStart, aheadEnd;
+
+		ChunkFetcher(int lastChunk) {
+			this.lastChunk = lastChunk;
+		}
+
+		/**
+		 * @return the chunk, or what has been read ahead for it
+		 */
+		Content get(int i) throws IOException {
+			if (readAhead == null || index.getContent(i) != null)
+				return getChunk(i);
+			if (fetched == null || i < fetchedStart
+					|| i >= fetchedStart + fetched.length) {
+				if (ahead == null || aheadStart != i) {
+					// first chunk, or after a skip
+					if (ahead != null)
+						ahead.cancel(false);
+					ahead = fetch(i);
+				}
+				fetchedStart = aheadStart;
+				fetched = await(ahead, aheadEnd - aheadStart);
+				ahead = null;
+				if (aheadEnd <= lastChunk)
+					ahead = fetch(aheadEnd);
+			}
+			Content c = fetched[i - fetchedStart];
+			fetched[i - fetchedStart] = null;
+			return c == null ? getChunk(i) : c;
+		}
+
+		private FutureTask<Content[]> fetch(int start) {
+			int end = start;
+			long bytes = 0;
+			for (; end <= lastChunk && end - start < readAhead.getChunks(); end++) {
+				if (index.getContent(end) == null) {
+					bytes += index.getLength(end);
+					if (bytes > readAhead.getMaxBytes() && end > start)
+						break;
+				}
+			}
+			final ContentPointer[] pointers = new ContentPointer[end - start];
+			for (int i = 0; i < pointers.length; i++) {
+				byte[] sha = index.getSHA(start + i);
+				if (sha != null)
+					pointers[i] = new StoredContent(sha, index
+							.getLength(start + i));
+			}
+			FutureTask<Content[]> task = new FutureTask<Content[]>(
+					new Callable<Content[]>() {
+						public Content[] call() throws Exception {
+							return bulkStorage.getContents(pointers);
+						}
+					});
+			aheadStart = start;
+			aheadEnd = end;
+			try {
+				readAhead.getExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				// will be run by await()
+			}
+			return task;
+		}
+
+		/**
+		 * If the batch has not been picked up by the executor yet, it is
+		 * fetched on this thread. If fetching failed, the chunks are loaded
+		 * one by one (which will report the problem).
+		 */
+		private Content[] await(FutureTask<Content[]> task, int size) {
+			task.run();
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// see below
+			}
+			return new Content[size];
+		}
+
+		void close() {
+			if (ahead != null) {
+				ahead.cancel(false);
+				ahead = null;
+			}
+			fetched = null;
 		}
-		return length;
 	}
 
 	class ChunkStream extends InputStream {
 
+		/**
+		 * the position of the next byte to read
+		 */
+		private long position;
+
 		private long remaining;
 
 		private int currentChunk;
 
-		private long currentOffset;
+		private InputStream currentStream;
 
-		private final long length;
+		private long streamRemaining;
 
-		private InputStream currentStream;
+		private final ChunkFetcher fetcher;
 
 		ChunkStream(long offset, long length) {
-			this.length = getLength();
-			if (offset < 0 && offset >= this.length)
+			long total = getLength();
+			if (offset < 0 || offset > total)
 				throw new IndexOutOfBoundsException("offset " + offset
 						+ " is out of bounds");
-			if (offset + length > this.length)
+			if (length < 0 || offset + length > total)
 				throw new IndexOutOfBoundsException("length " + length
 						+ " is out of bounds (offset: " + offset + ")");
 
+			position = offset;
 			remaining = length;
-			currentChunk = 0;
-			currentOffset = 0;
-			while (offset > 0) {
-				Content chunk = chunks[currentChunk];
-				if (chunk.getLength() <= offset) {
-					currentChunk++;
-					offset -= chunk.getLength();
-				} else {
-					currentOffset = offset;
-					offset = 0;
-				}
-			}
+			fetcher = new ChunkFetcher(length > 0 ? index.find(offset + length
+					- 1) : 0);
+		}
+
+		private void openNextChunk() throws IOException {
+			currentChunk = index.find(position);
+			long offset = position - index.getOffset(currentChunk);
+			streamRemaining = Math.min(index.getLength(currentChunk) - offset,
+					remaining);
+			currentStream = fetcher.get(currentChunk).getInputStream(offset,
+					streamRemaining);
 		}
 
 		@Override
 		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) == -1)
+				return -1;
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
 			if (remaining <= 0)
 				return -1;
-			int r = -1;
-			if (currentStream != null)
-				r = currentStream.read();
-			if (r > -1) {
-				remaining--;
-				return r;
-			}
-			if (currentStream != null) {
+			if (currentStream == null)
+				openNextChunk();
+			int n = currentStream.read(b, off, (int) Math.min(len,
+					streamRemaining));
+			if (n == -1)
+				throw new EOFException("chunk " + currentChunk
+						+ " ended prematurely");
+			position += n;
+			remaining -= n;
+			streamRemaining -= n;
+			if (streamRemaining == 0) {
 				currentStream.close();
 				currentStream = null;
 			}
+			return n;
+		}
 
-			Content chunk = chunks[currentChunk];
-			long len = chunk.getLength();
-			if (len >= remaining + currentOffset) {
-				currentStream = chunk.getInputStream(currentOffset, remaining);
-			} else {
-				currentStream = chunk.getInputStream(currentOffset, len
-						- currentOffset);
+		/**
+		 * skips within the current chunk, or just moves the position (chunks
+		 * that are skipped over entirely are never opened)
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0)
+				return 0;
+			n = Math.min(n, remaining);
+			if (currentStream != null) {
+				if (n < streamRemaining) {
+					IOUtils.skipFully(currentStream, n);
+					streamRemaining -= n;
+				} else {
+					currentStream.close();
+					currentStream = null;
+				}
 			}
-			currentOffset = 0;
-			currentChunk++;
-			return read();
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (currentStream == null)
+				return 0;
+			return (int) Math.min(currentStream.available(), streamRemaining);
 		}
 
 		@Override
@@ -117,10 +334,68 @@ public final class ChunkedContent implements Content {
 				currentStream.close();
 				currentStream = null;
 			}
+			fetcher.close();
 			remaining = 0;
 			super.close();
 		}
 
 	}
 
+	/**
+	 * one gzip member per (non-empty) chunk
+	 */
+	private class GzipStream extends InputStream {
+
+		private final ChunkFetcher fetcher = new ChunkFetcher(index.size() - 1);
+
+		private int nextChunk;
+
+		private InputStream currentStream;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) == -1)
+				return -1;
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (true) {
+				if (currentStream == null) {
+					while (nextChunk < index.size()
+							&& index.getLength(nextChunk) == 0)
+						nextChunk++;
+					if (nextChunk == index.size())
+						return -1;
+					Content chunk = fetcher.get(nextChunk++);
+					if (chunk instanceof CompressedContent)
+						currentStream = ((CompressedContent) chunk)
+								.getCompressedInputStream();
+					else
+						currentStream = Compression.gzipStored(chunk
+								.getInputStream(), chunk.getLength());
+				}
+				int n = currentStream.read(b, off, len);
+				if (n != -1)
+					return n;
+				currentStream.close();
+				currentStream = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (currentStream != null) {
+				currentStream.close();
+				currentStream = null;
+			}
+			fetcher.close();
+			nextChunk = index.size();
+		}
+	}
+
 }
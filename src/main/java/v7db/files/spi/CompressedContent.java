@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content that can be read in gzip format without having to compress it, so
+ * that it can be sent as-is to clients that accept that encoding.
+ * 
+ */
+
+public interface CompressedContent extends Content {
+
+	/**
+	 * @return true, if the content is stored compressed (it can still
+	 *         partially be stored uncompressed)
+	 */
+	boolean isCompressed() throws IOException;
+
+	/**
+	 * @return the gzip-compressed data, which can be more than one gzip member
+	 */
+	InputStream getCompressedInputStream() throws IOException;
+
+	/**
+	 * @return the length of the gzip-compressed data, or -1 if that is not
+	 *         known in advance
+	 */
+	long getCompressedLength();
+
+}
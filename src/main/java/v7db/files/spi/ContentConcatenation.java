@@ -17,8 +17,7 @@
 package v7db.files.spi;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 import v7db.files.MapUtils;
@@ -27,6 +26,7 @@ import v7db.files.MapUtils;
  * <pre>
  * store:  'cat'
  * base:  one or more chunks
+ * tree:  the root of the {@link TreeHash} (optional)
  * </pre>
  * 
  * Each chunk is either a byte array (raw binary data), or a Map representing a
@@ -40,22 +40,41 @@ public class ContentConcatenation implements StorageScheme {
 	public Content getContent(ContentStorage storage, Map<String, Object> data)
 			throws IOException {
 
+		// the tree hash is not needed to read the content
+		if (data.containsKey("tree")) {
+			data = new HashMap<String, Object>(data);
+			data.remove("tree");
+		}
 		MapUtils.supportedAndRequiredFields(data, "base", "store");
 
-		List<Content> chunks = new ArrayList<Content>();
-		for (Object chunk : MapUtils.values(data, "base")) {
-			if (chunk instanceof byte[]) {
-				chunks.add(new InlineContent((byte[]) chunk));
-			} else if (chunk instanceof Map<?, ?>) {
-				chunks.add(storage.getContent(MapUtils
-						.supportJustStringKeys((Map<?, ?>) chunk)));
-			} else {
-				throw new UnsupportedOperationException("chunk " + chunk);
+		Object[] base = MapUtils.values(data, "base");
+		if (base.length == 1)
+			return getChunk(storage, base[0]);
+
+		ChunkIndex index = new ChunkIndex(base.length);
+		for (Object chunk : base) {
+			if (chunk instanceof Map<?, ?>) {
+				Map<?, ?> m = (Map<?, ?>) chunk;
+				Object sha = m.get("sha");
+				if (sha instanceof byte[] && m.get("store") == null) {
+					index.add((byte[]) sha, MapUtils.getRequiredLong(m,
+							"length"));
+					continue;
+				}
 			}
+			index.add(getChunk(storage, chunk));
 		}
-		if (chunks.size() == 1)
-			return chunks.get(0);
-		return new ChunkedContent(chunks.toArray(new Content[0]));
+		return new ChunkedContent(storage, index);
+	}
+
+	private static Content getChunk(ContentStorage storage, Object chunk)
+			throws IOException {
+		if (chunk instanceof byte[])
+			return new InlineContent((byte[]) chunk);
+		if (chunk instanceof Map<?, ?>)
+			return storage.getContent(MapUtils
+					.supportJustStringKeys((Map<?, ?>) chunk));
+		throw new UnsupportedOperationException("chunk " + chunk);
 	}
 
 	public String getId() {
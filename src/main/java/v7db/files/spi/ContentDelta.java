@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import v7db.files.MapUtils;
+
+/**
+ * <pre>
+ * store:  'delta'
+ * base:   ContentPointer to the content that the delta applies to
+ * length: length of the resulting content
+ * delta:  copy and insert instructions (binary)
+ * depth:  how many deltas need to be applied (1 if the base is not a delta)
+ * </pre>
+ * 
+ * The instructions are a sequence of
+ * <ul>
+ * <li><code>varint(length &lt;&lt; 1 | 1) varint(offset)</code>: copy
+ * <code>length</code> bytes from the base, starting at <code>offset</code>
+ * <li><code>varint(length &lt;&lt; 1) [length bytes]</code>: insert the
+ * following bytes
+ * </ul>
+ * 
+ * Reading streams the result from the instructions and ranges of the base
+ * content, the base is never loaded as a whole.
+ */
+
+public class ContentDelta implements StorageScheme {
+
+	/**
+	 * do not build longer chains of deltas than this
+	 */
+	public static final int MAX_DEPTH = 8;
+
+	private static final int BLOCK = 32;
+
+	private static final int M = 0x01000193;
+
+	private static final int POW;
+
+	static {
+		int p = 1;
+		for (int i = 1; i < BLOCK; i++)
+			p *= M;
+		POW = p;
+	}
+
+	public Content getContent(ContentStorage storage, Map<String, Object> data)
+			throws IOException {
+		MapUtils.supportedFields(data, "store", "base", "length", "delta",
+				"depth");
+		Object base = data.get("base");
+		if (!(base instanceof Map<?, ?>))
+			throw new UnsupportedOperationException("base " + base);
+		Content baseContent = storage.getContent(MapUtils
+				.supportJustStringKeys((Map<?, ?>) base));
+		if (baseContent == null)
+			throw new IllegalArgumentException("base content not found: "
+					+ base);
+		Long depth = MapUtils.getLong(data, "depth");
+		return new DeltaContent(baseContent, MapUtils.getRequiredBytes(data,
+				"delta"), MapUtils.getRequiredLong(data, "length"),
+				depth == null ? 1 : depth.intValue());
+	}
+
+	public String getId() {
+		return "delta";
+	}
+
+	/**
+	 * @return the depth of the delta chain, if the content is a delta, 0 if
+	 *         not
+	 */
+	public static int getDepth(Content content) {
+		if (content instanceof DeltaContent)
+			return ((DeltaContent) content).depth;
+		return 0;
+	}
+
+	/**
+	 * computes a delta that turns the base data into the target data.
+	 * 
+	 * @return the storage scheme document, or null if the delta is not at
+	 *         least half as small as the target data itself
+	 */
+	public static Map<String, Object> diff(ContentPointer basePointer,
+			Content baseContent, byte[] base, byte[] target, int offset,
+			int length) {
+		byte[] delta = encode(base, target, offset, length);
+		if (delta.length > length / 2)
+			return null;
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("store", "delta");
+		result.put("base", basePointer.serialize());
+		result.put("length", (long) length);
+		result.put("delta", delta);
+		result.put("depth", getDepth(baseContent) + 1);
+		return result;
+	}
+
+	static byte[] encode(byte[] base, byte[] target, int offset, int length) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int end = offset + length;
+		int literalStart = offset;
+		int blocks = base.length / BLOCK;
+		if (blocks > 0 && length >= BLOCK) {
+			// index the base by the hashes of non-overlapping blocks
+			int bits = 32 - Integer.numberOfLeadingZeros(blocks * 2 - 1);
+			int mask = (1 << bits) - 1;
+			int[] table = new int[1 << bits];
+			Arrays.fill(table, -1);
+			for (int b = 0; b < blocks; b++) {
+				int slot = mix(hash(base, b * BLOCK)) & mask;
+				if (table[slot] == -1)
+					table[slot] = b * BLOCK;
+			}
+
+			int i = offset;
+			int h = hash(target, i);
+			while (i + BLOCK <= end) {
+				int candidate = table[mix(h) & mask];
+				if (candidate >= 0
+						&& regionMatches(base, candidate, target, i, BLOCK)) {
+					int bs = candidate, ts = i;
+					while (ts > literalStart && bs > 0
+							&& base[bs - 1] == target[ts - 1]) {
+						bs--;
+						ts--;
+					}
+					int be = candidate + BLOCK, te = i + BLOCK;
+					while (te < end && be < base.length
+							&& base[be] == target[te]) {
+						be++;
+						te++;
+					}
+					writeInsert(out, target, literalStart, ts - literalStart);
+					writeCopy(out, bs, te - ts);
+					i = literalStart = te;
+					if (i + BLOCK <= end)
+						h = hash(target, i);
+					continue;
+				}
+				if (i + BLOCK < end)
+					h = (h - target[i] * POW) * M + target[i + BLOCK];
+				i++;
+			}
+		}
+		writeInsert(out, target, literalStart, end - literalStart);
+		return out.toByteArray();
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int h = 0;
+		for (int i = 0; i < BLOCK; i++)
+			h = h * M + data[offset + i];
+		return h;
+	}
+
+	private static int mix(int h) {
+		return (h * 0x9E3779B1) ^ (h >>> 16);
+	}
+
+	private static boolean regionMatches(byte[] a, int aOff, byte[] b,
+			int bOff, int len) {
+		for (int i = 0; i < len; i++)
+			if (a[aOff + i] != b[bOff + i])
+				return false;
+		return true;
+	}
+
+	private static void writeInsert(ByteArrayOutputStream out, byte[] data,
+			int offset, int length) {
+		if (length == 0)
+			return;
+		writeVarint(out, (long) length << 1);
+		out.write(data, offset, length);
+	}
+
+	private static void writeCopy(ByteArrayOutputStream out, long offset,
+			long length) {
+		writeVarint(out, length << 1 | 1);
+		writeVarint(out, offset);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static final class DeltaContent implements Content {
+
+		private final Content base;
+
+		private final byte[] delta;
+
+		private final long length;
+
+		private final int depth;
+
+		/**
+		 * for every instruction: where it starts in the result, and where its
+		 * data comes from (offset into the base, or into the delta for
+		 * inserts)
+		 */
+		private final long[] starts, sources;
+
+		private final boolean[] copies;
+
+		DeltaContent(Content base, byte[] delta, long length, int depth) {
+			this.base = base;
+			this.delta = delta;
+			this.length = length;
+			this.depth = depth;
+
+			int n = 0;
+			long[] st = new long[16], so = new long[16];
+			boolean[] co = new boolean[16];
+			long pos = 0;
+			int[] p = { 0 };
+			while (p[0] < delta.length) {
+				if (n == st.length) {
+					st = Arrays.copyOf(st, n * 2);
+					so = Arrays.copyOf(so, n * 2);
+					co = Arrays.copyOf(co, n * 2);
+				}
+				long x = readVarint(delta, p);
+				long len = x >>> 1;
+				st[n] = pos;
+				co[n] = (x & 1) == 1;
+				if (co[n]) {
+					so[n] = readVarint(delta, p);
+				} else {
+					so[n] = p[0];
+					p[0] += len;
+				}
+				pos += len;
+				n++;
+			}
+			if (pos != length)
+				throw new IllegalArgumentException("delta produces " + pos
+						+ " bytes instead of " + length);
+			starts = Arrays.copyOf(st, n);
+			sources = Arrays.copyOf(so, n);
+			copies = Arrays.copyOf(co, n);
+		}
+
+		private static long readVarint(byte[] data, int[] pos) {
+			long v = 0;
+			int shift = 0;
+			while (true) {
+				byte b = data[pos[0]++];
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return v;
+				shift += 7;
+			}
+		}
+
+		private long end(int op) {
+			return op + 1 < starts.length ? starts[op + 1] : length;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return getInputStream(0, length);
+		}
+
+		public InputStream getInputStream(long offset, long length)
+				throws IOException {
+			if (offset < 0 || offset > this.length)
+				throw new IndexOutOfBoundsException("offset " + offset
+						+ " is out of bounds");
+			if (offset + length > this.length)
+				throw new IndexOutOfBoundsException("length " + length
+						+ " is out of bounds (offset: " + offset + ")");
+			return new DeltaStream(offset, length);
+		}
+
+		class DeltaStream extends InputStream {
+
+			private long remaining;
+
+			private int op;
+
+			private long opOffset;
+
+			private InputStream copy;
+
+			DeltaStream(long offset, long length) {
+				remaining = length;
+				op = Arrays.binarySearch(starts, offset);
+				if (op < 0)
+					op = -op - 2;
+				opOffset = op < 0 ? 0 : offset - starts[op];
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int r = read(b, 0, 1);
+				return r == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				while (remaining > 0) {
+					long available = Math.min(end(op) - starts[op] - opOffset,
+							remaining);
+					if (available <= 0) {
+						nextOp();
+						continue;
+					}
+					int n = (int) Math.min(len, available);
+					if (copies[op]) {
+						if (copy == null)
+							copy = base.getInputStream(sources[op] + opOffset,
+									available);
+						n = copy.read(b, off, n);
+						if (n == -1)
+							throw new IOException("base content too short");
+					} else {
+						System.arraycopy(delta, (int) (sources[op] + opOffset),
+								b, off, n);
+					}
+					opOffset += n;
+					remaining -= n;
+					return n;
+				}
+				return -1;
+			}
+
+			private void nextOp() throws IOException {
+				if (copy != null) {
+					copy.close();
+					copy = null;
+				}
+				op++;
+				opOffset = 0;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (copy != null) {
+					copy.close();
+					copy = null;
+				}
+				remaining = 0;
+			}
+
+		}
+
+	}
+
+}
@@ -31,9 +31,19 @@ public final class ContentSHA implements ContentPointer {
 
 	private final Long length;
 
+	/**
+	 * can be null
+	 */
+	private final byte[] tree;
+
 	private ContentSHA(byte[] sha, long length) {
+		this(sha, length, null);
+	}
+
+	private ContentSHA(byte[] sha, long length, byte[] tree) {
 		this.sha = sha;
 		this.length = length;
+		this.tree = tree;
 	}
 
 	public byte[] getSHA() {
@@ -51,6 +61,21 @@ public final class ContentSHA implements ContentPointer {
 		return length;
 	}
 
+	/**
+	 * @return the root of the {@link TreeHash}, or null if it has not been
+	 *         calculated
+	 */
+	public byte[] getTree() {
+		return tree == null ? null : tree.clone();
+	}
+
+	/**
+	 * @return the same pointer, with the root of the {@link TreeHash}
+	 */
+	public ContentSHA withTree(byte[] tree) {
+		return new ContentSHA(sha, length, tree.clone());
+	}
+
 	public static ContentSHA forDigestAndLength(byte[] sha, long length) {
 		return new ContentSHA(sha.clone(), length);
 	}
@@ -73,6 +98,8 @@ public final class ContentSHA implements ContentPointer {
 		result.put("sha", getSHA());
 		if (length != null)
 			result.put("length", length);
+		if (tree != null)
+			result.put("tree", getTree());
 		return result;
 	}
 
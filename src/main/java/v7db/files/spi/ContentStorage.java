@@ -48,6 +48,16 @@ public interface ContentStorage {
 	 */
 	ContentSHA storeContent(InputStream data) throws IOException;
 
+	/**
+	 * will close the InputStream before returning
+	 * 
+	 * @param contentType
+	 *            a hint about how to store the data (e.g. if it is worth
+	 *            compressing), can be null
+	 */
+	ContentSHA storeContent(InputStream data, String contentType)
+			throws IOException;
+
 	/**
 	 * store "out-of-band" content.
 	 * 
@@ -17,25 +17,264 @@
 package v7db.files.spi;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
+
+import v7db.files.Compression;
+
+/**
+ * Content stored as a single gzip member in <code>zin</code>.
+ * 
+ * <p>
+ * Nothing is inflated up-front: every stream inflates straight from the
+ * compressed bytes, discards everything before the requested offset and stops
+ * as soon as the requested length has been produced. The uncompressed length
+ * is taken from the gzip trailer (ISIZE), which is fine for chunk-sized data.
+ * A stream over the whole content checks the CRC32 and ISIZE of the trailer
+ * when it reaches the end; a partial stream cannot.
+ */
 
 public class GzippedContent implements StorageScheme {
 
 	public Content getContent(ContentStorage storage, Map<String, Object> data)
 			throws IOException {
-		byte[] bytes = (byte[]) data.get("zin");
-		GZIPInputStream gz = new GZIPInputStream(
-				new ByteArrayInputStream(bytes));
-		byte[] unzipped = IOUtils.toByteArray(gz);
-		return new InlineContent(unzipped);
+		return new Gzipped((byte[]) data.get("zin"));
 	}
 
 	public String getId() {
 		return "gz";
 	}
 
+	private static final int FHCRC = 2;
+
+	private static final int FEXTRA = 4;
+
+	private static final int FNAME = 8;
+
+	private static final int FCOMMENT = 16;
+
+	/**
+	 * @return the offset of the deflated data within the gzip member
+	 */
+	private static int skipHeader(byte[] gz) throws ZipException {
+		if (gz.length < 18 || (gz[0] & 0xff) != 0x1f
+				|| (gz[1] & 0xff) != 0x8b || gz[2] != 8)
+			throw new ZipException("not in GZIP format");
+		int flags = gz[3] & 0xff;
+		int pos = 10;
+		if ((flags & FEXTRA) != 0)
+			pos += 2 + ((gz[pos] & 0xff) | (gz[pos + 1] & 0xff) << 8);
+		if ((flags & FNAME) != 0)
+			pos = skipZeroTerminated(gz, pos);
+		if ((flags & FCOMMENT) != 0)
+			pos = skipZeroTerminated(gz, pos);
+		if ((flags & FHCRC) != 0)
+			pos += 2;
+		if (pos > gz.length - 8)
+			throw new ZipException("corrupt GZIP header");
+		return pos;
+	}
+
+	private static int skipZeroTerminated(byte[] gz, int pos) {
+		while (pos < gz.length && gz[pos] != 0)
+			pos++;
+		return pos + 1;
+	}
+
+	private static final class Gzipped implements CompressedContent {
+
+		private final byte[] gz;
+
+		private final int dataOffset;
+
+		private final long length;
+
+		Gzipped(byte[] gz) throws ZipException {
+			this.gz = gz;
+			dataOffset = skipHeader(gz);
+			int t = gz.length - 4;
+			length = ((gz[t] & 0xff) | (gz[t + 1] & 0xff) << 8
+					| (gz[t + 2] & 0xff) << 16 | (long) (gz[t + 3] & 0xff) << 24);
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return getInputStream(0, length);
+		}
+
+		public boolean isCompressed() {
+			return true;
+		}
+
+		public InputStream getCompressedInputStream() {
+			return new ByteArrayInputStream(gz);
+		}
+
+		public long getCompressedLength() {
+			return gz.length;
+		}
+
+		public InputStream getInputStream(long offset, long length)
+				throws IOException {
+			if (offset < 0 || offset > this.length)
+				throw new IndexOutOfBoundsException("offset " + offset
+						+ " is out of bounds");
+			if (length < 0 || offset + length > this.length)
+				throw new IndexOutOfBoundsException("length " + length
+						+ " is out of bounds (offset: " + offset + ")");
+			if (length == 0)
+				return new ByteArrayInputStream(ArrayUtils.EMPTY_BYTE_ARRAY);
+			return new InflatingStream(offset, length);
+		}
+
+		private final class InflatingStream extends InputStream {
+
+			/**
+			 * borrowed on the first read, so that a stream that is never read
+			 * does not hold on to one
+			 */
+			private Inflater inflater;
+
+			private boolean closed;
+
+			private long toSkip;
+
+			private long remaining;
+
+			/**
+			 * only when reading everything, null otherwise
+			 */
+			private final CRC32 crc;
+
+			InflatingStream(long offset, long length) {
+				toSkip = offset;
+				remaining = length;
+				crc = (offset == 0 && length == Gzipped.this.length) ? new CRC32()
+						: null;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				if (read(b, 0, 1) == -1)
+					return -1;
+				return b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (remaining <= 0) {
+					close();
+					return -1;
+				}
+				if (closed)
+					throw new IOException("stream closed");
+				if (inflater == null) {
+					inflater = Compression.borrowInflater();
+					inflater.setInput(gz, dataOffset, gz.length - dataOffset
+							- 8);
+				}
+				if (toSkip > 0) {
+					byte[] discard = new byte[(int) Math.min(toSkip, 8192)];
+					while (toSkip > 0)
+						toSkip -= inflate(discard, 0, (int) Math.min(toSkip,
+								discard.length));
+				}
+				int n = inflate(b, off, (int) Math.min(len, remaining));
+				remaining -= n;
+				if (remaining == 0) {
+					try {
+						if (crc != null)
+							checkTrailer();
+					} finally {
+						close();
+					}
+				}
+				return n;
+			}
+
+			private void checkTrailer() throws IOException {
+				// the deflated data must end exactly at ISIZE
+				if (inflate(new byte[1], 0, 1, true) != 0)
+					throw new ZipException("Corrupt GZIP trailer (ISIZE)");
+				int t = gz.length - 8;
+				long expected = (gz[t] & 0xff) | (gz[t + 1] & 0xff) << 8
+						| (gz[t + 2] & 0xff) << 16
+						| (long) (gz[t + 3] & 0xff) << 24;
+				if (crc.getValue() != expected)
+					throw new ZipException("Corrupt GZIP trailer (CRC32)");
+			}
+
+			private int inflate(byte[] b, int off, int len) throws IOException {
+				return inflate(b, off, len, false);
+			}
+
+			/**
+			 * @param atEnd
+			 *            if the deflated data is expected to be finished, in
+			 *            which case 0 is returned for it
+			 */
+			private int inflate(byte[] b, int off, int len, boolean atEnd)
+					throws IOException {
+				try {
+					int n;
+					while ((n = inflater.inflate(b, off, len)) == 0) {
+						if (atEnd && inflater.finished())
+							return 0;
+						if (inflater.finished() || inflater.needsInput())
+							throw new EOFException(
+									"unexpected end of GZIP data");
+					}
+					if (crc != null)
+						crc.update(b, off, n);
+					return n;
+				} catch (DataFormatException e) {
+					throw new ZipException(e.getMessage());
+				}
+			}
+
+			/**
+			 * skipping is deferred until the next read, so that skipping to
+			 * the end never inflates anything
+			 */
+			@Override
+			public long skip(long n) {
+				if (n <= 0)
+					return 0;
+				n = Math.min(n, remaining);
+				toSkip += n;
+				remaining -= n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(remaining, Integer.MAX_VALUE);
+			}
+
+			@Override
+			public void close() {
+				closed = true;
+				if (inflater != null) {
+					Compression.releaseInflater(inflater);
+					inflater = null;
+				}
+			}
+		}
+
+	}
+
 }
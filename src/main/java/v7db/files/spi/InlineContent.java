@@ -59,20 +59,21 @@ public final class InlineContent implements Content, ContentPointer {
 	 * </pre>
 	 * 
 	 */
-	public InlineContent(byte[] data, int offset, int length) {
+	public InlineContent(byte[] data, long offset, long length) {
 		this.length = length;
 		if (length == 0) {
 			inlineData = ArrayUtils.EMPTY_BYTE_ARRAY;
 			return;
 		}
-		offset %= data.length;
-		if (offset == 0) {
-			inlineData = Arrays.copyOf(data, Math.min(data.length, length));
+		int shift = (int) (offset % data.length);
+		if (shift == 0) {
+			inlineData = Arrays.copyOf(data, (int) Math.min(data.length,
+					length));
 			return;
 		}
 		byte[] shifted = new byte[data.length];
-		System.arraycopy(data, offset, shifted, 0, data.length - offset);
-		System.arraycopy(data, 0, shifted, offset + 1, offset);
+		System.arraycopy(data, shift, shifted, 0, data.length - shift);
+		System.arraycopy(data, 0, shifted, data.length - shift, shift);
 		inlineData = shifted;
 	}
 
@@ -88,7 +89,7 @@ public final class InlineContent implements Content, ContentPointer {
 		long l = length != null ? length : data.length;
 		long o = offset != null ? offset : 0l;
 
-		return new InlineContent(data, (int) o, (int) l);
+		return new InlineContent(data, o, l);
 
 	}
 
@@ -104,7 +105,7 @@ public final class InlineContent implements Content, ContentPointer {
 
 	public InputStream getInputStream(long offset, long length)
 			throws IOException {
-		if (offset < 0 && offset >= this.length)
+		if (offset < 0 || offset > this.length)
 			throw new IndexOutOfBoundsException("offset " + offset
 					+ " is out of bounds");
 		if (offset + length > this.length)
@@ -113,35 +114,67 @@ public final class InlineContent implements Content, ContentPointer {
 		if (offset + length <= inlineData.length)
 			return new ByteArrayInputStream(inlineData, (int) offset,
 					(int) length);
-		return new RepeatedInputStream((int) offset, length);
+		return new RepeatedInputStream(offset, length);
 	}
 
 	class RepeatedInputStream extends InputStream {
 
 		private long remaining;
 
-		private int pos = -1;
+		/**
+		 * index of the next byte in inlineData
+		 */
+		private int pos;
 
 		RepeatedInputStream() {
-			this.remaining = length;
+			this(0, length);
 		}
 
-		RepeatedInputStream(int offset, long length) {
-			pos = offset - 1;
+		RepeatedInputStream(long offset, long length) {
+			pos = (int) (offset % inlineData.length);
 			remaining = length;
 		}
 
 		@Override
 		public int read() throws IOException {
-			if (remaining > 0) {
-				remaining--;
-				pos++;
-				if (pos >= inlineData.length)
-					pos = 0;
-
-				return inlineData[pos];
-			}
-			return -1;
+			if (remaining <= 0)
+				return -1;
+			remaining--;
+			int b = inlineData[pos] & 0xff;
+			if (++pos == inlineData.length)
+				pos = 0;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining <= 0)
+				return -1;
+			int n = (int) Math.min(Math.min(len, remaining), inlineData.length
+					- pos);
+			System.arraycopy(inlineData, pos, b, off, n);
+			pos += n;
+			if (pos == inlineData.length)
+				pos = 0;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			if (n <= 0)
+				return 0;
+			n = Math.min(n, remaining);
+			pos = (int) ((pos + n) % inlineData.length);
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
 		}
 
 	}
@@ -16,9 +16,12 @@
  */
 package v7db.files.spi;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.apache.commons.io.IOUtils;
+
 /**
  * Support for "offset" and "length" parameters that can be used to create new
  * Content by taking a segment of other Content, with optional repetition.
@@ -57,6 +60,8 @@ public final class OffsetAndLength implements Content {
 
 		private InputStream chunk;
 
+		private long chunkRemaining;
+
 		private final long oLength;
 
 		private long ooff;
@@ -69,22 +74,68 @@ public final class OffsetAndLength implements Content {
 
 		@Override
 		public int read() throws IOException {
-			if (remaining > 0) {
-				if (chunk == null) {
-					chunk = original.getInputStream(ooff, oLength - ooff);
-					ooff = 0;
-				}
-
-				int x = chunk.read();
-				if (x == -1) {
-					chunk.close();
-					chunk = null;
-					return read();
-				}
-				remaining--;
-				return x;
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) == -1)
+				return -1;
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining <= 0)
+				return -1;
+			if (chunk == null) {
+				chunkRemaining = Math.min(oLength - ooff, remaining);
+				chunk = original.getInputStream(ooff, chunkRemaining);
+				ooff = 0;
+			}
+			int x = chunk.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (x == -1)
+				throw new EOFException("repeated content ended prematurely");
+			remaining -= x;
+			chunkRemaining -= x;
+			if (chunkRemaining == 0) {
+				chunk.close();
+				chunk = null;
+			}
+			return x;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0)
+				return 0;
+			n = Math.min(n, remaining);
+			if (chunk == null) {
+				ooff = (ooff + n) % oLength;
+			} else if (n < chunkRemaining) {
+				IOUtils.skipFully(chunk, n);
+				chunkRemaining -= n;
+			} else {
+				ooff = (n - chunkRemaining) % oLength;
+				chunk.close();
+				chunk = null;
+			}
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (chunk == null)
+				return 0;
+			return (int) Math.min(chunk.available(), chunkRemaining);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (chunk != null) {
+				chunk.close();
+				chunk = null;
 			}
-			return -1;
+			remaining = 0;
 		}
 
 	}
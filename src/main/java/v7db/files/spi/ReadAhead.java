@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Settings for reading ahead in chunked content: While one batch of chunks is
+ * being streamed, the next batch (of up to <code>chunks</code> chunks, but not
+ * more than <code>maxBytes</code> bytes) is fetched on the executor.
+ * 
+ */
+
+public final class ReadAhead {
+
+	private final int chunks;
+
+	private final long maxBytes;
+
+	private final Executor executor;
+
+	public ReadAhead(int chunks, long maxBytes, Executor executor) {
+		if (chunks < 1)
+			throw new IllegalArgumentException("chunks " + chunks);
+		this.chunks = chunks;
+		this.maxBytes = maxBytes;
+		this.executor = executor;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+}
@@ -77,23 +77,34 @@ public final class StoredContent implements ContentPointer {
 		if (length <= loadAndCacheUntilLength)
 			return storage.getContent(this);
 
-		return new Content() {
+		return new LazyContent(storage);
 
-			public InputStream getInputStream() throws IOException {
-				return storage.getContent(StoredContent.this).getInputStream();
-			}
+	}
 
-			public InputStream getInputStream(long offset, long length)
-					throws IOException {
-				return storage.getContent(StoredContent.this).getInputStream(
-						offset, length);
-			}
+	/**
+	 * Content that is only retrieved from the storage when it is read.
+	 */
+	final class LazyContent implements Content {
 
-			public long getLength() {
-				return length;
-			}
+		private final ContentStorage storage;
+
+		LazyContent(ContentStorage storage) {
+			this.storage = storage;
+		}
 
-		};
+		public InputStream getInputStream() throws IOException {
+			return storage.getContent(StoredContent.this).getInputStream();
+		}
+
+		public InputStream getInputStream(long offset, long length)
+				throws IOException {
+			return storage.getContent(StoredContent.this).getInputStream(
+					offset, length);
+		}
+
+		public long getLength() {
+			return length;
+		}
 
 	}
 }
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A hash of the content that is built up from the hashes of its parts, so
+ * that the parts can be hashed in parallel, and a range can be verified
+ * without reading everything else.
+ * <p>
+ * The content is split into leaves of {@link #LEAF_SIZE} bytes (the last one
+ * can be shorter), and every leaf is hashed with SHA-1. That is the same as
+ * the SHA of a chunk when the content is stored in fixed-size chunks. Two
+ * neighbouring hashes are combined into SHA-1(0x01, left, right), level by
+ * level, and a hash without a neighbour is carried up to the next level as it
+ * is. The last remaining hash is the root.
+ * <p>
+ * For content of up to one leaf (including empty content), the root is the
+ * same as the plain SHA-1 ({@link ContentSHA}), which stays the content
+ * identifier.
+ */
+
+public final class TreeHash {
+
+	public static final int LEAF_SIZE = 256 * 1024;
+
+	private TreeHash() {
+	}
+
+	/**
+	 * @return how many leaves content of that length has (at least one)
+	 */
+	public static int getLeafCount(long length) {
+		return (int) Math.max(1, (length + LEAF_SIZE - 1) / LEAF_SIZE);
+	}
+
+	/**
+	 * @return the root for the hashes of all leaves
+	 */
+	public static byte[] root(List<byte[]> leaves) {
+		if (leaves.isEmpty())
+			return newDigest().digest();
+		List<byte[]> level = leaves;
+		while (level.size() > 1) {
+			List<byte[]> up = new ArrayList<byte[]>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 == level.size()) {
+					up.add(level.get(i));
+					continue;
+				}
+				MessageDigest md = newDigest();
+				md.update((byte) 1);
+				md.update(level.get(i));
+				md.update(level.get(i + 1));
+				up.add(md.digest());
+			}
+			level = up;
+		}
+		return level.get(0).clone();
+	}
+
+	/**
+	 * hashes all leaves of the content
+	 * 
+	 * @param executor
+	 *            to hash the leaves in parallel, or null to do it on the
+	 *            calling thread
+	 */
+	public static List<byte[]> getLeaves(final Content content,
+			Executor executor) throws IOException {
+		long length = content.getLength();
+		int count = getLeafCount(length);
+		List<FutureTask<byte[]>> tasks = new ArrayList<FutureTask<byte[]>>(
+				count);
+		for (int i = 0; i < count; i++) {
+			final long offset = (long) i * LEAF_SIZE;
+			final long n = Math.min(LEAF_SIZE, length - offset);
+			FutureTask<byte[]> task = new FutureTask<byte[]>(
+					new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							return hash(content, offset, n);
+						}
+					});
+			tasks.add(task);
+			if (executor == null)
+				task.run();
+			else
+				executor.execute(task);
+		}
+		List<byte[]> leaves = new ArrayList<byte[]>(count);
+		try {
+			for (FutureTask<byte[]> task : tasks)
+				leaves.add(task.get());
+		} catch (InterruptedException e) {
+			for (FutureTask<byte[]> task : tasks)
+				task.cancel(true);
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			for (FutureTask<byte[]> task : tasks)
+				task.cancel(true);
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		return leaves;
+	}
+
+	/**
+	 * @param executor
+	 *            to hash the leaves in parallel, or null to do it on the
+	 *            calling thread
+	 * @return the root for the content
+	 */
+	public static byte[] calculate(Content content, Executor executor)
+			throws IOException {
+		return root(getLeaves(content, executor));
+	}
+
+	/**
+	 * checks a range of the content against the tree, by hashing only the
+	 * leaves that overlap the range
+	 * 
+	 * @param leaves
+	 *            the hashes of all leaves, as they should be
+	 * @param root
+	 *            the root, as it should be
+	 * @return false if the leaves do not match the root, or the range does
+	 *         not match its leaves
+	 */
+	public static boolean verify(Content content, long offset, long length,
+			List<byte[]> leaves, byte[] root) throws IOException {
+		long total = content.getLength();
+		if (offset < 0 || length < 0 || offset + length > total)
+			throw new IllegalArgumentException("range " + offset + "+"
+					+ length + " not within " + total + " bytes");
+		if (leaves.size() != getLeafCount(total)
+				|| !Arrays.equals(root, root(leaves)))
+			return false;
+		if (length == 0)
+			return true;
+		int first = (int) (offset / LEAF_SIZE);
+		int last = (int) ((offset + length - 1) / LEAF_SIZE);
+		for (int i = first; i <= last; i++) {
+			long o = (long) i * LEAF_SIZE;
+			if (!Arrays.equals(leaves.get(i), hash(content, o, Math.min(
+					LEAF_SIZE, total - o))))
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] hash(Content content, long offset, long length)
+			throws IOException {
+		MessageDigest md = newDigest();
+		byte[] buffer = new byte[8192];
+		InputStream in = content.getInputStream(offset, length);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				md.update(buffer, 0, n);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return md.digest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,569 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+/**
+ * A collection that only exists in memory, see {@link MemoryDB}. It supports
+ * the queries and updates that v7files makes (equality, <code>$in</code>,
+ * <code>$nin</code>, <code>$gt</code>, <code>$exists</code>, <code>$set</code>,
+ * <code>$inc</code>, <code>$addToSet</code>, <code>$push</code>,
+ * <code>$pullAll</code>), and enforces a unique <code>_id</code>.
+ * <p>
+ * It counts the queries (including counts) and the documents they return, so
+ * that tests can check how much is read from the database.
+ */
+
+public class MemoryCollection extends DBCollection {
+
+	private final Map<String, DBObject> documents = new LinkedHashMap<String, DBObject>();
+
+	private int queries;
+
+	private int documentsRead;
+
+	MemoryCollection(MemoryDB db, String name) {
+		super(db, name);
+	}
+
+	/**
+	 * @return how many queries (and counts) have been made
+	 */
+	public synchronized int getQueryCount() {
+		return queries;
+	}
+
+	/**
+	 * @return how many documents the queries have returned
+	 */
+	public synchronized int getDocumentsRead() {
+		return documentsRead;
+	}
+
+	public synchronized void resetCounts() {
+		queries = 0;
+		documentsRead = 0;
+	}
+
+	/**
+	 * @return the number of documents, without counting it as a query
+	 */
+	public synchronized int size() {
+		return documents.size();
+	}
+
+	@Override
+	public WriteResult insert(DBObject[] arr, WriteConcern concern,
+			DBEncoder encoder) {
+		roundTrip(concern);
+		return doInsert(arr, concern);
+	}
+
+	private synchronized WriteResult doInsert(DBObject[] arr,
+			WriteConcern concern) {
+		for (DBObject o : arr) {
+			apply(o);
+			String key = key(o.get("_id"));
+			if (documents.containsKey(key))
+				throw new MongoException.DuplicateKey(11000,
+						"E11000 duplicate key error index: " + _fullName
+								+ ".$_id_");
+			documents.put(key, copy(o));
+		}
+		return result(concern, 0, false);
+	}
+
+	@Override
+	public WriteResult update(DBObject q, DBObject o, boolean upsert,
+			boolean multi, WriteConcern concern, DBEncoder encoder) {
+		roundTrip(concern);
+		return doUpdate(q, o, upsert, multi, concern);
+	}
+
+	private synchronized WriteResult doUpdate(DBObject q, DBObject o,
+			boolean upsert, boolean multi, WriteConcern concern) {
+		boolean modifiers = !o.keySet().isEmpty()
+				&& o.keySet().iterator().next().startsWith("$");
+		int n = 0;
+		for (DBObject d : new ArrayList<DBObject>(documents.values())) {
+			if (!matches(d, q))
+				continue;
+			if (modifiers)
+				modify(d, o);
+			else {
+				Object id = d.get("_id");
+				d.keySet().clear();
+				for (String k : o.keySet())
+					d.put(k, copyValue(o.get(k)));
+				d.put("_id", id);
+			}
+			n++;
+			if (!multi)
+				break;
+		}
+		if (n == 0 && upsert) {
+			DBObject d = new BasicDBObject();
+			for (String k : q.keySet()) {
+				Object v = q.get(k);
+				if (!k.startsWith("$") && !isOperator(v))
+					d.put(k, copyValue(v));
+			}
+			if (modifiers)
+				modify(d, o);
+			else
+				for (String k : o.keySet())
+					d.put(k, copyValue(o.get(k)));
+			if (d.get("_id") == null)
+				d.put("_id", new ObjectId());
+			documents.put(key(d.get("_id")), d);
+			return result(concern, 1, false);
+		}
+		return result(concern, n, n > 0);
+	}
+
+	@Override
+	protected void doapply(DBObject o) {
+	}
+
+	@Override
+	public WriteResult remove(DBObject o, WriteConcern concern,
+			DBEncoder encoder) {
+		roundTrip(concern);
+		return doRemove(o, concern);
+	}
+
+	private synchronized WriteResult doRemove(DBObject o, WriteConcern concern) {
+		int n = 0;
+		for (Iterator<DBObject> i = documents.values().iterator(); i.hasNext();) {
+			if (matches(i.next(), o)) {
+				i.remove();
+				n++;
+			}
+		}
+		return result(concern, n, false);
+	}
+
+	@Override
+	Iterator<DBObject> __find(DBObject ref, DBObject fields, int numToSkip,
+			int batchSize, int limit, int options, ReadPreference readPref,
+			DBDecoder decoder) {
+		roundTrip();
+		return doFind(ref, fields, numToSkip, batchSize, limit);
+	}
+
+	private synchronized Iterator<DBObject> doFind(DBObject ref,
+			DBObject fields, int numToSkip, int batchSize, int limit) {
+		DBObject query = ref == null ? new BasicDBObject() : ref;
+		DBObject orderBy = null;
+		if (query.get("query") instanceof DBObject) {
+			orderBy = (DBObject) query.get("orderby");
+			query = (DBObject) query.get("query");
+		}
+		List<DBObject> found = new ArrayList<DBObject>();
+		for (DBObject d : documents.values())
+			if (matches(d, query))
+				found.add(d);
+		if (orderBy != null && !orderBy.keySet().isEmpty()) {
+			final String field = orderBy.keySet().iterator().next();
+			final int direction = ((Number) orderBy.get(field)).intValue();
+			Collections.sort(found, new Comparator<DBObject>() {
+				public int compare(DBObject a, DBObject b) {
+					return direction * compareValues(a.get(field), b.get(field));
+				}
+			});
+		}
+		int max = limit != 0 ? Math.abs(limit) : batchSize < 0 ? -batchSize
+				: 0;
+		List<DBObject> result = new ArrayList<DBObject>();
+		for (int i = numToSkip; i < found.size(); i++) {
+			if (max > 0 && result.size() == max)
+				break;
+			result.add(project(found.get(i), fields));
+		}
+		queries++;
+		documentsRead += result.size();
+		// like the driver, which has no cursor then
+		return result.isEmpty() ? null : result.iterator();
+	}
+
+	@Override
+	public long getCount(DBObject query, DBObject fields, long limit,
+			long skip) {
+		roundTrip();
+		return doCount(query, limit, skip);
+	}
+
+	private synchronized long doCount(DBObject query, long limit, long skip) {
+		queries++;
+		long n = 0;
+		for (DBObject d : documents.values())
+			if (query == null || matches(d, query))
+				n++;
+		n = Math.max(0, n - skip);
+		return limit > 0 ? Math.min(n, limit) : n;
+	}
+
+	@Override
+	public void createIndex(DBObject keys, DBObject options, DBEncoder encoder) {
+	}
+
+	@Override
+	public synchronized void drop() {
+		documents.clear();
+	}
+
+	/**
+	 * waits like for a reply from the server
+	 */
+	private void roundTrip() {
+		((MemoryDB) getDB()).roundTrip();
+	}
+
+	/**
+	 * only acknowledged writes wait (no concern means the driver default,
+	 * which is not acknowledged)
+	 */
+	private void roundTrip(WriteConcern concern) {
+		if (concern != null && concern.getW() > 0)
+			roundTrip();
+	}
+
+	private WriteResult result(WriteConcern concern, int n,
+			boolean updatedExisting) {
+		CommandResult r = new CommandResult(MemoryDB.address);
+		r.put("ok", 1);
+		r.put("err", null);
+		r.put("n", n);
+		r.put("updatedExisting", updatedExisting);
+		return new WriteResult(r, concern == null ? WriteConcern.NORMAL
+				: concern);
+	}
+
+	private static String key(Object id) {
+		if (id instanceof byte[])
+			return "b:" + Hex.encodeHexString((byte[]) id);
+		return id.getClass().getName() + ":" + id;
+	}
+
+	// queries
+
+	private static boolean isOperator(Object v) {
+		if (!(v instanceof BSONObject))
+			return false;
+		for (String k : ((BSONObject) v).keySet())
+			return k.startsWith("$");
+		return false;
+	}
+
+	private static boolean matches(BSONObject d, BSONObject query) {
+		for (String field : query.keySet()) {
+			Object condition = query.get(field);
+			List<Object> values = values(d, field);
+			if (isOperator(condition)) {
+				BSONObject ops = (BSONObject) condition;
+				for (String op : ops.keySet()) {
+					if (!matches(values, op, ops.get(op)))
+						return false;
+				}
+			} else if (!matches(values, "$eq", condition))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean matches(List<Object> values, String op,
+			Object argument) {
+		if ("$exists".equals(op))
+			return values.isEmpty() != Boolean.TRUE.equals(argument);
+		if ("$in".equals(op)) {
+			for (Object a : (Collection<?>) argument)
+				if (matches(values, "$eq", a))
+					return true;
+			return false;
+		}
+		if ("$nin".equals(op))
+			return !matches(values, "$in", argument);
+		for (Object v : candidates(values)) {
+			if ("$eq".equals(op) && equalValues(v, argument))
+				return true;
+			if ("$gt".equals(op) && comparable(v, argument)
+					&& compareValues(v, argument) > 0)
+				return true;
+			if ("$gte".equals(op) && comparable(v, argument)
+					&& compareValues(v, argument) >= 0)
+				return true;
+			if ("$lt".equals(op) && comparable(v, argument)
+					&& compareValues(v, argument) < 0)
+				return true;
+			if ("$lte".equals(op) && comparable(v, argument)
+					&& compareValues(v, argument) <= 0)
+				return true;
+		}
+		if ("$eq".equals(op) && argument == null)
+			return values.isEmpty();
+		if ("$ne".equals(op))
+			return !matches(values, "$eq", argument);
+		if ("$eq".equals(op) || op.startsWith("$g") || op.startsWith("$l")
+				|| "$ne".equals(op))
+			return false;
+		throw new UnsupportedOperationException(op);
+	}
+
+	/**
+	 * the values and, for arrays, their elements
+	 */
+	private static List<Object> candidates(List<Object> values) {
+		List<Object> result = new ArrayList<Object>(values);
+		for (Object v : values)
+			if (v instanceof List<?>)
+				result.addAll((List<?>) v);
+		return result;
+	}
+
+	/**
+	 * the values at the (dotted) path, descending into arrays
+	 */
+	private static List<Object> values(Object d, String path) {
+		List<Object> result = new ArrayList<Object>();
+		String head = path;
+		String rest = null;
+		int dot = path.indexOf('.');
+		if (dot > 0) {
+			head = path.substring(0, dot);
+			rest = path.substring(dot + 1);
+		}
+		if (d instanceof List<?>) {
+			for (Object e : (List<?>) d)
+				if (e instanceof BSONObject)
+					result.addAll(values(e, path));
+			return result;
+		}
+		if (!(d instanceof BSONObject) || !((BSONObject) d).containsField(head))
+			return result;
+		Object v = ((BSONObject) d).get(head);
+		if (rest == null)
+			result.add(v);
+		else
+			result.addAll(values(v, rest));
+		return result;
+	}
+
+	private static boolean comparable(Object a, Object b) {
+		return (a instanceof Number && b instanceof Number)
+				|| (a != null && b != null && a.getClass() == b.getClass());
+	}
+
+	private static boolean equalValues(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a instanceof Number && b instanceof Number)
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		if (a instanceof List<?> && b instanceof List<?>) {
+			List<?> x = (List<?>) a;
+			List<?> y = (List<?>) b;
+			if (x.size() != y.size())
+				return false;
+			for (int i = 0; i < x.size(); i++)
+				if (!equalValues(x.get(i), y.get(i)))
+					return false;
+			return true;
+		}
+		if (a instanceof BSONObject && b instanceof BSONObject) {
+			BSONObject x = (BSONObject) a;
+			BSONObject y = (BSONObject) b;
+			if (!x.keySet().equals(y.keySet()))
+				return false;
+			for (String k : x.keySet())
+				if (!equalValues(x.get(k), y.get(k)))
+					return false;
+			return true;
+		}
+		return a.equals(b);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareValues(Object a, Object b) {
+		if (a == null || b == null)
+			return a == null ? (b == null ? 0 : -1) : 1;
+		if (a instanceof Number && b instanceof Number)
+			return Double.compare(((Number) a).doubleValue(), ((Number) b)
+					.doubleValue());
+		if (a instanceof byte[] && b instanceof byte[]) {
+			byte[] x = (byte[]) a;
+			byte[] y = (byte[]) b;
+			if (x.length != y.length)
+				return x.length - y.length;
+			for (int i = 0; i < x.length; i++) {
+				int c = (x[i] & 0xFF) - (y[i] & 0xFF);
+				if (c != 0)
+					return c;
+			}
+			return 0;
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass())
+			return ((Comparable<Object>) a).compareTo(b);
+		return a.getClass().getName().compareTo(b.getClass().getName());
+	}
+
+	// projections
+
+	private static DBObject project(DBObject d, DBObject fields) {
+		DBObject result = copy(d);
+		if (fields == null || fields.keySet().isEmpty())
+			return result;
+		boolean include = false;
+		for (String k : fields.keySet()) {
+			Object f = fields.get(k);
+			if (f instanceof BSONObject) {
+				Object slice = ((BSONObject) f).get("$slice");
+				if (result.get(k) instanceof List<?>)
+					result.put(k, slice((List<?>) result.get(k), slice));
+			} else if (!"_id".equals(k) && f instanceof Number
+					&& ((Number) f).intValue() != 0)
+				include = true;
+		}
+		for (String k : new ArrayList<String>(result.keySet())) {
+			Object f = fields.get(k);
+			if (f == null) {
+				if (include && !"_id".equals(k))
+					result.removeField(k);
+			} else if (f instanceof Number && ((Number) f).intValue() == 0)
+				result.removeField(k);
+		}
+		return result;
+	}
+
+	private static List<?> slice(List<?> list, Object slice) {
+		int skip = 0;
+		int n;
+		if (slice instanceof List<?>) {
+			skip = ((Number) ((List<?>) slice).get(0)).intValue();
+			n = ((Number) ((List<?>) slice).get(1)).intValue();
+		} else {
+			n = ((Number) slice).intValue();
+			if (n < 0) {
+				skip = n;
+				n = -n;
+			}
+		}
+		if (skip < 0)
+			skip = Math.max(0, list.size() + skip);
+		skip = Math.min(skip, list.size());
+		return new ArrayList<Object>(list.subList(skip, Math.min(list.size(),
+				skip + n)));
+	}
+
+	// updates
+
+	@SuppressWarnings("unchecked")
+	private static void modify(DBObject d, DBObject o) {
+		for (String op : o.keySet()) {
+			BSONObject args = (BSONObject) o.get(op);
+			for (String field : args.keySet()) {
+				Object arg = copyValue(args.get(field));
+				if ("$set".equals(op))
+					d.put(field, arg);
+				else if ("$unset".equals(op))
+					d.removeField(field);
+				else if ("$inc".equals(op)) {
+					Object old = d.get(field);
+					if (old == null)
+						d.put(field, arg);
+					else if (old instanceof Integer && arg instanceof Integer)
+						d.put(field, (Integer) old + (Integer) arg);
+					else
+						d.put(field, ((Number) old).longValue()
+								+ ((Number) arg).longValue());
+				} else {
+					List<Object> list = (List<Object>) d.get(field);
+					if (list == null) {
+						list = new ArrayList<Object>();
+						d.put(field, list);
+					}
+					if ("$push".equals(op))
+						list.add(arg);
+					else if ("$addToSet".equals(op)) {
+						Collection<?> each = arg instanceof BSONObject
+								&& ((BSONObject) arg).containsField("$each") ? (Collection<?>) ((BSONObject) arg)
+								.get("$each")
+								: Collections.singletonList(arg);
+						for (Object e : each) {
+							boolean present = false;
+							for (Object x : list)
+								present |= equalValues(x, e);
+							if (!present)
+								list.add(e);
+						}
+					} else if ("$pullAll".equals(op)) {
+						for (Iterator<Object> i = list.iterator(); i.hasNext();) {
+							Object x = i.next();
+							for (Object e : (Collection<?>) arg)
+								if (equalValues(x, e)) {
+									i.remove();
+									break;
+								}
+						}
+					} else
+						throw new UnsupportedOperationException(op);
+				}
+			}
+		}
+	}
+
+	// copies, so that the stored documents cannot be changed from outside
+
+	private static DBObject copy(BSONObject o) {
+		DBObject c = new BasicDBObject();
+		for (String k : o.keySet())
+			c.put(k, copyValue(o.get(k)));
+		return c;
+	}
+
+	private static Object copyValue(Object v) {
+		if (v instanceof BSONObject && !(v instanceof List<?>))
+			return copy((BSONObject) v);
+		if (v instanceof Collection<?>) {
+			List<Object> c = new ArrayList<Object>();
+			for (Object e : (Collection<?>) v)
+				c.add(copyValue(e));
+			return c;
+		}
+		if (v instanceof Object[])
+			return copyValue(Arrays.asList((Object[]) v));
+		if (v instanceof Date)
+			return new Date(((Date) v).getTime());
+		return v;
+	}
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mongodb;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A database that only exists in memory, for tests that cannot connect to a
+ * server. Its collections are {@link MemoryCollection}s, which count the
+ * queries made against them.
+ * <p>
+ * This is in the driver's package, because DBCollection can only be
+ * implemented from there.
+ */
+
+public class MemoryDB extends DB {
+
+	private static Mongo mongo;
+
+	static ServerAddress address;
+
+	private final Map<String, MemoryCollection> collections = new HashMap<String, MemoryCollection>();
+
+	private volatile long latencyNanos;
+
+	private final AtomicInteger roundTrips = new AtomicInteger();
+
+	public MemoryDB(String name) {
+		super(offlineMongo(), name);
+	}
+
+	/**
+	 * the collections need a Mongo for its options, it never connects
+	 */
+	private static synchronized Mongo offlineMongo() {
+		if (mongo == null) {
+			try {
+				address = new ServerAddress("127.0.0.1");
+				mongo = new Mongo(address);
+			} catch (UnknownHostException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return mongo;
+	}
+
+	@Override
+	protected synchronized MemoryCollection doGetCollection(String name) {
+		MemoryCollection c = collections.get(name);
+		if (c == null) {
+			c = new MemoryCollection(this, name);
+			collections.put(name, c);
+		}
+		return c;
+	}
+
+	public MemoryCollection getMemoryCollection(String name) {
+		return doGetCollection(name);
+	}
+
+	/**
+	 * every operation that waits for a reply takes (at least) this long, to
+	 * simulate the network between the application and the server
+	 */
+	public void setLatency(long micros) {
+		latencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+	}
+
+	/**
+	 * @return how many operations have waited for a reply, in all
+	 *         collections
+	 */
+	public int getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	void roundTrip() {
+		roundTrips.incrementAndGet();
+		long deadline = System.nanoTime() + latencyNanos;
+		long left;
+		while ((left = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(left);
+	}
+
+	@Override
+	public void cleanCursors(boolean force) {
+	}
+
+	@Override
+	public void requestDone() {
+	}
+
+	@Override
+	public void requestEnsureConnection() {
+	}
+
+	@Override
+	public void requestStart() {
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.mongodb.MongoContentStorage;
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
+
+import com.mongodb.MemoryDB;
+
+public class ZipFileTest extends TestCase {
+
+	private MongoContentStorage storage;
+
+	private ContentSHA epub;
+
+	/**
+	 * the entries of the archive, as java.util.zip reads them
+	 */
+	private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+	@Override
+	protected void setUp() throws Exception {
+		byte[] data = IOUtils.toByteArray(getClass().getResourceAsStream(
+				"mongodb.epub"));
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(data));
+		ZipEntry e;
+		while ((e = zip.getNextEntry()) != null)
+			entries.put(e.getName(), IOUtils.toByteArray(zip));
+		zip.close();
+
+		storage = new MongoContentStorage(new MemoryDB("test"));
+		epub = storage.storeContent(new ByteArrayInputStream(data));
+	}
+
+	private static byte[] read(Content c, long offset, long length)
+			throws IOException {
+		InputStream in = c.getInputStream(offset, length);
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertRange(byte[] expected, Content c, int offset,
+			int length) throws IOException {
+		assertTrue(offset + "/" + length, Arrays.equals(Arrays.copyOfRange(
+				expected, offset, offset + length), read(c, offset, length)));
+	}
+
+	public void testExtractStoredFile() throws IOException {
+		byte[] expected = entries.get("mimetype");
+		assertEquals("application/epub+zip", new String(expected, "ASCII"));
+		ContentPointer p = ZipFile.extractFile(storage, epub, "mimetype");
+		assertEquals(expected.length, p.getLength());
+		Content c = storage.getContent(p);
+		assertTrue(Arrays.equals(expected, IOUtils.toByteArray(c
+				.getInputStream())));
+		assertRange(expected, c, 12, 8);
+		assertRange(expected, c, 0, 1);
+		assertRange(expected, c, expected.length, 0);
+	}
+
+	public void testExtractDeflatedFile() throws IOException {
+		byte[] expected = entries.get("ch1.xhtml");
+		ContentPointer p = ZipFile.extractFile(storage, epub, "ch1.xhtml");
+		assertEquals(expected.length, p.getLength());
+		Content c = storage.getContent(p);
+		assertEquals(expected.length, c.getLength());
+		assertTrue(Arrays.equals(expected, IOUtils.toByteArray(c
+				.getInputStream())));
+		assertRange(expected, c, 0, 100);
+		assertRange(expected, c, 40000, 10000);
+		assertRange(expected, c, expected.length - 10, 10);
+		assertRange(expected, c, expected.length, 0);
+	}
+
+	public void testSkipInDeflatedFile() throws IOException {
+		byte[] expected = entries.get("images/img0.png");
+		Content c = storage.getContent(ZipFile.extractFile(storage, epub,
+				"images/img0.png"));
+		InputStream in = c.getInputStream();
+		assertEquals(1000, in.skip(1000));
+		byte[] b = new byte[100];
+		new DataInputStream(in).readFully(b);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 1000, 1100), b));
+		assertEquals(expected.length - 1100, in.skip(Long.MAX_VALUE));
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	public void testIndex() throws IOException {
+		ZipFile.index(storage, epub);
+		for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+			byte[] expected = e.getValue();
+			Content c = storage.getContent(DigestUtils.sha(expected));
+			assertNotNull(e.getKey(), c);
+			assertEquals(e.getKey(), expected.length, c.getLength());
+			assertTrue(e.getKey(), Arrays.equals(expected, IOUtils
+					.toByteArray(c.getInputStream())));
+		}
+	}
+
+	public void testExtractMissingFile() throws IOException {
+		try {
+			ZipFile.extractFile(storage, epub, "ch2.xhtml");
+			fail();
+		} catch (FileNotFoundException e) {
+		}
+	}
+
+	public void testNotAZipFile() throws IOException {
+		ContentSHA text = storage.storeContent(new ByteArrayInputStream(
+				"this is not a zip file".getBytes("ASCII")));
+		try {
+			ZipFile.index(storage, text);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class AppendOnlyStoreTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("v7files", "cold");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static byte[] record(int i, int length) {
+		byte[] r = new byte[length];
+		Arrays.fill(r, (byte) i);
+		return r;
+	}
+
+	/**
+	 * two users of the same directory must not write over each other's
+	 * records
+	 */
+	public void testSharedWithinTheProcess() throws IOException {
+		AppendOnlyStore a = AppendOnlyStore.open(dir, 100);
+		AppendOnlyStore b = AppendOnlyStore.open(new File(dir, "."), 100);
+		assertSame(a, b);
+		long p1 = a.append(record(1, 60));
+		long p2 = b.append(record(2, 60));
+		long p3 = a.append(record(3, 30));
+		assertTrue(Arrays.equals(record(1, 60), a.read(p1, 60)));
+		assertTrue(Arrays.equals(record(2, 60), b.read(p2, 60)));
+		assertTrue(Arrays.equals(record(3, 30), b.read(p3, 30)));
+
+		// still open for b
+		a.close();
+		long p4 = b.append(record(4, 10));
+		b.close();
+
+		// continues after the existing segments
+		AppendOnlyStore c = AppendOnlyStore.open(dir, 100);
+		long p5 = c.append(record(5, 10));
+		assertTrue(p5 > p4);
+		for (long p : new long[] { p1, p2, p3 })
+			assertEquals(p == p1 ? 1 : p == p2 ? 2 : 3, c.read(p, 1)[0]);
+		c.close();
+	}
+
+	public void testLockedByAnotherProcess() throws IOException {
+		FileUtils.forceMkdir(dir);
+		RandomAccessFile other = new RandomAccessFile(new File(dir, "lock"),
+				"rw");
+		FileLock lock = other.getChannel().lock();
+		try {
+			AppendOnlyStore.open(dir, 100);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+		} finally {
+			lock.release();
+			other.close();
+		}
+		AppendOnlyStore.open(dir, 100).close();
+	}
+
+}
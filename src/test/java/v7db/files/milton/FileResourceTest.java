@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.milton;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import v7db.files.mongodb.MongoContentStorage;
+import v7db.files.mongodb.V7File;
+import v7db.files.mongodb.V7GridFS;
+
+import com.bradmcevoy.http.AbstractResponse;
+import com.bradmcevoy.http.Cookie;
+import com.bradmcevoy.http.Range;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Response;
+import com.bradmcevoy.http.http11.DefaultHttp11ResponseHandler;
+import com.bradmcevoy.http.http11.Http11ResponseHandler;
+import com.bradmcevoy.http.http11.PartialGetHelper;
+import com.mongodb.MemoryCollection;
+import com.mongodb.MemoryDB;
+
+public class FileResourceTest extends TestCase {
+
+	private static final int CHUNK = 256 * 1024;
+
+	private static Properties defaults() throws IOException {
+		Properties props = new Properties();
+		props.load(FileResourceTest.class
+				.getResourceAsStream("/v7db/files/defaults.properties"));
+		// the chunk cache is shared by all storages, and would hide the reads
+		props.setProperty("content.cache.compressed.bytes", "0");
+		props.setProperty("content.cache.inflated.bytes", "0");
+		return props;
+	}
+
+	/**
+	 * a GET with the given Range header, as GetHandler does it
+	 */
+	private static TestResponse get(FileResource resource, String range)
+			throws Exception {
+		Http11ResponseHandler handler = new DefaultHttp11ResponseHandler(null);
+		PartialGetHelper helper = new PartialGetHelper(handler);
+		Request request = (Request) Proxy.newProxyInstance(Request.class
+				.getClassLoader(), new Class<?>[] { Request.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return null;
+					}
+				});
+		TestResponse response = new TestResponse();
+		List<Range> ranges = helper.getRanges(range, resource
+				.getContentLength());
+		if (ranges != null && ranges.size() > 0) {
+			helper.sendPartialContent(resource, request, response, ranges,
+					null);
+		} else {
+			handler.respondContent(resource, response, request, null);
+		}
+		return response;
+	}
+
+	private static class TestResponse extends AbstractResponse {
+
+		private final Map<String, String> headers = new HashMap<String, String>();
+
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		private Status status;
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public void setStatus(Status status) {
+			this.status = status;
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public void setNonStandardHeader(String code, String value) {
+			headers.put(code, value);
+		}
+
+		public String getNonStandardHeader(String code) {
+			return headers.get(code);
+		}
+
+		public void setAuthenticateHeader(List<String> challenges) {
+		}
+
+		public OutputStream getOutputStream() {
+			return body;
+		}
+
+		public Cookie setCookie(Cookie cookie) {
+			return cookie;
+		}
+
+		public Cookie setCookie(String name, String value) {
+			return null;
+		}
+	}
+
+	/**
+	 * a range at the end of a large file should only read the chunk it is
+	 * in, not the ones before
+	 */
+	public void testTailRangeReadsOnlyTheLastChunk() throws Exception {
+		byte[] data = new byte[5 * CHUNK + 1000];
+		new Random(42).nextBytes(data);
+
+		MemoryDB db = new MemoryDB("test");
+		Properties props = defaults();
+		new V7GridFS(db, props).addFile(new ByteArrayInputStream(data),
+				"root", "big.bin", "application/octet-stream");
+		MemoryCollection content = db
+				.getMemoryCollection(MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME);
+		// the chunks and the "cat" document for them
+		assertEquals(7, content.size());
+
+		// a new storage, so that nothing is cached yet
+		V7File file = new V7GridFS(db, props).getFile("root", "big.bin");
+		FileResource resource = new FileResource(file, null);
+
+		content.resetCounts();
+		ByteArrayOutputStream tail = new ByteArrayOutputStream();
+		resource.sendContent(tail, new Range(data.length - 100,
+				data.length - 1), null, null);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - 100,
+				data.length), tail.toByteArray()));
+		// the "cat" document and the last chunk
+		assertEquals(2, content.getDocumentsRead());
+		assertEquals(2, content.getQueryCount());
+
+		file = new V7GridFS(db, props).getFile("root", "big.bin");
+		resource = new FileResource(file, null);
+		content.resetCounts();
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		resource.sendContent(all, null, null, null);
+		assertTrue(Arrays.equals(data, all.toByteArray()));
+		assertEquals(7, content.getDocumentsRead());
+	}
+
+	/**
+	 * "bytes=N-" and "bytes=-N" go to the end of the file, and still only
+	 * read the last chunk
+	 */
+	public void testOpenEndedRange() throws Exception {
+		byte[] data = new byte[5 * CHUNK + 1000];
+		new Random(42).nextBytes(data);
+
+		MemoryDB db = new MemoryDB("test");
+		Properties props = defaults();
+		new V7GridFS(db, props).addFile(new ByteArrayInputStream(data),
+				"root", "big.bin", "application/octet-stream");
+		MemoryCollection content = db
+				.getMemoryCollection(MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME);
+		byte[] tail = Arrays.copyOfRange(data, data.length - 100, data.length);
+		String contentRange = "bytes " + (data.length - 100) + "-"
+				+ (data.length - 1) + "/" + data.length;
+
+		for (String range : new String[] { "bytes=" + (data.length - 100) + "-",
+				"bytes=-100" }) {
+			V7File file = new V7GridFS(db, props).getFile("root", "big.bin");
+			content.resetCounts();
+			TestResponse response = get(new FileResource(file, null), range);
+			assertEquals(range, Response.Status.SC_PARTIAL_CONTENT, response
+					.getStatus());
+			assertEquals(range, contentRange, response
+					.getResponseHeader(Response.Header.CONTENT_RANGE));
+			assertTrue(range, Arrays.equals(tail, response.body.toByteArray()));
+			assertEquals(range, 2, content.getDocumentsRead());
+		}
+
+		// a suffix longer than the file is the whole file
+		V7File file = new V7GridFS(db, props).getFile("root", "big.bin");
+		TestResponse response = get(new FileResource(file, null), "bytes=-"
+				+ (data.length + 1));
+		assertEquals(Response.Status.SC_PARTIAL_CONTENT, response.getStatus());
+		assertTrue(Arrays.equals(data, response.body.toByteArray()));
+	}
+
+	/**
+	 * "bytes=0-99,5000-" is sent as a multipart/byteranges body with both
+	 * parts
+	 */
+	public void testMultipleRanges() throws Exception {
+		byte[] data = new byte[6000];
+		new Random(42).nextBytes(data);
+		MemoryDB db = new MemoryDB("test");
+		V7GridFS fs = new V7GridFS(db, defaults());
+		fs.addFile(new ByteArrayInputStream(data), "root", "small.bin",
+				"application/octet-stream");
+
+		TestResponse response = get(new FileResource(fs.getFile("root",
+				"small.bin"), null), "bytes=0-99,5000-");
+		assertEquals(Response.Status.SC_PARTIAL_CONTENT, response.getStatus());
+		String ct = response.getContentTypeHeader();
+		assertTrue(ct, ct.startsWith("multipart/byteranges; boundary="));
+		String boundary = ct.substring(ct.indexOf('=') + 1);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(("\r\n--" + boundary
+				+ "\r\nContent-Type: application/octet-stream"
+				+ "\r\nContent-Range: bytes 0-99/6000\r\n\r\n")
+				.getBytes("US-ASCII"));
+		expected.write(data, 0, 100);
+		expected.write(("\r\n--" + boundary
+				+ "\r\nContent-Type: application/octet-stream"
+				+ "\r\nContent-Range: bytes 5000-5999/6000\r\n\r\n")
+				.getBytes("US-ASCII"));
+		expected.write(data, 5000, 1000);
+		expected.write(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+		assertTrue(Arrays.equals(expected.toByteArray(), response.body
+				.toByteArray()));
+		assertEquals(String.valueOf(expected.size()), response
+				.getResponseHeader(Response.Header.CONTENT_LENGTH));
+	}
+
+	/**
+	 * a range that starts beyond the end gets a 416, not the whole file
+	 */
+	public void testUnsatisfiableRange() throws Exception {
+		byte[] data = new byte[6000];
+		new Random(42).nextBytes(data);
+		MemoryDB db = new MemoryDB("test");
+		V7GridFS fs = new V7GridFS(db, defaults());
+		fs.addFile(new ByteArrayInputStream(data), "root", "small.bin",
+				"application/octet-stream");
+
+		for (String range : new String[] { "bytes=9999999-",
+				"bytes=9999999-10000000", "bytes=-0" }) {
+			TestResponse response = get(new FileResource(fs.getFile("root",
+					"small.bin"), null), range);
+			assertEquals(range,
+					Response.Status.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+					response.getStatus());
+			assertEquals(range, "bytes */6000", response
+					.getResponseHeader(Response.Header.CONTENT_RANGE));
+			assertEquals(range, 0, response.body.size());
+		}
+
+		// a syntactically invalid range is ignored
+		TestResponse response = get(new FileResource(fs.getFile("root",
+				"small.bin"), null), "bytes=500-100");
+		assertEquals(Response.Status.SC_OK, response.getStatus());
+		assertTrue(Arrays.equals(data, response.body.toByteArray()));
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
+
+import com.mongodb.MemoryCollection;
+import com.mongodb.MemoryDB;
+
+public class ChunkCacheTest extends TestCase {
+
+	private static Properties config() {
+		Properties props = new Properties();
+		props.setProperty("content.cache.compressed.bytes", "1048576");
+		props.setProperty("content.cache.inflated.bytes", "1048576");
+		return props;
+	}
+
+	private static byte[] read(MongoContentStorage storage, ContentPointer p)
+			throws IOException {
+		return IOUtils.toByteArray(storage.getContent(p).getInputStream());
+	}
+
+	/**
+	 * all storages share one cache, but only see the chunks of their own
+	 * content collection
+	 */
+	public void testSharedByTheStorages() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(42).nextBytes(data);
+
+		MemoryDB db = new MemoryDB("test");
+		MongoContentStorage storage = new MongoContentStorage(db, config());
+		ContentPointer p = storage.storeContent(new ByteArrayInputStream(data));
+		MemoryCollection content = db
+				.getMemoryCollection(MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME);
+		content.resetCounts();
+		assertTrue(Arrays.equals(data, read(storage, p)));
+		assertEquals(1, content.getDocumentsRead());
+
+		MongoContentStorage other = new MongoContentStorage(db, config());
+		assertSame(storage.getChunkCache(), other.getChunkCache());
+		assertTrue(Arrays.equals(data, read(other, p)));
+		assertEquals(1, content.getDocumentsRead());
+
+		// the same content in another database is not there yet
+		MemoryDB tenant = new MemoryDB("test");
+		MongoContentStorage theirs = new MongoContentStorage(tenant, config());
+		assertSame(storage.getChunkCache(), theirs.getChunkCache());
+		assertNull(theirs.getContent(ContentSHA.calculate(data, 0,
+				data.length).getSHA()));
+		theirs.storeContent(new ByteArrayInputStream(data));
+		MemoryCollection theirContent = tenant
+				.getMemoryCollection(MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME);
+		theirContent.resetCounts();
+		assertTrue(Arrays.equals(data, read(theirs, p)));
+		assertEquals(1, theirContent.getDocumentsRead());
+	}
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MemoryDB;
+
+public class ContentCollectorTest extends TestCase {
+
+	private MemoryDB db;
+
+	private DBCollection content;
+
+	private static byte[] sha(int i) {
+		byte[] sha = new byte[20];
+		Arrays.fill(sha, (byte) i);
+		return sha;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		db = new MemoryDB("test");
+		content = db
+				.getCollection(MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME);
+	}
+
+	private void store(byte[] sha, BasicDBObject doc) {
+		content.insert(doc.append(_ID, sha));
+		// unreferenced for two hours already
+		db.getCollection(ContentCollector.CANDIDATES_COLLECTION_NAME).insert(
+				new BasicDBObject(_ID, sha).append("since", new Date(System
+						.currentTimeMillis() - 2 * 60 * 60 * 1000)));
+	}
+
+	private boolean exists(byte[] sha) {
+		return content.findOne(new BasicDBObject(_ID, sha)) != null;
+	}
+
+	/**
+	 * a dedup hit on a "cat" document also protects what it refers to,
+	 * which is not live by itself
+	 */
+	public void testTouchKeepsTheBases() throws InterruptedException {
+		byte[] cat = sha(1), delta = sha(2), chunk = sha(3), deltaBase = sha(4), garbage = sha(5);
+		store(chunk, new BasicDBObject("in", new byte[10]));
+		store(deltaBase, new BasicDBObject("in", new byte[10]));
+		store(delta, new BasicDBObject("store", "delta").append("base",
+				new BasicDBObject("sha", deltaBase).append("length", 10))
+				.append("delta", new byte[5]));
+		store(cat, new BasicDBObject("store", "cat").append("base", Arrays
+				.asList(new BasicDBObject("sha", chunk).append("length", 10),
+						new BasicDBObject("sha", delta).append("length", 10))));
+		store(garbage, new BasicDBObject("in", new byte[10]));
+
+		ContentCollector.touch(content, Collections.singletonList(cat));
+
+		Properties props = new Properties();
+		props.setProperty("content.gc.grace", "60");
+		new ContentCollector(db, props).collect(false);
+
+		assertTrue(exists(cat));
+		assertTrue(exists(chunk));
+		assertTrue(exists(delta));
+		assertTrue(exists(deltaBase));
+		assertFalse(exists(garbage));
+	}
+
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.mongodb.DBObject;
+import com.mongodb.MemoryDB;
+
+/**
+ * Measures how well versions of edited documents deduplicate with fixed and
+ * with content-defined chunking: all versions are stored, and the dedup
+ * ratio is their total size divided by the size of the distinct chunks that
+ * end up in the database.
+ * <p>
+ * The documents are generated (with a fixed seed), so that the numbers can
+ * be reproduced:
+ * <ul>
+ * <li>"docx": a zip archive laid out like a word processor file (XML
+ * document first, deflated, then two images), where every version inserts
+ * a paragraph somewhere in the document, and one version replaces an image.
+ * <li>"text": an uncompressed document (like CSV or RTF), where every version
+ * inserts or deletes a few hundred bytes somewhere.
+ * </ul>
+ * Not a unit test, run it with <code>main</code> (argument: number of
+ * versions).
+ */
+
+public class DedupBenchmark {
+
+	private static final String[] WORDS = { "the", "content", "storage",
+			"chunk", "document", "version", "of", "and", "a", "is", "with",
+			"database", "server", "file", "edit", "report", "quarter",
+			"revenue", "meeting", "to", "in", "for", "on", "by", "that" };
+
+	private static String sentence(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int n = 8 + random.nextInt(12);
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.append('.').toString();
+	}
+
+	private static String paragraph(Random random) {
+		StringBuilder sb = new StringBuilder("<w:p><w:r><w:t>");
+		int n = 2 + random.nextInt(5);
+		for (int i = 0; i < n; i++)
+			sb.append(sentence(random)).append(' ');
+		return sb.append("</w:t></w:r></w:p>\n").toString();
+	}
+
+	private static byte[] zip(List<String> paragraphs, byte[] image1,
+			byte[] image2) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+		zip.write("<Types/>".getBytes("UTF-8"));
+		zip.putNextEntry(new ZipEntry("word/document.xml"));
+		zip.write("<w:document><w:body>\n".getBytes("UTF-8"));
+		for (String p : paragraphs)
+			zip.write(p.getBytes("UTF-8"));
+		zip.write("</w:body></w:document>".getBytes("UTF-8"));
+		zip.putNextEntry(new ZipEntry("word/media/image1.png"));
+		zip.write(image1);
+		zip.putNextEntry(new ZipEntry("word/media/image2.jpeg"));
+		zip.write(image2);
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	private static List<byte[]> docxVersions(int versions) throws IOException {
+		Random random = new Random(42);
+		List<String> paragraphs = new ArrayList<String>();
+		for (int i = 0; i < 6000; i++)
+			paragraphs.add(paragraph(random));
+		byte[] image1 = new byte[400 * 1024];
+		random.nextBytes(image1);
+		byte[] image2 = new byte[300 * 1024];
+		random.nextBytes(image2);
+		List<byte[]> result = new ArrayList<byte[]>();
+		for (int v = 0; v < versions; v++) {
+			if (v > 0)
+				paragraphs.add(random.nextInt(paragraphs.size()),
+						paragraph(random));
+			if (v == versions / 2) {
+				image2 = new byte[300 * 1024];
+				random.nextBytes(image2);
+			}
+			result.add(zip(paragraphs, image1, image2));
+		}
+		return result;
+	}
+
+	private static List<byte[]> textVersions(int versions) throws IOException {
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 4 * 1024 * 1024)
+			text.append(sentence(random)).append(random.nextInt(10) == 0 ? "\n"
+					: " ");
+		List<byte[]> result = new ArrayList<byte[]>();
+		for (int v = 0; v < versions; v++) {
+			if (v > 0) {
+				int at = random.nextInt(text.length() - 1000);
+				if (random.nextBoolean())
+					text.insert(at, sentence(random) + " " + sentence(random));
+				else
+					text.delete(at, at + 100 + random.nextInt(400));
+			}
+			result.add(text.toString().getBytes("UTF-8"));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the total length of all chunks stored in the collection
+	 */
+	private static long storedBytes(MemoryDB db) {
+		long stored = 0;
+		for (DBObject o : db.getCollection(
+				MongoContentStorage.DEFAULT_CONTENT_COLLECTION_NAME).find()) {
+			byte[] in = (byte[]) o.get("in");
+			if (in != null)
+				stored += in.length;
+		}
+		return stored;
+	}
+
+	private static void measure(String corpus, List<byte[]> versions,
+			String name, String... keyValues) throws IOException {
+		Properties props = new Properties();
+		// so that the stored bytes are the chunk bytes
+		props.setProperty("content.compression.level", "0");
+		for (int i = 0; i < keyValues.length; i += 2)
+			props.setProperty(keyValues[i], keyValues[i + 1]);
+		MemoryDB db = new MemoryDB("dedup");
+		MongoContentStorage storage = new MongoContentStorage(db, props);
+		long total = 0;
+		for (byte[] v : versions) {
+			storage.storeContent(new ByteArrayInputStream(v));
+			total += v.length;
+		}
+		long stored = storedBytes(db);
+		System.out.printf("%-6s %-24s %8d KB total %8d KB stored %6.2f : 1%n",
+				corpus, name, total / 1024, stored / 1024, (double) total
+						/ stored);
+	}
+
+	private static void measure(String corpus, List<byte[]> versions)
+			throws IOException {
+		measure(corpus, versions, "fixed 256KB", "content.chunking", "fixed");
+		measure(corpus, versions, "cdc 64KB/256KB/1MB", "content.chunking",
+				"cdc");
+		measure(corpus, versions, "cdc 16KB/64KB/256KB", "content.chunking",
+				"cdc", "content.chunking.min", "16384",
+				"content.chunking.avg", "65536", "content.chunking.max",
+				"262144");
+	}
+
+	public static void main(String[] args) throws IOException {
+		int versions = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		System.out.printf("%d versions each%n", versions);
+		measure("docx", docxVersions(versions));
+		measure("text", textVersions(versions));
+	}
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MemoryCollection;
+import com.mongodb.MemoryDB;
+
+/**
+ * Measures upload throughput (in MB/s) of {@link MongoContentStorage} and
+ * the number of round trips to the database it takes, for several ingest
+ * configurations.
+ * <p>
+ * There is no server involved: the content collection is a
+ * {@link MemoryDB} that waits for the given latency on every operation that
+ * gets a reply, so the numbers show how much the round trips cost, not how
+ * fast a particular server is.
+ * <p>
+ * Not a unit test, run it with <code>main</code> (arguments: upload size in
+ * MB, latency in microseconds, measured rounds, concurrent uploads, packed
+ * SHAs in the pack index).
+ */
+
+public class IngestBenchmark {
+
+	private static Properties config(String... keyValues) {
+		Properties props = new Properties();
+		for (int i = 0; i < keyValues.length; i += 2)
+			props.setProperty(keyValues[i], keyValues[i + 1]);
+		return props;
+	}
+
+	private static void measure(String name, Properties props, byte[] data,
+			long latency, int rounds) throws IOException {
+		double sum = 0;
+		int roundTrips = 0;
+		for (int i = -1; i < rounds; i++) {
+			// a new database every time, so that nothing is there already
+			MemoryDB db = new MemoryDB("bench");
+			db.setLatency(latency);
+			MongoContentStorage storage = new MongoContentStorage(db, props);
+			long start = System.nanoTime();
+			storage.storeContent(new ByteArrayInputStream(data));
+			double seconds = (System.nanoTime() - start) / 1e9;
+			// the first round is warm-up
+			if (i >= 0) {
+				sum += data.length / seconds / (1024 * 1024);
+				roundTrips = db.getRoundTrips();
+			}
+		}
+		System.out.printf("%-36s %8.1f MB/s %8d round trips%n", name, sum
+				/ rounds, roundTrips);
+	}
+
+	/**
+	 * several different uploads at the same time, into the same storage
+	 * 
+	 * @return the combined MB/s
+	 */
+	private static double measureConcurrent(String name, Properties props,
+			final byte[][] data, long latency, int rounds) throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(data.length);
+		double sum = 0;
+		long total = 0;
+		for (byte[] d : data)
+			total += d.length;
+		for (int i = -1; i < rounds; i++) {
+			MemoryDB db = new MemoryDB("bench");
+			db.setLatency(latency);
+			final MongoContentStorage storage = new MongoContentStorage(db,
+					props);
+			List<Future<?>> uploads = new ArrayList<Future<?>>();
+			long start = System.nanoTime();
+			for (final byte[] d : data)
+				uploads.add(clients.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						storage.storeContent(new ByteArrayInputStream(d));
+						return null;
+					}
+				}));
+			for (Future<?> u : uploads)
+				try {
+					u.get();
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause());
+				}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if (i >= 0)
+				sum += total / seconds / (1024 * 1024);
+		}
+		clients.shutdown();
+		System.out.printf("%-36s %8.1f MB/s (%d uploads)%n", name, sum
+				/ rounds, data.length);
+		return sum / rounds;
+	}
+
+	private static int databases = 0;
+
+	/**
+	 * fills the pack index with that many random SHAs, spread evenly over
+	 * all the buckets
+	 */
+	private static void pack(MemoryDB db, int packed) {
+		Random random = new Random(7);
+		int buckets = Math.min(packed, 65536);
+		List<DBObject> docs = new ArrayList<DBObject>(buckets);
+		byte[] pack = new byte[20];
+		for (int i = 0; i < buckets; i++) {
+			List<byte[]> records = new ArrayList<byte[]>();
+			for (int j = i; j < packed; j += buckets) {
+				byte[] sha = new byte[20];
+				random.nextBytes(sha);
+				sha[0] = (byte) (i >> 8);
+				sha[1] = (byte) i;
+				records.add(PackIndex.record(sha, pack, j, 1000));
+			}
+			docs.add(new BasicDBObject("_id", new byte[] { (byte) (i >> 8),
+					(byte) i }).append("m", records));
+		}
+		db.getCollection(PackIndex.PACK_INDEX_COLLECTION_NAME).insert(docs);
+	}
+
+	/**
+	 * like {@link #measure}, but with a populated pack index
+	 */
+	private static void measurePacked(String name, Properties props,
+			byte[] data, long latency, int rounds, int packed)
+			throws IOException, InterruptedException {
+		double sum = 0;
+		int roundTrips = 0, bucketsRead = 0;
+		for (int i = -1; i < rounds; i++) {
+			// a database of its own, for its own pack filter
+			MemoryDB db = new MemoryDB("bench" + databases++);
+			pack(db, packed);
+			MongoContentStorage storage = new MongoContentStorage(db, props);
+			// wait for the filter to be seeded
+			byte[] probe = new byte[20];
+			while (storage.getPackIndex().mayBePacked(probe)
+					&& props.getProperty("content.packs.filter.refresh") != null)
+				Thread.sleep(10);
+			MemoryCollection index = db
+					.getMemoryCollection(PackIndex.PACK_INDEX_COLLECTION_NAME);
+			index.resetCounts();
+			db.setLatency(latency);
+			int before = db.getRoundTrips();
+			long start = System.nanoTime();
+			storage.storeContent(new ByteArrayInputStream(data));
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if (i >= 0) {
+				sum += data.length / seconds / (1024 * 1024);
+				roundTrips = db.getRoundTrips() - before;
+				bucketsRead = index.getDocumentsRead();
+			}
+		}
+		System.out.printf("%-36s %8.1f MB/s %8d round trips %8d buckets read%n",
+				name, sum / rounds, roundTrips, bucketsRead);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 500;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int concurrent = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		int packed = args.length > 4 ? Integer.parseInt(args[4]) : 1000000;
+
+		byte[] data = new byte[megabytes * 1024 * 1024];
+		new Random(42).nextBytes(data);
+		System.out.printf("%d MB upload, %d us latency, %d rounds%n",
+				megabytes, latency, rounds);
+
+		measure("one chunk at a time", config("content.ingest.batch", "1",
+				"content.ingest.threads", "0"), data, latency, rounds);
+		measure("batches of 16", config("content.ingest.batch", "16",
+				"content.ingest.threads", "0"), data, latency, rounds);
+		measure("batches of 16, 4 threads", config("content.ingest.batch",
+				"16", "content.ingest.threads", "4", "content.ingest.window",
+				"64"), data, latency, rounds);
+		measure("  and 2 writers", config("content.ingest.batch", "16",
+				"content.ingest.threads", "4", "content.ingest.writers", "2",
+				"content.ingest.window", "64"), data, latency, rounds);
+		measure("  and acknowledged per upload", config(
+				"content.ingest.batch", "16", "content.ingest.threads", "4",
+				"content.ingest.window", "64", "content.ingest.acknowledge",
+				"upload"), data, latency, rounds);
+
+		System.out.printf("%d SHAs in the pack index%n", packed);
+		measurePacked("batches of 16", config("content.ingest.batch", "16",
+				"content.ingest.threads", "0"), data, latency, rounds, packed);
+		measurePacked("  and the pack filter", config("content.ingest.batch",
+				"16", "content.ingest.threads", "0",
+				"content.packs.filter.refresh", "60"), data, latency, rounds,
+				packed);
+		measurePacked("one chunk at a time", config("content.ingest.batch",
+				"1", "content.ingest.threads", "0"), data, latency, rounds,
+				packed);
+		measurePacked("  and the pack filter", config("content.ingest.batch",
+				"1", "content.ingest.threads", "0",
+				"content.packs.filter.refresh", "60"), data, latency, rounds,
+				packed);
+
+		// different content for every upload, so that nothing is deduplicated
+		byte[][] uploads = new byte[concurrent][data.length / concurrent];
+		Random random = new Random(42);
+		for (byte[] u : uploads)
+			random.nextBytes(u);
+		System.out.printf("%d uploads of %d MB at the same time%n",
+				concurrent, uploads[0].length / (1024 * 1024));
+		measureConcurrent("batches of 16, 4 threads", config(
+				"content.ingest.batch", "16", "content.ingest.threads", "4",
+				"content.ingest.window", "64"), uploads, latency, rounds);
+		measureConcurrent("  and 2 writers", config("content.ingest.batch",
+				"16", "content.ingest.threads", "4", "content.ingest.writers",
+				"2", "content.ingest.window", "64"), uploads, latency, rounds);
+		measureConcurrent("  and acknowledged per upload", config(
+				"content.ingest.batch", "16", "content.ingest.threads", "4",
+				"content.ingest.window", "64", "content.ingest.acknowledge",
+				"upload"), uploads, latency, rounds);
+	}
+
+}
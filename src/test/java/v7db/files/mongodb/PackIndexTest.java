@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.mongodb.MemoryDB;
+
+public class PackIndexTest extends TestCase {
+
+	private static byte[] sha(Random random) {
+		byte[] sha = new byte[20];
+		random.nextBytes(sha);
+		return sha;
+	}
+
+	public void testFilter() throws InterruptedException {
+		Random random = new Random(42);
+		// a name of its own, the filter is shared by the name
+		MemoryDB db = new MemoryDB("PackIndexTest");
+		PackIndex packs = new PackIndex(db);
+		byte[] pack = sha(random);
+		byte[] old = sha(random);
+		packs.add(Collections.singletonList(PackIndex.record(old, pack, 0, 10)));
+
+		byte[] unknown = sha(random);
+		assertTrue("no filter", packs.mayBePacked(unknown));
+		packs.useFilter(60);
+		for (int i = 0; i < 500 && packs.mayBePacked(unknown); i++)
+			Thread.sleep(10);
+		assertFalse("seeded", packs.mayBePacked(unknown));
+		assertTrue(packs.mayBePacked(old));
+
+		// packed in this process after seeding, by another instance
+		byte[] added = sha(random);
+		new PackIndex(db).add(Collections.singletonList(PackIndex.record(
+				added, pack, 1, 10)));
+		assertTrue(packs.mayBePacked(added));
+		assertNotNull(packs.locate(added));
+	}
+
+}
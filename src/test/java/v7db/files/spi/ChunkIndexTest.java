@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ChunkIndexTest extends TestCase {
+
+	private static byte[] sha(int i) {
+		byte[] sha = new byte[20];
+		Arrays.fill(sha, (byte) i);
+		return sha;
+	}
+
+	public void testGrowBeyondExpectedSize() {
+		ChunkIndex index = new ChunkIndex(1);
+		for (int i = 0; i < 100; i++) {
+			if (i % 7 == 3)
+				index.add(new InlineContent(new byte[] { (byte) i }));
+			else
+				index.add(sha(i), 10);
+		}
+		assertEquals(100, index.size());
+		long offset = 0;
+		for (int i = 0; i < 100; i++) {
+			assertEquals(offset, index.getOffset(i));
+			assertEquals(i, index.find(offset));
+			if (i % 7 == 3) {
+				assertNull(index.getSHA(i));
+				offset += 1;
+			} else {
+				assertTrue(Arrays.equals(sha(i), index.getSHA(i)));
+				offset += 10;
+			}
+		}
+		assertEquals(offset, index.getLength());
+	}
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Measures how fast (in MB/s) stored content can be streamed through the
+ * Content classes: a {@link ChunkedContent} of 256KB {@link InlineContent}
+ * chunks, and an {@link OffsetAndLength} range of it.
+ * <p>
+ * Every measurement is done twice, once with bulk reads (as
+ * <code>IOUtils.copy</code> does them) and once through a stream that only
+ * has the single-byte <code>read()</code>, which is what every copy cost
+ * before the Content streams had their own bulk reads.
+ * <p>
+ * Not a unit test, run it with <code>main</code> (arguments: number of
+ * chunks, number of measured rounds).
+ */
+
+public class ContentStreamBenchmark {
+
+	private static final int CHUNK = 256 * 1024;
+
+	/**
+	 * hides the bulk read of the wrapped stream
+	 */
+	private static final class SingleByteStream extends InputStream {
+
+		private final InputStream in;
+
+		SingleByteStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static double megabytesPerSecond(Content content,
+			boolean singleByte) throws IOException {
+		long start = System.nanoTime();
+		InputStream in = content.getInputStream();
+		if (singleByte)
+			in = new SingleByteStream(in);
+		long n = IOUtils.copyLarge(in, new NullOutputStream());
+		in.close();
+		if (n != content.getLength())
+			throw new IllegalStateException("read " + n + " of "
+					+ content.getLength() + " bytes");
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return n / seconds / (1024 * 1024);
+	}
+
+	private static void measure(String name, Content content, int rounds,
+			boolean singleByte) throws IOException {
+		// warm-up
+		for (int i = 0; i < 3; i++)
+			megabytesPerSecond(content, singleByte);
+		double sum = 0, best = 0;
+		for (int i = 0; i < rounds; i++) {
+			double m = megabytesPerSecond(content, singleByte);
+			sum += m;
+			best = Math.max(best, m);
+		}
+		System.out.printf("%-30s %-12s %10.1f MB/s (best %.1f)%n", name,
+				singleByte ? "read()" : "bulk read", sum / rounds, best);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Random random = new Random(42);
+		ChunkIndex index = new ChunkIndex(chunks);
+		for (int i = 0; i < chunks; i++) {
+			byte[] chunk = new byte[CHUNK];
+			random.nextBytes(chunk);
+			index.add(new InlineContent(chunk));
+		}
+		ChunkedContent chunked = new ChunkedContent(null, index);
+		Content range = new OffsetAndLength(chunked, CHUNK / 2, chunked
+				.getLength()
+				- CHUNK);
+		System.out.printf("%d chunks of %d bytes, %d rounds%n", chunks,
+				CHUNK, rounds);
+
+		for (boolean singleByte : new boolean[] { false, true }) {
+			measure("InlineContent (one chunk)", index.getContent(0),
+					rounds * chunks, singleByte);
+			measure("ChunkedContent", chunked, rounds, singleByte);
+			measure("OffsetAndLength of chunked", range, rounds, singleByte);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.Compression;
+
+public class GzippedContentTest extends TestCase {
+
+	private static byte[] data() {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 251 / 3);
+		return data;
+	}
+
+	private static Content content(byte[] gz) throws IOException {
+		return new GzippedContent().getContent(null, Collections
+				.<String, Object> singletonMap("zin", gz));
+	}
+
+	public void testRead() throws IOException {
+		byte[] data = data();
+		Content c = content(Compression.gzip(data, 0, data.length));
+		assertEquals(data.length, c.getLength());
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(c
+				.getInputStream())));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, 200), IOUtils
+				.toByteArray(c.getInputStream(100, 100))));
+	}
+
+	public void testCorruptCRC() throws IOException {
+		byte[] data = data();
+		byte[] gz = Compression.gzip(data, 0, data.length);
+		gz[gz.length - 8] ^= 1;
+		Content c = content(gz);
+		try {
+			IOUtils.toByteArray(c.getInputStream());
+			fail("the CRC32 should not match");
+		} catch (ZipException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("CRC32"));
+		}
+		// a partial read cannot tell
+		assertEquals(100, IOUtils.toByteArray(c.getInputStream(100, 100)).length);
+	}
+
+	public void testCorruptISIZE() throws IOException {
+		byte[] data = data();
+		byte[] gz = Compression.gzip(data, 0, data.length);
+		gz[gz.length - 4]--;
+		InputStream in = content(gz).getInputStream();
+		try {
+			IOUtils.toByteArray(in);
+			fail("ISIZE should not match");
+		} catch (ZipException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("ISIZE"));
+		}
+	}
+
+}